@@ -0,0 +1,119 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.flywaydb.core.Flyway;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//отдельная база H2 в памяти для одного прогона бенчмарка, со схемой из миграций приложения
+public class BenchmarkDatabase implements AutoCloseable {
+
+    private static final int BATCH_SIZE = 10_000;
+
+    private final HikariDataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final ReferenceDataRegistry referenceData;
+
+    public BenchmarkDatabase() {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:benchmark-" + System.nanoTime());
+        dataSource.setUsername("sa");
+        dataSource.setPassword("password");
+
+        Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:db/migration")
+                .load()
+                .migrate();
+
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        referenceData = new ReferenceDataRegistry(jdbcTemplate);
+        referenceData.refresh();
+    }
+
+    public String getJdbcUrl() {  //база доступна и другим пулам соединений, пока открыт этот
+        return dataSource.getJdbcUrl();
+    }
+
+    public JdbcTemplate getJdbcTemplate() {
+        return jdbcTemplate;
+    }
+
+    public ReferenceDataRegistry getReferenceData() {
+        return referenceData;
+    }
+
+    //заполнение базы напрямую пакетными вставками: size пользователей и фильмов, по два лайка и два друга
+    // на пользователя
+    public void fill(int size) {
+        List<Object[]> rows = new ArrayList<>();
+        for (long id = 1; id <= size; id++) {
+            rows.add(new Object[]{"login" + id, "name" + id, "user" + id + "@mail.ru", "2000-01-01"});
+            rows = flushIfFull(rows, "insert into \"user\" (login, name, email, birthday) values (?, ?, ?, ?)");
+        }
+        flush(rows, "insert into \"user\" (login, name, email, birthday) values (?, ?, ?, ?)");
+
+        rows = new ArrayList<>();
+        String sqlForFilm = "insert into film (name, description, release_date, duration, rating_id) "
+                + "values (?, ?, ?, ?, ?)";
+        for (long id = 1; id <= size; id++) {
+            rows.add(new Object[]{"film" + id, "description" + id, "2000-01-01", 120, 1 + id % 5});
+            rows = flushIfFull(rows, sqlForFilm);
+        }
+        flush(rows, sqlForFilm);
+
+        rows = new ArrayList<>();
+        String sqlForGenre = "insert into genre_of_film (film_id, genre_id) values (?, ?)";
+        for (long id = 1; id <= size; id++) {
+            rows.add(new Object[]{id, 1 + id % 6});
+            rows = flushIfFull(rows, sqlForGenre);
+        }
+        flush(rows, sqlForGenre);
+
+        rows = new ArrayList<>();
+        String sqlForLike = "insert into likes (film_id, user_id) values (?, ?)";
+        for (long userId = 1; userId <= size; userId++) {
+            for (long filmId : BenchmarkIds.likedFilms(userId, size)) {
+                rows.add(new Object[]{filmId, userId});
+                rows = flushIfFull(rows, sqlForLike);
+            }
+        }
+        flush(rows, sqlForLike);
+        jdbcTemplate.update("update film as f set like_count = "
+                + "(select count(*) from likes as l where l.film_id = f.film_id)");
+
+        rows = new ArrayList<>();
+        String sqlForFriend = "insert into friends (user_id, friend_id, friendship_status_id) values (?, ?, 1)";
+        for (long userId = 1; userId <= size; userId++) {
+            for (long friendId : BenchmarkIds.friends(userId, size)) {
+                rows.add(new Object[]{userId, friendId});
+                rows = flushIfFull(rows, sqlForFriend);
+            }
+        }
+        flush(rows, sqlForFriend);
+        jdbcTemplate.update("update \"user\" as u set friend_count = "
+                + "(select count(*) from friends as f where f.user_id = u.user_id)");  //все связи подтверждены
+    }
+
+    private List<Object[]> flushIfFull(List<Object[]> rows, String sql) {
+        if (rows.size() < BATCH_SIZE) {
+            return rows;
+        }
+        flush(rows, sql);
+        return new ArrayList<>();
+    }
+
+    private void flush(List<Object[]> rows, String sql) {
+        if (!rows.isEmpty()) {
+            jdbcTemplate.batchUpdate(sql, rows);
+        }
+    }
+
+    @Override
+    public void close() {  //база в памяти удаляется вместе с последним соединением пула
+        dataSource.close();
+    }
+}
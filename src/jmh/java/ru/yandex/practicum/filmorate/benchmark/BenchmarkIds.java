@@ -0,0 +1,29 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+//детерминированная схема связей тестового набора данных и выбор случайных id
+public class BenchmarkIds {
+
+    private BenchmarkIds() {
+    }
+
+    public static long randomId(int size) {
+        return 1 + ThreadLocalRandom.current().nextInt(size);
+    }
+
+    //каждый пользователь лайкает два разных фильма
+    public static long[] likedFilms(long userId, int size) {
+        long first = 1 + (userId - 1) % size;
+        long second = 1 + (userId * 31) % size;
+        return first == second ? new long[]{first} : new long[]{first, second};
+    }
+
+    //каждый пользователь дружит со следующими двумя по id, поэтому у соседей есть общие друзья
+    public static long[] friends(long userId, int size) {
+        if (size < 3) {
+            return new long[0];
+        }
+        return new long[]{1 + userId % size, 1 + (userId + 1) % size};
+    }
+}
@@ -0,0 +1,145 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.RatingMPA;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.RequestIdentityMap;
+import ru.yandex.practicum.filmorate.storage.film.FilmCache;
+import ru.yandex.practicum.filmorate.storage.film.FilmDbStorage;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.InMemoryFilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
+import ru.yandex.practicum.filmorate.storage.user.FriendGraphIndex;
+import ru.yandex.practicum.filmorate.storage.user.InMemoryUserStorage;
+import ru.yandex.practicum.filmorate.storage.user.UserDbStorage;
+import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+
+import java.time.Duration;
+import java.time.LocalDate;
+
+//пара хранилищ фильмов и пользователей выбранной реализации ("memory", "db" или "db-write-behind" -
+//база с отложенной записью лайков), заполненных size записями.
+//Хранилища базы создаются в небольшом контексте Spring, как в приложении: их методы идут через прокси
+//@Transactional и @Timed, поэтому замер включает открытие транзакций и таймеры
+public class BenchmarkStorages implements AutoCloseable {
+
+    private static final long CACHE_MAX_BYTES = 64L * 1024 * 1024;  //как filmorate.film-cache.max-bytes по умолчанию
+    private static final int MAX_PENDING_LIKES = 10000;  //как filmorate.likes.write-behind.max-pending по умолчанию
+
+    private final BenchmarkDatabase database = new BenchmarkDatabase();
+    private final FilmStorage filmStorage;
+    private final UserStorage userStorage;
+    private AnnotationConfigApplicationContext context;
+
+    public BenchmarkStorages(String backend, int size) throws ValidationException {
+        if ("db".equals(backend) || "db-write-behind".equals(backend)) {
+            database.fill(size);
+            context = newContext("db-write-behind".equals(backend));
+            userStorage = context.getBean(UserDbStorage.class);
+            filmStorage = context.getBean(FilmDbStorage.class);
+        } else if ("memory".equals(backend)) {
+            InMemoryUserStorage inMemoryUserStorage = new InMemoryUserStorage();
+            userStorage = inMemoryUserStorage;
+            filmStorage = new InMemoryFilmStorage(inMemoryUserStorage, database.getReferenceData());
+            fill(size);
+        } else {
+            throw new IllegalArgumentException("Неизвестное хранилище: " + backend);
+        }
+    }
+
+    //планировщика в контексте нет: отложенные лайки записываются при переполнении буфера и при закрытии.
+    //RequestIdentityMap без области запроса, поэтому каждый вызов идёт в базу
+    private AnnotationConfigApplicationContext newContext(boolean writeBehind) {
+        AnnotationConfigApplicationContext storageContext = new AnnotationConfigApplicationContext();
+        storageContext.register(ProxyConfiguration.class);
+        storageContext.registerBean(JdbcTemplate.class, database::getJdbcTemplate);
+        storageContext.registerBean(PlatformTransactionManager.class,
+                () -> new DataSourceTransactionManager(database.getJdbcTemplate().getDataSource()));
+        storageContext.registerBean(ReferenceDataRegistry.class, database::getReferenceData);
+        storageContext.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+        storageContext.registerBean(TimedAspect.class);
+        storageContext.registerBean(RequestIdentityMap.class);
+        storageContext.registerBean(FriendGraphIndex.class);
+        storageContext.registerBean(FilmCache.class, () -> new FilmCache(CACHE_MAX_BYTES));
+        storageContext.registerBean(LikeWriteBuffer.class, () -> new LikeWriteBuffer(database.getJdbcTemplate(),
+                storageContext.getBean(PlatformTransactionManager.class), storageContext.getBean(FilmCache.class),
+                writeBehind, MAX_PENDING_LIKES));
+        storageContext.registerBean(UserDbStorage.class);
+        storageContext.registerBean(FilmDbStorage.class);
+        storageContext.refresh();
+        return storageContext;
+    }
+
+    @Configuration
+    @EnableTransactionManagement(proxyTargetClass = true)
+    @EnableAspectJAutoProxy(proxyTargetClass = true)
+    static class ProxyConfiguration {  //прокси классов, как в Spring Boot по умолчанию
+    }
+
+    public FilmStorage getFilmStorage() {
+        return filmStorage;
+    }
+
+    public UserStorage getUserStorage() {
+        return userStorage;
+    }
+
+    public static Film newFilm(long number) {
+        Film film = Film.builder()
+                .name("film" + number)
+                .description("description" + number)
+                .releaseDate(LocalDate.of(2000, 1, 1))
+                .duration(Duration.ofMinutes(120))
+                .mpa(RatingMPA.builder().id((int) (1 + number % 5)).build())
+                .build();
+        film.addGenre(Genre.builder().id((int) (1 + number % 6)).build());
+        return film;
+    }
+
+    public static User newUser(long number) {
+        return User.builder()
+                .login("login" + number)
+                .name("name" + number)
+                .email("user" + number + "@mail.ru")
+                .birthday(LocalDate.of(2000, 1, 1))
+                .build();
+    }
+
+    //заполнение хранилищ в памяти через их собственные методы, с той же схемой связей, что и в базе
+    private void fill(int size) throws ValidationException {
+        for (long id = 1; id <= size; id++) {
+            userStorage.addUser(newUser(id));
+            filmStorage.addFilm(newFilm(id));
+        }
+        for (long userId = 1; userId <= size; userId++) {
+            for (long filmId : BenchmarkIds.likedFilms(userId, size)) {
+                filmStorage.addLike(filmId, userId);
+            }
+            for (long friendId : BenchmarkIds.friends(userId, size)) {
+                userStorage.addFriend(userId, friendId);
+                userStorage.addFriend(friendId, userId);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (context != null) {
+            context.close();  //LikeWriteBuffer записывает отложенные лайки в @PreDestroy
+        }
+        database.close();
+    }
+}
@@ -0,0 +1,74 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.yandex.practicum.filmorate.utils.FriendshipStatusMap;
+import ru.yandex.practicum.filmorate.utils.LongHashSet;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+//сравнение памяти, которую занимают лайки и друзья в прежних коллекциях (boxed) и в примитивных (primitive).
+//Смотреть нужно на gc.alloc.rate.norm из профиля gc, делённый на size: это байты на один лайк или друга,
+//включая промежуточные массивы при росте таблицы у обеих реализаций
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollectionFootprintBenchmark {
+
+    @Param({"boxed", "primitive"})
+    public String collection;
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Benchmark
+    public Set<Long> likes() {
+        if ("boxed".equals(collection)) {
+            Set<Long> likes = new HashSet<>();
+            for (long userId = 1; userId <= size; userId++) {
+                likes.add(userId);
+            }
+            return likes;
+        }
+        LongHashSet likes = new LongHashSet();
+        for (long userId = 1; userId <= size; userId++) {
+            likes.add(userId);
+        }
+        return likes;
+    }
+
+    @Benchmark
+    public Map<Long, String> friends() {
+        if ("boxed".equals(collection)) {
+            Map<Long, String> friends = new HashMap<>();
+            for (long userId = 1; userId <= size; userId++) {
+                friends.put(userId, status(userId));
+            }
+            return friends;
+        }
+        FriendshipStatusMap friends = new FriendshipStatusMap();
+        for (long userId = 1; userId <= size; userId++) {
+            friends.put(userId, status(userId));
+        }
+        return friends;
+    }
+
+    private static String status(long userId) {
+        return userId % 2 == 0 ? FriendshipStatusMap.CONFIRMED : FriendshipStatusMap.UNCONFIRMED;
+    }
+}
@@ -0,0 +1,80 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.yandex.practicum.filmorate.storage.film.FilmRecommendationIndex;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//рекомендации фильмов на синтетическом графе лайков: у каждого из size пользователей likesPerUser лайков,
+//фильмы выбираются с перекосом в сторону популярных (квадрат равномерной величины), фильмов в десять раз меньше.
+//Индекс заполняется через addLike, так что время подготовки показывает и стоимость инкрементального обновления
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilmRecommendationBenchmark {
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"20", "100"})
+    public int likesPerUser;
+
+    private BenchmarkDatabase database;
+    private FilmRecommendationIndex index;
+    private int filmCount;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = new BenchmarkDatabase();
+        index = new FilmRecommendationIndex(database.getJdbcTemplate(), 500);
+        index.reload();
+        filmCount = Math.max(1, size / 10);
+        Random random = new Random(42);
+        for (long userId = 1; userId <= size; userId++) {
+            for (int like = 0; like < likesPerUser; like++) {
+                index.addLike(popularFilm(random), userId);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    public long[] recommend() {
+        return index.recommend(BenchmarkIds.randomId(size), 10);
+    }
+
+    @Benchmark
+    public long likeAndUnlike() {  //стоимость поддержки матрицы при изменении лайка; фильм вне графа, чтобы
+        // удаление не затрагивало лайки, созданные при подготовке
+        long userId = BenchmarkIds.randomId(size);
+        long filmId = filmCount + 1;
+        index.addLike(filmId, userId);
+        index.deleteLike(filmId, userId);
+        return index.getPairCount();
+    }
+
+    private long popularFilm(Random random) {
+        double uniform = random.nextDouble();
+        return 1 + (long) (uniform * uniform * filmCount);
+    }
+}
@@ -0,0 +1,116 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.RatingMPA;
+import ru.yandex.practicum.filmorate.storage.film.FilmSearchIndex;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//поиск фильмов по индексу из size фильмов с русскими названиями и описаниями из случайных слов.
+//Слова составлены из слогов, частота слов убывает по степенному закону, как в естественном тексте.
+//"prefix" - начало слова названия, "substring" - середина слова, "twoWords" - два слова из названия
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class FilmSearchBenchmark {
+
+    private static final String[] SYLLABLES = {"ка", "ро", "ми", "лу", "не", "то", "ва", "зе", "сы", "дом",
+        "пер", "ёж", "тан", "гор", "ли", "бе", "ша", "ку", "ре", "мо", "ин", "ст", "ор", "ал"};
+    private static final int VOCABULARY = 50_000;
+    private static final int NAME_WORDS = 3;
+    private static final int DESCRIPTION_WORDS = 15;
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    @Param({"prefix", "substring", "twoWords"})
+    public String query;
+
+    private BenchmarkDatabase database;
+    private FilmSearchIndex index;
+    private String[] vocabulary;
+    private String[][] names;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        vocabulary = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int syllable = 0; syllable < 2 + random.nextInt(3); syllable++) {
+                word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            vocabulary[i] = word.toString();
+        }
+        database = new BenchmarkDatabase();
+        index = new FilmSearchIndex(database.getJdbcTemplate());
+        names = new String[Math.min(size, 10_000)][];  //слова названий для построения запросов
+        for (long id = 1; id <= size; id++) {
+            String[] nameWords = new String[NAME_WORDS];
+            for (int i = 0; i < NAME_WORDS; i++) {
+                nameWords[i] = randomWord(random);
+            }
+            StringBuilder description = new StringBuilder();
+            for (int i = 0; i < DESCRIPTION_WORDS; i++) {
+                description.append(randomWord(random)).append(' ');
+            }
+            Film film = Film.builder()
+                    .name(String.join(" ", nameWords))
+                    .description(description.toString())
+                    .releaseDate(LocalDate.of(2000, 1, 1))
+                    .duration(Duration.ofMinutes(120))
+                    .mpa(RatingMPA.builder().id(1).build())
+                    .build();
+            film.setId(id);
+            index.put(film);
+            index.setPopularity(id, random.nextInt(1000));
+            if (id <= names.length) {
+                names[(int) id - 1] = nameWords;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    public long[] search() {
+        String[] nameWords = names[ThreadLocalRandom.current().nextInt(names.length)];
+        String word = nameWords[0];
+        switch (query) {
+            case "prefix":
+                return index.search(word.substring(0, Math.min(word.length(), 4)), 10);
+            case "substring":
+                return index.search(word.substring(1, Math.min(word.length(), 5)), 10);
+            default:
+                return index.search(nameWords[0] + " " + nameWords[1], 10);
+        }
+    }
+
+    private String randomWord(Random random) {  //номер слова с распределением, близким к закону Ципфа
+        double uniform = random.nextDouble();
+        return vocabulary[(int) (Math.pow(uniform, 3) * VOCABULARY)];
+    }
+}
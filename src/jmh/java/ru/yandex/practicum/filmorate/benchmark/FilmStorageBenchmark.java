@@ -0,0 +1,77 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilmStorageBenchmark {
+
+    @Param({"memory", "db", "db-write-behind"})
+    public String backend;
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private BenchmarkStorages storages;
+    private FilmStorage filmStorage;
+    private final AtomicLong filmNumber = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws ValidationException {
+        storages = new BenchmarkStorages(backend, size);
+        filmStorage = storages.getFilmStorage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storages.close();
+    }
+
+    @Benchmark
+    public Film addFilm() throws ValidationException {
+        return filmStorage.addFilm(BenchmarkStorages.newFilm(filmNumber.incrementAndGet())).getBody();
+    }
+
+    @Benchmark
+    public Film getFilmById() {
+        return filmStorage.getFilmById(BenchmarkIds.randomId(size));
+    }
+
+    @Benchmark
+    public List<Film> getAllFilms() {
+        return filmStorage.getAllFilms();
+    }
+
+    @Benchmark
+    public Film addLike() {
+        return filmStorage.addLike(BenchmarkIds.randomId(size), BenchmarkIds.randomId(size));
+    }
+
+    @Benchmark
+    public List<Film> getRatingOfFilms() throws ValidationException {
+        return filmStorage.getRatingOfFilms(10L);
+    }
+}
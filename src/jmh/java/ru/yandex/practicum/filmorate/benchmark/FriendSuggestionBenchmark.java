@@ -0,0 +1,91 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.FriendSuggestionService;
+import ru.yandex.practicum.filmorate.storage.user.InMemoryUserStorage;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//предложения друзей на графе со степенным распределением связей (модель Барабаши-Альберт):
+//каждый новый пользователь дружит с EDGES_PER_USER уже существующими, выбранными пропорционально их числу друзей.
+//"hub" - запросы от самых старых пользователей с наибольшим числом друзей, "random" - от случайных
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FriendSuggestionBenchmark {
+
+    private static final int EDGES_PER_USER = 5;
+    private static final int HUBS = 10;
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"random", "hub"})
+    public String start;
+
+    @Param({"100", "1000"})
+    public int maxFanOut;
+
+    private FriendSuggestionService suggestionService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ValidationException {
+        InMemoryUserStorage storage = new InMemoryUserStorage();
+        for (long id = 1; id <= size; id++) {
+            storage.addUser(BenchmarkStorages.newUser(id));
+        }
+        Random random = new Random(42);
+        long[] endpoints = new long[2 * EDGES_PER_USER * size];
+        int endpointCount = 0;
+        for (long userId = 1; userId <= EDGES_PER_USER + 1; userId++) {  //начальная клика
+            for (long friendId = 1; friendId < userId; friendId++) {
+                befriend(storage, userId, friendId);
+                endpoints[endpointCount++] = userId;
+                endpoints[endpointCount++] = friendId;
+            }
+        }
+        for (long userId = EDGES_PER_USER + 2; userId <= size; userId++) {
+            int firstNewEndpoint = endpointCount;
+            for (int edge = 0; edge < EDGES_PER_USER; edge++) {
+                long friendId = endpoints[random.nextInt(firstNewEndpoint)];
+                befriend(storage, userId, friendId);
+                endpoints[endpointCount++] = userId;
+                endpoints[endpointCount++] = friendId;
+            }
+        }
+        suggestionService = new FriendSuggestionService(storage, maxFanOut, Duration.ofSeconds(1));
+    }
+
+    @Benchmark
+    public List<User> getSuggestions() {
+        long userId = "hub".equals(start)
+                ? 1 + ThreadLocalRandom.current().nextInt(HUBS)
+                : BenchmarkIds.randomId(size);
+        return suggestionService.getSuggestions(userId, 10);
+    }
+
+    private void befriend(InMemoryUserStorage storage, long userId, long friendId) {  //взаимная дружба
+        storage.addFriend(userId, friendId);
+        storage.addFriend(friendId, userId);
+    }
+}
@@ -0,0 +1,105 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.yandex.practicum.filmorate.FilmorateApplication;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+//нагрузочный тест приложения целиком: clients одновременных запросов к запущенному серверу,
+//время одной волны до получения всех ответов, запросы обрабатывает пул потоков Tomcat.
+//Каждый клиент держит своё соединение, поэтому нужен ulimit -n больше clients:
+//ulimit -n 65536 && mvn -Pjmh test-compile exec:exec -Djmh.args="RequestLoadBenchmark"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RequestLoadBenchmark {
+
+    private static final int SIZE = 10_000;
+
+    @Param({"/films/popular", "/users/{id}/friends"})
+    public String endpoint;
+
+    @Param({"10000"})
+    public int clients;
+
+    private BenchmarkDatabase database;
+    private ConfigurableApplicationContext context;
+    private ExecutorService clientExecutor;
+    private HttpClient httpClient;
+    private String baseUrl;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = new BenchmarkDatabase();
+        database.fill(SIZE);
+        context = new SpringApplicationBuilder(FilmorateApplication.class)
+                .properties("server.port=0",
+                        "spring.datasource.url=" + database.getJdbcUrl(),
+                        "server.tomcat.max-connections=" + (clients + 1000),
+                        "server.tomcat.accept-count=" + clients,
+                        "logging.level.root=warn")
+                .run();
+        int port = ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+        baseUrl = "http://localhost:" + port;
+        clientExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        httpClient = HttpClient.newBuilder()
+                .executor(clientExecutor)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        clientExecutor.shutdownNow();
+        database.close();
+    }
+
+    @Benchmark
+    public int wave() {  //количество успешных ответов из clients одновременных запросов
+        CompletableFuture<?>[] responses = new CompletableFuture<?>[clients];
+        int[] succeeded = new int[1];
+        for (int i = 0; i < clients; i++) {
+            String path = endpoint.replace("{id}", Long.toString(BenchmarkIds.randomId(SIZE)));
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                    .timeout(Duration.ofMinutes(1))
+                    .build();
+            responses[i] = httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .thenAccept(response -> {
+                        if (response.statusCode() == 200) {
+                            synchronized (succeeded) {
+                                succeeded[0]++;
+                            }
+                        }
+                    });
+        }
+        CompletableFuture.allOf(responses).join();
+        return succeeded[0];
+    }
+}
@@ -0,0 +1,71 @@
+package ru.yandex.practicum.filmorate.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserStorageBenchmark {
+
+    @Param({"memory", "db"})
+    public String backend;
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private BenchmarkStorages storages;
+    private UserStorage userStorage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ValidationException {
+        storages = new BenchmarkStorages(backend, size);
+        userStorage = storages.getUserStorage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storages.close();
+    }
+
+    @Benchmark
+    public User addFriend() {
+        long userId = BenchmarkIds.randomId(size);
+        long friendId = BenchmarkIds.randomId(size);
+        if (userId == friendId) {
+            friendId = 1 + friendId % size;
+        }
+        return userStorage.addFriend(userId, friendId);
+    }
+
+    @Benchmark
+    public List<User> getFriends() {
+        return userStorage.getFriends(BenchmarkIds.randomId(size));
+    }
+
+    @Benchmark
+    public List<User> getListOfMutualFriends() {
+        long userId = BenchmarkIds.randomId(size);
+        return userStorage.getListOfMutualFriends(userId, 1 + userId % size);
+    }
+}
@@ -0,0 +1,64 @@
+package ru.yandex.practicum.filmorate.config;
+
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import ru.yandex.practicum.filmorate.metrics.JdbcStatementCounter;
+import ru.yandex.practicum.filmorate.metrics.JdbcStatementsPerRequestInterceptor;
+import ru.yandex.practicum.filmorate.metrics.StatementCountingDataSource;
+
+import javax.sql.DataSource;
+
+@Configuration
+public class MetricsConfiguration {
+
+    @Bean  //замеры времени методов, отмеченных @Timed (хранилища фильмов и пользователей)
+    public TimedAspect timedAspect(MeterRegistry meterRegistry) {
+        return new TimedAspect(meterRegistry);
+    }
+
+    @Bean
+    public static JdbcStatementCounter jdbcStatementCounter() {
+        return new JdbcStatementCounter();
+    }
+
+    @Bean  //подсчёт запросов через все источники данных приложения, включая используемый JdbcTemplate хранилищ
+    public static BeanPostProcessor statementCountingDataSourcePostProcessor(
+            ObjectProvider<JdbcStatementCounter> counterProvider) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof DataSource && !(bean instanceof StatementCountingDataSource)) {
+                    return new StatementCountingDataSource((DataSource) bean, counterProvider.getObject());
+                }
+                return bean;
+            }
+        };
+    }
+
+    @Bean
+    public MeterBinder jdbcStatementCounterMetrics(JdbcStatementCounter counter) {
+        return meterRegistry -> FunctionCounter.builder("filmorate.jdbc.statements", counter,
+                        JdbcStatementCounter::getTotalCount)
+                .description("Общее количество выполненных jdbc-запросов")
+                .register(meterRegistry);
+    }
+
+    @Bean
+    public WebMvcConfigurer jdbcStatementsPerRequestConfigurer(JdbcStatementCounter counter,
+                                                               MeterRegistry meterRegistry) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                registry.addInterceptor(new JdbcStatementsPerRequestInterceptor(counter, meterRegistry));
+            }
+        };
+    }
+}
@@ -0,0 +1,74 @@
+package ru.yandex.practicum.filmorate.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import ru.yandex.practicum.filmorate.storage.replica.ReadWriteRoutingDataSource;
+import ru.yandex.practicum.filmorate.storage.replica.ReadYourWritesInterceptor;
+import ru.yandex.practicum.filmorate.storage.replica.ReplicaLagMonitor;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+
+//чтение с реплики (filmorate.datasource.replica.enabled). Единственный источник данных приложения
+//заменяется маршрутизирующим: основная база настраивается свойствами spring.datasource, реплика -
+//свойствами filmorate.datasource.replica. Пулы основной базы и реплики не регистрируются как отдельные
+//бины, чтобы запросы считались один раз и JdbcTemplate, Flyway и менеджер транзакций видели один источник
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "filmorate.datasource.replica.enabled", havingValue = "true")
+public class ReplicaDataSourceConfiguration {
+
+    @Bean
+    public ReplicaLagMonitor replicaLagMonitor(Environment environment,
+                                               @Value("${filmorate.datasource.replica.url}") String url,
+                                               @Value("${filmorate.datasource.replica.username:}") String username,
+                                               @Value("${filmorate.datasource.replica.password:}") String password,
+                                               @Value("${filmorate.datasource.replica.lag-query}") String lagQuery,
+                                               @Value("${filmorate.datasource.replica.max-lag:PT1S}") Duration maxLag,
+                                               @Value("${filmorate.datasource.replica.check-interval:PT0.2S}")
+                                               Duration checkInterval) {
+        HikariDataSource replica = DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .url(url)
+                .username(username)
+                .password(password)
+                .build();
+        Binder.get(environment).bind("spring.datasource.hikari", Bindable.ofInstance(replica));
+        replica.setPoolName("replica");
+        log.info("Чтение с реплики {}, допустимое отставание {}", url, maxLag);
+        return new ReplicaLagMonitor(replica, lagQuery, maxLag, checkInterval);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(DataSourceProperties properties, Environment environment,
+                                 ReplicaLagMonitor replicaLagMonitor) {
+        HikariDataSource primary = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        Binder.get(environment).bind("spring.datasource.hikari", Bindable.ofInstance(primary));
+        primary.setPoolName("primary");
+        return new LazyConnectionDataSourceProxy(new ReadWriteRoutingDataSource(primary, replicaLagMonitor));
+    }
+
+    @Bean  //отметка последней записи клиента в cookie для выбора реплики
+    public WebMvcConfigurer readYourWritesConfigurer(ReplicaLagMonitor replicaLagMonitor) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                registry.addInterceptor(new ReadYourWritesInterceptor(replicaLagMonitor));
+            }
+        };
+    }
+}
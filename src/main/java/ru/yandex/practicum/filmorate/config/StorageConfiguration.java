@@ -0,0 +1,22 @@
+package ru.yandex.practicum.filmorate.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import ru.yandex.practicum.filmorate.storage.RequestIdentityMap;
+import ru.yandex.practicum.filmorate.storage.RequestIdentityMapInterceptor;
+
+@Configuration
+public class StorageConfiguration {
+
+    @Bean  //общая для хранилищ область загруженных пользователей на каждый http-запрос
+    public WebMvcConfigurer requestIdentityMapConfigurer(RequestIdentityMap identityMap) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                registry.addInterceptor(new RequestIdentityMapInterceptor(identityMap));
+            }
+        };
+    }
+}
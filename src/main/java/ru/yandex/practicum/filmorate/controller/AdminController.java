@@ -0,0 +1,48 @@
+package ru.yandex.practicum.filmorate.controller;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.ImportResult;
+import ru.yandex.practicum.filmorate.service.BulkTransferService;
+import ru.yandex.practicum.filmorate.service.FilmService;
+
+import java.io.InputStream;
+
+@RestController
+@Slf4j
+@RequestMapping("/admin")
+public class AdminController {
+
+    private static final String NDJSON = "application/x-ndjson";
+
+    private final BulkTransferService bulkTransferService;
+    private final FilmService filmService;
+
+    public AdminController(BulkTransferService bulkTransferService, FilmService filmService) {
+        this.bulkTransferService = bulkTransferService;
+        this.filmService = filmService;
+    }
+
+    @PostMapping("/import")  //загрузка пользователей, фильмов, лайков и дружб из NDJSON в теле запроса
+    public ImportResult importRecords(InputStream body) throws ValidationException {
+        return bulkTransferService.importRecords(body);
+    }
+
+    @GetMapping(value = "/export", produces = NDJSON)  //потоковая выгрузка всех данных в NDJSON
+    public StreamingResponseBody exportRecords() {
+        return bulkTransferService::exportRecords;
+    }
+
+    @PostMapping("/reference-data/refresh")  //перечитывание жанров и рейтингов mpa после их изменения в базе
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void refreshReferenceData() {
+        filmService.refreshReferenceData();
+    }
+}
@@ -1,13 +1,25 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeBatchItem;
+import ru.yandex.practicum.filmorate.model.LikeBatchResult;
+import ru.yandex.practicum.filmorate.model.LikeCount;
 import ru.yandex.practicum.filmorate.model.RatingMPA;
+import ru.yandex.practicum.filmorate.service.EntityVersions;
 import ru.yandex.practicum.filmorate.service.FilmService;
+import ru.yandex.practicum.filmorate.service.PopularFilmsBroadcaster;
+import ru.yandex.practicum.filmorate.storage.film.FilmSearchIndex;
+import ru.yandex.practicum.filmorate.utils.JsonArrayStreamWriter;
 
 import javax.validation.Valid;
 import java.util.List;
@@ -16,10 +28,22 @@ import java.util.List;
 @Slf4j
 @RequestMapping
 public class FilmController {
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_LIKE_BATCH_SIZE = 10000;
+    private static final int MAX_SEARCH_RESULTS = 100;
+    private static final int MAX_STREAMED_RATING_SIZE = 100;
+
     private final FilmService filmService;
+    private final PopularFilmsBroadcaster popularFilmsBroadcaster;
+    private final EntityVersions versions;
+    private final ObjectMapper objectMapper;
 
-    public FilmController(FilmService filmService) {
+    public FilmController(FilmService filmService, PopularFilmsBroadcaster popularFilmsBroadcaster,
+                          EntityVersions versions, ObjectMapper objectMapper) {
         this.filmService = filmService;
+        this.popularFilmsBroadcaster = popularFilmsBroadcaster;
+        this.versions = versions;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping("/films")  //добавление фильма
@@ -32,9 +56,39 @@ public class FilmController {
         return filmService.updateFilm(film);
     }
 
-    @GetMapping("/films")  //получение всех фильмов
-    public List<Film> getAllFilms() {
-        return filmService.getAllFilms();
+    @GetMapping("/films")  //получение всех фильмов или страницы фильмов с id больше after
+    public List<Film> getAllFilms(@RequestParam(value = "after", required = false) Long after,
+                                  @RequestParam(value = "size", required = false) Integer size)
+            throws ValidationException {
+        if (after == null && size == null) {
+            return filmService.getAllFilms();
+        }
+        if (size == null) {
+            size = MAX_PAGE_SIZE;
+        }
+        if (size <= 0 || size > MAX_PAGE_SIZE) {
+            throw new ValidationException("Параметр size должен быть от 1 до " + MAX_PAGE_SIZE);
+        }
+        return filmService.getFilmsPage(after == null ? 0 : after, size);
+    }
+
+    @GetMapping(value = "/films/stream", produces = MediaType.APPLICATION_JSON_VALUE)  //потоковая выдача всех фильмов
+    public StreamingResponseBody streamAllFilms() {
+        return outputStream -> JsonArrayStreamWriter.write(objectMapper, outputStream, filmService::streamAllFilms);
+    }
+
+    @GetMapping("/films/search")  //поиск фильмов по началу слов и подстроке в названии и описании
+    public List<Film> searchFilms(@RequestParam("q") String query,
+                                  @RequestParam(value = "limit", defaultValue = "10") int limit)
+            throws ValidationException {
+        if (query.strip().length() < FilmSearchIndex.MIN_WORD_LENGTH) {
+            throw new ValidationException("Запрос должен содержать не меньше "
+                    + FilmSearchIndex.MIN_WORD_LENGTH + " символов");
+        }
+        if (limit <= 0 || limit > MAX_SEARCH_RESULTS) {
+            throw new ValidationException("Параметр limit должен быть от 1 до " + MAX_SEARCH_RESULTS);
+        }
+        return filmService.searchFilms(query, limit);
     }
 
     @DeleteMapping("/films")  //удаление всех фильмов
@@ -42,8 +96,11 @@ public class FilmController {
         filmService.clearFilmMap();
     }
 
-    @GetMapping("/films/{id}")  //получение фильма по id
-    public Film getFilmById(@PathVariable long id) {
+    @GetMapping("/films/{id}")  //получение фильма по id, 304 при совпадении If-None-Match с версией фильма
+    public Film getFilmById(@PathVariable long id, WebRequest request) {
+        if (request.checkNotModified(versions.filmTag(id))) {
+            return null;
+        }
         return filmService.getFilmById(id);
     }
 
@@ -52,34 +109,97 @@ public class FilmController {
         return filmService.addLike(filmId, userId);
     }
 
+    @PutMapping(value = "/films/{id}/like/{userId}", params = "countOnly=true")  //добавление лайка с ответом из
+    // одного количества лайков
+    public LikeCount addLikeCountOnly(@PathVariable("id") long filmId, @PathVariable long userId) {
+        return LikeCount.builder().filmId(filmId).count(filmService.addLikeAndCount(filmId, userId)).build();
+    }
+
     @DeleteMapping("/films/{id}/like/{userId}")  //удаление лайка
     public Film deleteLike(@PathVariable("id") long filmId, @PathVariable long userId) {
         return filmService.deleteLike(filmId, userId);
     }
 
+    @DeleteMapping(value = "/films/{id}/like/{userId}", params = "countOnly=true")  //удаление лайка с ответом из
+    // одного количества лайков
+    public LikeCount deleteLikeCountOnly(@PathVariable("id") long filmId, @PathVariable long userId) {
+        return LikeCount.builder().filmId(filmId).count(filmService.deleteLikeAndCount(filmId, userId)).build();
+    }
+
+    @GetMapping("/films/{id}/likes/count")  //количество лайков фильма, 304 при совпадении версии фильма
+    public LikeCount getLikeCount(@PathVariable("id") long filmId, WebRequest request) {
+        if (request.checkNotModified(versions.filmTag(filmId))) {
+            return null;
+        }
+        return LikeCount.builder().filmId(filmId).count(filmService.getLikeCount(filmId)).build();
+    }
+
+    @PostMapping("/films/likes/batch")  //пакетное добавление лайков
+    public LikeBatchResult addLikes(@RequestBody List<LikeBatchItem> items) throws ValidationException {
+        checkLikeBatchSize(items);
+        return filmService.addLikes(items);
+    }
+
+    @DeleteMapping("/films/likes/batch")  //пакетное удаление лайков
+    public LikeBatchResult deleteLikes(@RequestBody List<LikeBatchItem> items) throws ValidationException {
+        checkLikeBatchSize(items);
+        return filmService.deleteLikes(items);
+    }
+
     @GetMapping("/films/popular")  //вывод определённого колличества фильмов из рейтинга
     public List<Film> getRatingOfFilms(@RequestParam(value = "count",
-            defaultValue = "10", required = false) Long count) throws ValidationException {
+            defaultValue = "10", required = false) Long count, WebRequest request) throws ValidationException {
+        if (request.checkNotModified(versions.filmListTag())) {
+            return null;
+        }
         return filmService.getRatingOfFilms(count);
     }
 
+    //подписка на рейтинг: сначала count фильмов из рейтинга, затем только изменившиеся места
+    @GetMapping(value = "/films/popular/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamRatingOfFilms(@RequestParam(value = "count", defaultValue = "10") int count)
+            throws ValidationException {
+        if (count <= 0 || count > MAX_STREAMED_RATING_SIZE) {
+            throw new ValidationException("Параметр count должен быть от 1 до " + MAX_STREAMED_RATING_SIZE);
+        }
+        return popularFilmsBroadcaster.subscribe(count);
+    }
+
     @GetMapping("/mpa")  //вывод всех рейтингов mpa
-    public List<RatingMPA> getAllRatingMPA() {
+    public List<RatingMPA> getAllRatingMPA(WebRequest request) {
+        if (request.checkNotModified(versions.referenceDataTag())) {
+            return null;
+        }
         return filmService.getAllRatingMPA();
     }
 
     @GetMapping("/mpa/{id}")  //получение рейтинга mpa по id
-    public RatingMPA getRatingMPAById(@PathVariable Integer id) {
+    public RatingMPA getRatingMPAById(@PathVariable Integer id, WebRequest request) {
+        if (request.checkNotModified(versions.referenceDataTag())) {
+            return null;
+        }
         return filmService.getRatingMPAById(id);
     }
 
     @GetMapping("/genres")  //вывод всех жанров
-    public List<Genre> getAllGenre() {
+    public List<Genre> getAllGenre(WebRequest request) {
+        if (request.checkNotModified(versions.referenceDataTag())) {
+            return null;
+        }
         return filmService.getAllGenre();
     }
 
     @GetMapping("/genres/{id}")  //получение жанра по id
-    public Genre getGenreById(@PathVariable Integer id) {
+    public Genre getGenreById(@PathVariable Integer id, WebRequest request) {
+        if (request.checkNotModified(versions.referenceDataTag())) {
+            return null;
+        }
         return filmService.getGenreById(id);
     }
+
+    private void checkLikeBatchSize(List<LikeBatchItem> items) throws ValidationException {
+        if (items.isEmpty() || items.size() > MAX_LIKE_BATCH_SIZE) {
+            throw new ValidationException("Пакет должен содержать от 1 до " + MAX_LIKE_BATCH_SIZE + " лайков");
+        }
+    }
 }
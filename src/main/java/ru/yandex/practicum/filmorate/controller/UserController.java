@@ -1,11 +1,21 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FriendCount;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.EntityVersions;
+import ru.yandex.practicum.filmorate.service.FilmRecommendationService;
+import ru.yandex.practicum.filmorate.service.FriendSuggestionService;
 import ru.yandex.practicum.filmorate.service.UserService;
+import ru.yandex.practicum.filmorate.utils.JsonArrayStreamWriter;
 
 import javax.validation.Valid;
 import java.util.List;
@@ -15,10 +25,23 @@ import java.util.List;
 @RequestMapping("/users")
 public class UserController {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_SUGGESTIONS = 100;
+
     private final UserService userService;
+    private final FriendSuggestionService friendSuggestionService;
+    private final FilmRecommendationService filmRecommendationService;
+    private final EntityVersions versions;
+    private final ObjectMapper objectMapper;
 
-    public UserController(UserService userService) {
+    public UserController(UserService userService, FriendSuggestionService friendSuggestionService,
+                          FilmRecommendationService filmRecommendationService, EntityVersions versions,
+                          ObjectMapper objectMapper) {
         this.userService = userService;
+        this.friendSuggestionService = friendSuggestionService;
+        this.filmRecommendationService = filmRecommendationService;
+        this.versions = versions;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping  //добавление пользователя
@@ -31,9 +54,25 @@ public class UserController {
         return userService.updateUser(user);
     }
 
-    @GetMapping  //получение всех пользователей
-    public List<User> getAllFilms() {
-        return userService.getAllFilms();
+    @GetMapping  //получение всех пользователей или страницы пользователей с id больше after
+    public List<User> getAllFilms(@RequestParam(value = "after", required = false) Long after,
+                                  @RequestParam(value = "size", required = false) Integer size)
+            throws ValidationException {
+        if (after == null && size == null) {
+            return userService.getAllFilms();
+        }
+        if (size == null) {
+            size = MAX_PAGE_SIZE;
+        }
+        if (size <= 0 || size > MAX_PAGE_SIZE) {
+            throw new ValidationException("Параметр size должен быть от 1 до " + MAX_PAGE_SIZE);
+        }
+        return userService.getUsersPage(after == null ? 0 : after, size);
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.APPLICATION_JSON_VALUE)  //потоковая выдача всех пользователей
+    public StreamingResponseBody streamAllUsers() {
+        return outputStream -> JsonArrayStreamWriter.write(objectMapper, outputStream, userService::streamAllUsers);
     }
 
     @DeleteMapping  //удаление всех пользователей
@@ -41,8 +80,11 @@ public class UserController {
         userService.clearUserMap();
     }
 
-    @GetMapping("/{id}")  //получение пользователя по id
-    public User getUserById(@PathVariable long id) {
+    @GetMapping("/{id}")  //получение пользователя по id, 304 при совпадении If-None-Match с версией пользователя
+    public User getUserById(@PathVariable long id, WebRequest request) {
+        if (request.checkNotModified(versions.userTag(id))) {
+            return null;
+        }
         return userService.getUserById(id);
     }
 
@@ -61,8 +103,41 @@ public class UserController {
         return userService.getFriends(id);
     }
 
-    @GetMapping("/{id}/friends/common/{otherId}")  //получение списка общих друзей
-    public List<User> getListOfMutualFriends(@PathVariable("id") long user1Id, @PathVariable("otherId") long user2Id) {
-        return userService.getListOfMutualFriends(user1Id, user2Id);
+    @GetMapping("/{id}/friends/count")  //количество друзей, 304 при совпадении версии пользователя
+    public FriendCount getFriendCount(@PathVariable long id, WebRequest request) {
+        if (request.checkNotModified(versions.userTag(id))) {
+            return null;
+        }
+        return FriendCount.builder().userId(id).count(userService.getFriendCount(id)).build();
+    }
+
+    @GetMapping("/{id}/friends/suggestions")  //возможные друзья по количеству общих друзей
+    public List<User> getFriendSuggestions(@PathVariable long id,
+                                           @RequestParam(value = "limit", defaultValue = "10") int limit)
+            throws ValidationException {
+        if (limit <= 0 || limit > MAX_SUGGESTIONS) {
+            throw new ValidationException("Параметр limit должен быть от 1 до " + MAX_SUGGESTIONS);
+        }
+        return friendSuggestionService.getSuggestions(id, limit);
+    }
+
+    @GetMapping("/{id}/recommendations")  //фильмы, которые понравились пользователям со схожими лайками
+    public List<Film> getRecommendations(@PathVariable long id,
+                                         @RequestParam(value = "limit", defaultValue = "10") int limit)
+            throws ValidationException {
+        if (limit <= 0 || limit > MAX_SUGGESTIONS) {
+            throw new ValidationException("Параметр limit должен быть от 1 до " + MAX_SUGGESTIONS);
+        }
+        return filmRecommendationService.getRecommendations(id, limit);
+    }
+
+    @GetMapping("/{id}/friends/common/{otherId}")  //получение списка общих друзей, не более limit при его наличии
+    public List<User> getListOfMutualFriends(@PathVariable("id") long user1Id, @PathVariable("otherId") long user2Id,
+                                             @RequestParam(value = "limit", required = false) Integer limit)
+            throws ValidationException {
+        if (limit != null && limit <= 0) {
+            throw new ValidationException("Параметр limit должен быть положительным");
+        }
+        return userService.getListOfMutualFriends(user1Id, user2Id, limit);
     }
 }
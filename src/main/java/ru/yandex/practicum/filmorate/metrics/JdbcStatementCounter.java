@@ -0,0 +1,27 @@
+package ru.yandex.practicum.filmorate.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+//счётчик выполненных jdbc-запросов: общий и отдельно для текущего потока (то есть текущего http-запроса)
+public class JdbcStatementCounter {
+
+    private final ThreadLocal<int[]> currentThreadCount = ThreadLocal.withInitial(() -> new int[1]);
+    private final LongAdder totalCount = new LongAdder();
+
+    public void increment() {
+        currentThreadCount.get()[0]++;
+        totalCount.increment();
+    }
+
+    public void resetCurrentThread() {
+        currentThreadCount.get()[0] = 0;
+    }
+
+    public int getCurrentThreadCount() {
+        return currentThreadCount.get()[0];
+    }
+
+    public long getTotalCount() {
+        return totalCount.sum();
+    }
+}
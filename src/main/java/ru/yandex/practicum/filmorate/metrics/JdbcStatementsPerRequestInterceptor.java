@@ -0,0 +1,47 @@
+package ru.yandex.practicum.filmorate.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+//запись количества jdbc-запросов, выполненных за один http-запрос, с разбивкой по шаблону адреса
+@Slf4j
+public class JdbcStatementsPerRequestInterceptor implements HandlerInterceptor {
+
+    public static final String METRIC_NAME = "filmorate.jdbc.statements.per.request";
+
+    private final JdbcStatementCounter counter;
+    private final MeterRegistry meterRegistry;
+
+    public JdbcStatementsPerRequestInterceptor(JdbcStatementCounter counter, MeterRegistry meterRegistry) {
+        this.counter = counter;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        counter.resetCurrentThread();
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        String uri = pattern == null ? "UNKNOWN" : pattern.toString();
+        int statements = counter.getCurrentThreadCount();
+
+        DistributionSummary.builder(METRIC_NAME)
+                .description("Количество jdbc-запросов на один http-запрос")
+                .tag("method", request.getMethod())
+                .tag("uri", uri)
+                .register(meterRegistry)
+                .record(statements);
+        log.debug("{} {}: {} jdbc-запросов", request.getMethod(), uri, statements);
+    }
+}
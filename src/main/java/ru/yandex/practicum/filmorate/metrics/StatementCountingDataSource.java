@@ -0,0 +1,70 @@
+package ru.yandex.practicum.filmorate.metrics;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+//источник данных, считающий каждый вызов execute* у созданных через него statement'ов
+public class StatementCountingDataSource extends DelegatingDataSource {
+
+    private final JdbcStatementCounter counter;
+
+    public StatementCountingDataSource(DataSource targetDataSource, JdbcStatementCounter counter) {
+        super(targetDataSource);
+        this.counter = counter;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrapConnection(obtainTargetDataSource().getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return wrapConnection(obtainTargetDataSource().getConnection(username, password));
+    }
+
+    private Connection wrapConnection(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    Object result = invoke(connection, method, args);
+                    if (result instanceof CallableStatement) {
+                        return wrapStatement(result, CallableStatement.class);
+                    }
+                    if (result instanceof PreparedStatement) {
+                        return wrapStatement(result, PreparedStatement.class);
+                    }
+                    if (result instanceof Statement) {
+                        return wrapStatement(result, Statement.class);
+                    }
+                    return result;
+                });
+    }
+
+    private Object wrapStatement(Object statement, Class<?> statementType) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getName().startsWith("execute")) {
+                counter.increment();
+            }
+            return invoke(statement, method, args);
+        };
+        return Proxy.newProxyInstance(statementType.getClassLoader(), new Class<?>[]{statementType}, handler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
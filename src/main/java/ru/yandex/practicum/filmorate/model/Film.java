@@ -5,6 +5,7 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import ru.yandex.practicum.filmorate.utils.DurationToSecondsSerialized;
+import ru.yandex.practicum.filmorate.utils.LongHashSet;
 
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
@@ -58,19 +59,33 @@ public class Film {
         genres.clear();
     }
 
-    private final Set<Long> likes = new HashSet<>();
+    private final LongHashSet likes = new LongHashSet();  //лайки меняются из разных потоков
 
     public void addLike(long userId) {
         likes.add(userId);
     }
 
     public void deleteLike(long userId) {
-        if (likes.contains(userId)) {
-            likes.remove(userId);
-        }
+        likes.remove(userId);
     }
 
     public Long getNumberOfLikes() {
         return (long) likes.size();
     }
+
+    public Film copy() {  //копия, изменения которой не затрагивают исходный фильм; лайки копируются при записи
+        Film copy = Film.builder()
+                .name(name)
+                .description(description)
+                .releaseDate(releaseDate)
+                .duration(duration)
+                .mpa(mpa == null ? null : RatingMPA.builder().id(mpa.getId()).name(mpa.getName()).build())
+                .build();
+        copy.setId(id);
+        for (Genre genre : genres) {
+            copy.addGenre(Genre.builder().id(genre.getId()).name(genre.getName()).build());
+        }
+        copy.likes.copyFrom(likes);
+        return copy;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,11 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class FriendCount {  //количество друзей пользователя без их списка
+    private final long userId;
+    private final long count;
+}
@@ -0,0 +1,16 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.Map;
+
+@Data
+@Builder
+public class ImportResult {  //итог загрузки NDJSON
+    private final long records;  //всего прочитано записей
+    private final Map<String, Long> imported;  //записано строк по типу записи
+    private final long skipped;  //связи с неизвестными id пользователей или фильмов
+    private final long elapsedMillis;
+    private final long recordsPerSecond;
+}
@@ -0,0 +1,23 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.extern.jackson.Jacksonized;
+
+@Data
+@Builder
+@Jacksonized
+public class LikeBatchItem {  //пара фильм-пользователь в пакетном добавлении или удалении лайков
+
+    public static final String ADDED = "added";
+    public static final String REMOVED = "removed";
+    public static final String ALREADY_LIKED = "already_liked";
+    public static final String NOT_LIKED = "not_liked";
+    public static final String FILM_NOT_FOUND = "film_not_found";
+    public static final String USER_NOT_FOUND = "user_not_found";
+    public static final String DUPLICATE = "duplicate";
+
+    private final long filmId;
+    private final long userId;
+    private String status;  //результат обработки пары, в запросе не передаётся
+}
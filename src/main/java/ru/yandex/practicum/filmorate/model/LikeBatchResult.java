@@ -0,0 +1,14 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+@Builder
+public class LikeBatchResult {  //итог пакетной обработки лайков
+    private final Map<String, Integer> summary;  //количество пар по каждому статусу
+    private final List<LikeBatchItem> items;  //статус каждой пары в порядке запроса
+}
@@ -0,0 +1,11 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class LikeCount {  //количество лайков фильма без списка лайкнувших
+    private final long filmId;
+    private final long count;
+}
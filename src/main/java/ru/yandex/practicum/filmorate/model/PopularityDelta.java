@@ -0,0 +1,13 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class PopularityDelta {  //изменения рейтинга с прошлой рассылки
+    private final int size;  //новая длина рейтинга, места после неё удалены
+    private final List<PopularityEntry> changed;  //места, на которых сменился фильм или его данные
+}
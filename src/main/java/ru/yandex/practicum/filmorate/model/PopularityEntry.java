@@ -0,0 +1,11 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class PopularityEntry {  //место фильма в рейтинге
+    private final int rank;  //место, начиная с 1
+    private final Film film;
+}
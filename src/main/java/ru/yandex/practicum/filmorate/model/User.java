@@ -3,6 +3,7 @@ package ru.yandex.practicum.filmorate.model;
 import lombok.Builder;
 import lombok.Data;
 import lombok.extern.jackson.Jacksonized;
+import ru.yandex.practicum.filmorate.utils.FriendshipStatusMap;
 
 import javax.validation.constraints.Email;
 import javax.validation.constraints.NotBlank;
@@ -10,9 +11,8 @@ import javax.validation.constraints.NotNull;
 import javax.validation.constraints.PastOrPresent;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 @Data
 @Builder
@@ -32,17 +32,21 @@ public class User {
     @PastOrPresent(message = "Дата рождения не может быть в будущем")
     private final LocalDate birthday;
 
-    private final Map<Long, String> mapFriends = new HashMap<>();
+    private final FriendshipStatusMap mapFriends = new FriendshipStatusMap();  //друзья меняются из разных потоков
 
     public void addFriend(User user) {
         if (user.mapFriends.containsKey(this.getId())) {
-            user.mapFriends.replace(this.getId(), "confirmed");
-            this.mapFriends.put(user.getId(), "confirmed");
+            user.mapFriends.put(this.getId(), FriendshipStatusMap.CONFIRMED);
+            this.mapFriends.put(user.getId(), FriendshipStatusMap.CONFIRMED);
         } else {
-            this.mapFriends.put(user.getId(), "unconfirmed");
+            this.mapFriends.put(user.getId(), FriendshipStatusMap.UNCONFIRMED);
         }
     }
 
+    public void addFriend(Long friendId, String status) {
+        this.mapFriends.put(friendId, status);
+    }
+
     public boolean isFriend(Long friendId) {
         return mapFriends.containsKey(friendId);
     }
@@ -55,9 +59,11 @@ public class User {
         mapFriends.remove(user.getId());
     }
 
-    public List<Long> getFriends() {
+    public List<Long> getFriends() {  //по возрастанию, в том же порядке, что и ключи mapFriends
+        long[] friendIds = mapFriends.friendIds();
+        Arrays.sort(friendIds);
         List<Long> listFriends = new ArrayList<>();
-        for (Long userId : mapFriends.keySet()) {
+        for (long userId : friendIds) {
             listFriends.add(userId);
         }
         return listFriends;
@@ -0,0 +1,59 @@
+package ru.yandex.practicum.filmorate.service;
+
+import org.springframework.stereotype.Service;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.ImportResult;
+import ru.yandex.practicum.filmorate.storage.bulk.BulkTransferDbStorage;
+import ru.yandex.practicum.filmorate.storage.film.FilmCache;
+import ru.yandex.practicum.filmorate.storage.film.FilmRecommendationIndex;
+import ru.yandex.practicum.filmorate.storage.film.FilmSearchIndex;
+import ru.yandex.practicum.filmorate.storage.film.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.user.FriendGraphIndex;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+//загрузка и выгрузка данных в формате NDJSON. Загрузка пишет в таблицы в обход хранилищ,
+//поэтому после неё индексы в памяти перезагружаются, а кэш фильмов и версии для ETag сбрасываются.
+//Отложенные лайки записываются в базу до загрузки и выгрузки
+@Service
+public class BulkTransferService {
+
+    private final BulkTransferDbStorage storage;
+    private final FriendGraphIndex friendGraphIndex;
+    private final FilmRecommendationIndex recommendationIndex;
+    private final FilmSearchIndex searchIndex;
+    private final FilmCache filmCache;
+    private final EntityVersions versions;
+    private final LikeWriteBuffer likeBuffer;
+
+    public BulkTransferService(BulkTransferDbStorage storage, FriendGraphIndex friendGraphIndex,
+                               FilmRecommendationIndex recommendationIndex, FilmSearchIndex searchIndex,
+                               FilmCache filmCache, EntityVersions versions, LikeWriteBuffer likeBuffer) {
+        this.storage = storage;
+        this.friendGraphIndex = friendGraphIndex;
+        this.recommendationIndex = recommendationIndex;
+        this.searchIndex = searchIndex;
+        this.filmCache = filmCache;
+        this.versions = versions;
+        this.likeBuffer = likeBuffer;
+    }
+
+    public ImportResult importRecords(InputStream input) throws ValidationException {  //загрузка NDJSON
+        likeBuffer.flush();
+        try {
+            return storage.importRecords(input);
+        } finally {  //часть пакетов могла записаться и при ошибке
+            friendGraphIndex.reload();
+            recommendationIndex.reload();
+            searchIndex.reload();
+            filmCache.invalidateAll();
+            versions.allChanged();
+        }
+    }
+
+    public void exportRecords(OutputStream output) {  //выгрузка NDJSON
+        likeBuffer.flush();
+        storage.exportRecords(output);
+    }
+}
@@ -0,0 +1,71 @@
+package ru.yandex.practicum.filmorate.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//счётчики версий фильмов и пользователей для ETag. Сервисы увеличивают версию после каждого изменения,
+//контроллеры сверяют тег с If-None-Match до обращения к хранилищу.
+//Версии хранятся в полосах по id: изменение одной записи меняет тег и у записей той же полосы,
+//что стоит лишь лишнего полного ответа. Тег содержит случайный идентификатор запуска,
+//поэтому после перезапуска приложения теги клиентов не совпадут с новыми счётчиками
+@Component
+public class EntityVersions {
+
+    private static final int STRIPES = 1 << 14;
+
+    private final String bootId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final AtomicLong generation = new AtomicLong();  //меняется при массовых изменениях
+    private final AtomicLong filmListVersion = new AtomicLong();  //меняется при любом изменении фильмов и лайков
+    private final AtomicLong referenceDataVersion = new AtomicLong();
+    private final AtomicLongArray filmVersions = new AtomicLongArray(STRIPES);
+    private final AtomicLongArray userVersions = new AtomicLongArray(STRIPES);
+
+    public void filmChanged(long filmId) {  //изменение фильма или его лайков
+        filmVersions.incrementAndGet(stripe(filmId));
+        filmListVersion.incrementAndGet();
+    }
+
+    public void userChanged(long userId) {  //изменение пользователя или его друзей
+        userVersions.incrementAndGet(stripe(userId));
+    }
+
+    public void allChanged() {  //удаление всех фильмов или пользователей
+        generation.incrementAndGet();
+    }
+
+    public void referenceDataChanged() {  //перечитаны справочники: меняются и фильмы, содержащие их названия
+        referenceDataVersion.incrementAndGet();
+        generation.incrementAndGet();
+    }
+
+    public String filmTag(long filmId) {
+        return tag("film", filmVersions.get(stripe(filmId)));
+    }
+
+    public String userTag(long userId) {
+        return tag("user", userVersions.get(stripe(userId)));
+    }
+
+    public long getFilmListVersion() {  //растёт при любом изменении фильмов и лайков, включая массовые
+        return generation.get() + filmListVersion.get();
+    }
+
+    public String filmListTag() {  //тег списков, зависящих от всех фильмов, например рейтинга
+        return tag("films", filmListVersion.get());
+    }
+
+    public String referenceDataTag() {  //жанры и рейтинги MPA меняются только при перечитывании справочников
+        return tag("reference", referenceDataVersion.get());
+    }
+
+    private String tag(String kind, long version) {
+        return "\"" + kind + "-" + bootId + "-" + generation.get() + "-" + version + "\"";
+    }
+
+    private static int stripe(long id) {
+        return (int) (id ^ (id >>> 32)) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,37 @@
+package ru.yandex.practicum.filmorate.service;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.storage.film.FilmRecommendationIndex;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//рекомендации фильмов по лайкам пользователей со схожими вкусами, см. FilmRecommendationIndex
+@Service
+public class FilmRecommendationService {
+
+    private final FilmRecommendationIndex recommendationIndex;
+    private final FilmStorage filmStorage;
+    private final UserStorage userStorage;
+
+    public FilmRecommendationService(FilmRecommendationIndex recommendationIndex,
+                                     @Qualifier("filmDBStorage") FilmStorage filmStorage,
+                                     @Qualifier("userDbStorage") UserStorage userStorage) {
+        this.recommendationIndex = recommendationIndex;
+        this.filmStorage = filmStorage;
+        this.userStorage = userStorage;
+    }
+
+    public List<Film> getRecommendations(long userId, int limit) {  //не более limit рекомендованных фильмов
+        userStorage.getUserById(userId);
+        List<Long> filmIds = new ArrayList<>();
+        for (long filmId : recommendationIndex.recommend(userId, limit)) {
+            filmIds.add(filmId);
+        }
+        return filmStorage.getFilmsByIds(filmIds);
+    }
+}
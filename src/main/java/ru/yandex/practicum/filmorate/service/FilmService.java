@@ -7,47 +7,144 @@ import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeBatchItem;
+import ru.yandex.practicum.filmorate.model.LikeBatchResult;
 import ru.yandex.practicum.filmorate.model.RatingMPA;
+import ru.yandex.practicum.filmorate.storage.film.FilmRecommendationIndex;
+import ru.yandex.practicum.filmorate.storage.film.FilmSearchIndex;
 import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 @Service
 public class FilmService {
     @Autowired
     @Qualifier("filmDBStorage")
     private final FilmStorage filmStorage;
+    private final FilmRecommendationIndex recommendationIndex;
+    private final FilmSearchIndex searchIndex;
+    private final EntityVersions versions;
 
-    public FilmService(FilmStorage filmStorage) {
+    public FilmService(FilmStorage filmStorage, FilmRecommendationIndex recommendationIndex,
+                       FilmSearchIndex searchIndex, EntityVersions versions, LikeWriteBuffer likeBuffer,
+                       ReferenceDataRegistry referenceData) {
         this.filmStorage = filmStorage;
+        this.recommendationIndex = recommendationIndex;
+        this.searchIndex = searchIndex;
+        this.versions = versions;
+        likeBuffer.addRejectionListener(this::likeRejected);
+        referenceData.addRefreshListener(versions::referenceDataChanged);
     }
 
     public ResponseEntity<Film> addFilm(Film film) throws ValidationException {  //добавление фильма
-        return filmStorage.addFilm(film);
+        ResponseEntity<Film> response = filmStorage.addFilm(film);
+        searchIndex.put(response.getBody());
+        versions.filmChanged(response.getBody().getId());
+        return response;
     }
 
     public ResponseEntity<Film> updateFilm(Film film) throws ValidationException {  //обновление фильма
-        return filmStorage.updateFilm(film);
+        ResponseEntity<Film> response = filmStorage.updateFilm(film);
+        searchIndex.put(response.getBody());
+        versions.filmChanged(film.getId());
+        return response;
+    }
+
+    public List<Film> searchFilms(String query, int limit) {  //поиск по названию и описанию
+        List<Long> filmIds = new ArrayList<>();
+        for (long filmId : searchIndex.search(query, limit)) {
+            filmIds.add(filmId);
+        }
+        return filmStorage.getFilmsByIds(filmIds);
     }
 
     public List<Film> getAllFilms() {  //получение всех фильмов
         return filmStorage.getAllFilms();
     }
 
+    public List<Film> getFilmsPage(long afterId, int size) {  //получение страницы фильмов с id больше afterId
+        return filmStorage.getFilmsPage(afterId, size);
+    }
+
+    public void streamAllFilms(Consumer<Film> consumer) {  //поочерёдная выдача всех фильмов
+        filmStorage.streamAllFilms(consumer);
+    }
+
     public Film getFilmById(long filmId) {  //получение фильма по id
         return filmStorage.getFilmById(filmId);
     }
 
     public void clearFilmMap() {  //удаление всех фильмов
         filmStorage.clearFilmMap();
+        recommendationIndex.clear();
+        searchIndex.clear();
+        versions.allChanged();
     }
 
     public Film addLike(long filmId, long userId) {  //добавление лайка
-        return filmStorage.addLike(filmId, userId);
+        Film film = filmStorage.addLike(filmId, userId);
+        recommendationIndex.addLike(filmId, userId);
+        searchIndex.setPopularity(filmId, film.getLikes().size());
+        versions.filmChanged(filmId);
+        return film;
     }
 
     public Film deleteLike(long filmId, long userId) {  //удаление лайка
-        return filmStorage.deleteLike(filmId, userId);
+        Film film = filmStorage.deleteLike(filmId, userId);
+        recommendationIndex.deleteLike(filmId, userId);
+        searchIndex.setPopularity(filmId, film.getLikes().size());
+        versions.filmChanged(filmId);
+        return film;
+    }
+
+    public long getLikeCount(long filmId) {  //количество лайков фильма
+        return filmStorage.getLikeCount(filmId);
+    }
+
+    public long addLikeAndCount(long filmId, long userId) {  //добавление лайка, возвращается количество лайков
+        long likeCount = filmStorage.addLikeAndCount(filmId, userId);
+        recommendationIndex.addLike(filmId, userId);
+        searchIndex.setPopularity(filmId, (int) likeCount);
+        versions.filmChanged(filmId);
+        return likeCount;
+    }
+
+    public long deleteLikeAndCount(long filmId, long userId) {  //удаление лайка, возвращается количество лайков
+        long likeCount = filmStorage.deleteLikeAndCount(filmId, userId);
+        recommendationIndex.deleteLike(filmId, userId);
+        searchIndex.setPopularity(filmId, (int) likeCount);
+        versions.filmChanged(filmId);
+        return likeCount;
+    }
+
+    public LikeBatchResult addLikes(List<LikeBatchItem> items) {  //пакетное добавление лайков
+        List<LikeBatchItem> result = filmStorage.addLikes(items);
+        for (LikeBatchItem item : result) {
+            if (LikeBatchItem.ADDED.equals(item.getStatus())) {
+                recommendationIndex.addLike(item.getFilmId(), item.getUserId());
+                searchIndex.changePopularity(item.getFilmId(), 1);
+                versions.filmChanged(item.getFilmId());
+            }
+        }
+        return toLikeBatchResult(result);
+    }
+
+    public LikeBatchResult deleteLikes(List<LikeBatchItem> items) {  //пакетное удаление лайков
+        List<LikeBatchItem> result = filmStorage.deleteLikes(items);
+        for (LikeBatchItem item : result) {
+            if (LikeBatchItem.REMOVED.equals(item.getStatus())) {
+                recommendationIndex.deleteLike(item.getFilmId(), item.getUserId());
+                searchIndex.changePopularity(item.getFilmId(), -1);
+                versions.filmChanged(item.getFilmId());
+            }
+        }
+        return toLikeBatchResult(result);
     }
 
     public List<Film> getRatingOfFilms(Long number) throws ValidationException {  //вывод определённого колличества
@@ -70,4 +167,30 @@ public class FilmService {
     public List<Genre> getAllGenre() {  //вывод всех жанров
         return filmStorage.getAllGenre();
     }
+
+    public void refreshReferenceData() {  //перечитывание справочников после их изменения в базе
+        filmStorage.refreshReferenceData();
+        versions.referenceDataChanged();
+    }
+
+    //отложенный лайк или его удаление не записаны в базу: индексы возвращаются к её состоянию,
+    //версия фильма меняется, чтобы клиенты не держали ответ с отброшенным лайком
+    private void likeRejected(long filmId, long userId, boolean liked) {
+        if (liked) {
+            recommendationIndex.deleteLike(filmId, userId);
+            searchIndex.changePopularity(filmId, -1);
+        } else {
+            recommendationIndex.addLike(filmId, userId);
+            searchIndex.changePopularity(filmId, 1);
+        }
+        versions.filmChanged(filmId);
+    }
+
+    private LikeBatchResult toLikeBatchResult(List<LikeBatchItem> items) {  //подсчёт пар по статусам
+        Map<String, Integer> summary = new LinkedHashMap<>();
+        for (LikeBatchItem item : items) {
+            summary.merge(item.getStatus(), 1, Integer::sum);
+        }
+        return LikeBatchResult.builder().summary(summary).items(items).build();
+    }
 }
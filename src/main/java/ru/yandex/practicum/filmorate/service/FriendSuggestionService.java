@@ -0,0 +1,95 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+import ru.yandex.practicum.filmorate.utils.LongIntHashMap;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.LongStream;
+
+//"возможно, вы знакомы": друзья друзей пользователя, упорядоченные по количеству общих друзей.
+//Друзья обходятся параллельно, каждый поток считает совпадения в своей примитивной таблице.
+//У друзей с большим числом связей берётся не больше maxFanOut из них, а по истечении timeBudget
+//оставшиеся друзья пропускаются и результат строится по уже собранным данным
+@Slf4j
+@Service
+public class FriendSuggestionService {
+
+    private static final int PARALLEL_THRESHOLD = 64;  //с этого количества друзей обход идёт параллельно
+
+    private final UserStorage storage;
+    private final int maxFanOut;
+    private final long timeBudgetNanos;
+
+    public FriendSuggestionService(@Qualifier("userDbStorage") UserStorage storage,
+                                   @Value("${filmorate.suggestions.max-fan-out:1000}") int maxFanOut,
+                                   @Value("${filmorate.suggestions.time-budget:PT0.2S}") Duration timeBudget) {
+        this.storage = storage;
+        this.maxFanOut = maxFanOut;
+        this.timeBudgetNanos = timeBudget.toNanos();
+    }
+
+    public List<User> getSuggestions(long userId, int limit) {  //не более limit предложений для пользователя
+        storage.getUserById(userId);
+        long[] friendIds = storage.getFriendIds(userId);
+        long deadline = System.nanoTime() + timeBudgetNanos;
+
+        LongStream friends = Arrays.stream(friendIds);
+        if (friendIds.length >= PARALLEL_THRESHOLD) {
+            friends = friends.parallel();
+        }
+        LongIntHashMap mutualCounts = friends.collect(LongIntHashMap::new, (counts, friendId) -> {
+            if (System.nanoTime() < deadline) {
+                countFriendsOfFriend(storage.getFriendIds(friendId), counts);
+            }
+        }, LongIntHashMap::addAll);
+        if (System.nanoTime() >= deadline) {
+            log.debug("Поиск предложений для пользователя {} прерван по времени", userId);
+        }
+
+        //кандидаты с наибольшим числом общих друзей, кроме самого пользователя и его друзей
+        long[] topIds = mutualCounts.topKeys(limit,
+                candidateId -> candidateId == userId || Arrays.binarySearch(friendIds, candidateId) >= 0);
+        Map<Long, User> usersById = new HashMap<>();
+        for (User user : storage.getUsersByIds(sortedCopy(topIds))) {
+            usersById.put(user.getId(), user);
+        }
+        List<User> suggestions = new ArrayList<>();
+        for (long id : topIds) {
+            User user = usersById.get(id);
+            if (user != null) {
+                suggestions.add(user);
+            }
+        }
+        return suggestions;
+    }
+
+    //учёт друзей одного друга; у друзей с большим числом связей берётся равномерная выборка из maxFanOut
+    private void countFriendsOfFriend(long[] friendsOfFriend, LongIntHashMap counts) {
+        if (friendsOfFriend.length <= maxFanOut) {
+            for (long candidateId : friendsOfFriend) {
+                counts.add(candidateId, 1);
+            }
+            return;
+        }
+        double step = (double) friendsOfFriend.length / maxFanOut;
+        for (int i = 0; i < maxFanOut; i++) {
+            counts.add(friendsOfFriend[(int) (i * step)], 1);
+        }
+    }
+
+    private long[] sortedCopy(long[] ids) {
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+}
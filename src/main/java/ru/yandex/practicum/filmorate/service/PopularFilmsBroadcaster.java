@@ -0,0 +1,162 @@
+package ru.yandex.practicum.filmorate.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.PopularityDelta;
+import ru.yandex.practicum.filmorate.model.PopularityEntry;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//рассылка рейтинга фильмов подписчикам SSE: при подписке - текущий рейтинг (событие snapshot),
+//затем только изменившиеся места (событие delta). Изменения копятся до очередного такта: раз в interval
+//рейтинг вычисляется один раз для наибольшего запрошенного размера, если с прошлого такта менялись
+//фильмы или лайки, и каждая группа подписчиков с одинаковым размером получает одно и то же сообщение.
+//Сообщения отправляет отдельный поток по очереди: медленный клиент не держит блокировку и поток планировщика,
+//а каждый подписчик получает snapshot раньше delta
+@Slf4j
+@Service
+public class PopularFilmsBroadcaster {
+
+    private final FilmService filmService;
+    private final EntityVersions versions;
+    private final ObjectMapper objectMapper;
+    private final long timeoutMillis;
+
+    private final Map<Integer, Group> groups = new ConcurrentHashMap<>();
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "popular-stream-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long broadcastVersion = -1;
+
+    public PopularFilmsBroadcaster(FilmService filmService, EntityVersions versions, ObjectMapper objectMapper,
+                                   @Value("${filmorate.popular-stream.timeout:PT30M}") Duration timeout) {
+        this.filmService = filmService;
+        this.versions = versions;
+        this.objectMapper = objectMapper;
+        this.timeoutMillis = timeout.toMillis();
+    }
+
+    //подписка на рейтинг из count фильмов. Выполняется под той же блокировкой, что и такт рассылки,
+    //чтобы такт не удалил группу между её выбором и добавлением подписчика
+    public synchronized SseEmitter subscribe(int count) {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Group group = groups.computeIfAbsent(count, key -> new Group(key, rank(key)));
+        String snapshot = group.snapshotJson();
+        group.emitters.add(emitter);
+        emitter.onCompletion(() -> group.emitters.remove(emitter));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(error -> group.emitters.remove(emitter));
+        sender.execute(() -> group.send(List.of(emitter), "snapshot", snapshot));
+        return emitter;
+    }
+
+    @Scheduled(initialDelayString = "${filmorate.popular-stream.interval:PT1S}",
+            fixedDelayString = "${filmorate.popular-stream.interval:PT1S}")
+    public synchronized void broadcast() {  //один такт: пересчёт рейтинга и рассылка изменений
+        long version = versions.getFilmListVersion();
+        if (version == broadcastVersion) {
+            return;
+        }
+        broadcastVersion = version;
+        groups.values().removeIf(group -> group.emitters.isEmpty());
+        int maxCount = groups.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+        if (maxCount == 0) {
+            return;
+        }
+        List<Film> ranking = rank(maxCount);
+        for (Group group : groups.values()) {
+            group.publish(ranking.subList(0, Math.min(group.count, ranking.size())));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sender.shutdownNow();
+    }
+
+    public int getSubscriberCount() {
+        return groups.values().stream().mapToInt(group -> group.emitters.size()).sum();
+    }
+
+    private List<Film> rank(int count) {
+        try {
+            return filmService.getRatingOfFilms((long) count);
+        } catch (ValidationException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    private String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Не удалось сериализовать рейтинг", e);
+        }
+    }
+
+    private class Group {  //подписчики рейтинга одного размера и последний разосланный им рейтинг
+        private final int count;
+        private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+        private List<Film> ranking;
+
+        private Group(int count, List<Film> ranking) {
+            this.count = count;
+            this.ranking = ranking;
+        }
+
+        private String snapshotJson() {
+            List<PopularityEntry> entries = new ArrayList<>();
+            for (int i = 0; i < ranking.size(); i++) {
+                entries.add(PopularityEntry.builder().rank(i + 1).film(ranking.get(i)).build());
+            }
+            return toJson(entries);
+        }
+
+        private void publish(List<Film> newRanking) {
+            List<PopularityEntry> changed = new ArrayList<>();
+            for (int i = 0; i < newRanking.size(); i++) {
+                if (i >= ranking.size() || !newRanking.get(i).equals(ranking.get(i))) {
+                    changed.add(PopularityEntry.builder().rank(i + 1).film(newRanking.get(i)).build());
+                }
+            }
+            if (changed.isEmpty() && newRanking.size() == ranking.size()) {
+                return;
+            }
+            ranking = new ArrayList<>(newRanking);
+            String json = toJson(PopularityDelta.builder().size(newRanking.size()).changed(changed).build());
+            List<SseEmitter> recipients = new ArrayList<>(emitters);  //подписавшиеся позже получат snapshot
+            sender.execute(() -> send(recipients, "delta", json));
+        }
+
+        private void send(List<SseEmitter> recipients, String event, String json) {  //выполняется в потоке sender
+            for (SseEmitter emitter : recipients) {
+                try {
+                    emitter.send(SseEmitter.event().name(event).data(json, MediaType.APPLICATION_JSON));
+                } catch (IOException | IllegalStateException e) {  //клиент отключился
+                    emitters.remove(emitter);
+                    emitter.completeWithError(e);
+                    log.debug("Подписчик рейтинга отключён: {}", e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -6,53 +6,102 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.film.FilmCache;
+import ru.yandex.practicum.filmorate.storage.film.FilmRecommendationIndex;
+import ru.yandex.practicum.filmorate.storage.film.FilmSearchIndex;
+import ru.yandex.practicum.filmorate.storage.film.LikeWriteBuffer;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 @Service
 public class UserService {
     @Autowired
     @Qualifier("userDbStorage")
     private final UserStorage storage;
+    private final FilmRecommendationIndex recommendationIndex;
+    private final FilmSearchIndex searchIndex;
+    private final EntityVersions versions;
+    private final FilmCache filmCache;
+    private final LikeWriteBuffer likeBuffer;
 
-    public UserService(UserStorage storage) {
+    public UserService(UserStorage storage, FilmRecommendationIndex recommendationIndex,
+                       FilmSearchIndex searchIndex, EntityVersions versions, FilmCache filmCache,
+                       LikeWriteBuffer likeBuffer) {
         this.storage = storage;
+        this.recommendationIndex = recommendationIndex;
+        this.searchIndex = searchIndex;
+        this.versions = versions;
+        this.filmCache = filmCache;
+        this.likeBuffer = likeBuffer;
     }
 
-    public User addFriend(long user1Id, long user2Id) {  //добавление в друзья
-        return storage.addFriend(user1Id, user2Id);
+    public User addFriend(long user1Id, long user2Id) {  //добавление в друзья, статус дружбы меняется у обоих
+        User user = storage.addFriend(user1Id, user2Id);
+        versions.userChanged(user1Id);
+        versions.userChanged(user2Id);
+        return user;
     }
 
     public ResponseEntity<User> deleteFriend(Long user1Id, Long user2Id) {   //удаление друга
-        return storage.deleteFriend(user1Id, user2Id);
+        ResponseEntity<User> response = storage.deleteFriend(user1Id, user2Id);
+        versions.userChanged(user1Id);
+        versions.userChanged(user2Id);
+        return response;
     }
 
     public List<User> getFriends(Long userId) {  //получение списка друзей
         return storage.getFriends(userId);
     }
 
+    public long getFriendCount(long userId) {  //количество друзей
+        return storage.getFriendCount(userId);
+    }
+
     public List<User> getListOfMutualFriends(Long user1Id, Long user2Id) {  //получение списка общих друзей
         return storage.getListOfMutualFriends(user1Id, user2Id);
     }
 
+    public List<User> getListOfMutualFriends(Long user1Id, Long user2Id, Integer limit) {  //получение не более
+        // limit общих друзей
+        return storage.getListOfMutualFriends(user1Id, user2Id, limit);
+    }
+
     public ResponseEntity<User> addUser(User user) throws ValidationException {  //добавление пользователя
-        return storage.addUser(user);
+        ResponseEntity<User> response = storage.addUser(user);
+        versions.userChanged(response.getBody().getId());
+        return response;
     }
 
     public ResponseEntity<User> updateUser(User user) throws ValidationException {  //обновление пользователя
-        return storage.updateUser(user);
+        ResponseEntity<User> response = storage.updateUser(user);
+        versions.userChanged(user.getId());
+        return response;
     }
 
     public List<User> getAllFilms() {  //получение всех пользователей
         return storage.getAllUsers();
     }
 
+    public List<User> getUsersPage(long afterId, int size) {  //получение страницы пользователей с id больше afterId
+        return storage.getUsersPage(afterId, size);
+    }
+
+    public void streamAllUsers(Consumer<User> consumer) {  //поочерёдная выдача всех пользователей
+        storage.streamAllUsers(consumer);
+    }
+
     public User getUserById(long id) {  //получение пользователя по id
         return storage.getUserById(id);
     }
 
-    public void clearUserMap() { //удаление всех пользователей
+    public void clearUserMap() { //удаление всех пользователей вместе с их лайками
+        likeBuffer.discard();
         storage.clearUserMap();
+        recommendationIndex.clear();
+        searchIndex.reload();  //количество лайков фильмов обнулилось
+        filmCache.invalidateAll();
+        versions.allChanged();
     }
 }
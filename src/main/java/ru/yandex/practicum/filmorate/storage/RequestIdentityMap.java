@@ -0,0 +1,72 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.utils.LongHashSet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+//пользователи и факты их существования, уже загруженные в рамках текущего http-запроса, общие для
+//FilmDbStorage и UserDbStorage. Область открывает RequestIdentityMapInterceptor в потоке запроса;
+//вне запроса (планировщик, тесты хранилищ, бенчмарки) области нет и каждый вызов идёт в базу.
+//Внутри запроса один и тот же пользователь выдаётся одним экземпляром, изменения хранилище вносит в него
+//или сбрасывает запись. Фильмы сюда не попадают: их между запросами хранит FilmCache
+@Component
+public class RequestIdentityMap {
+
+    private final ThreadLocal<Scope> currentScope = new ThreadLocal<>();
+
+    public void begin() {
+        currentScope.set(new Scope());
+    }
+
+    public void end() {
+        currentScope.remove();
+    }
+
+    public User getUser(long userId) {  //пользователь, загруженный в этом запросе, или null
+        Scope scope = currentScope.get();
+        return scope == null ? null : scope.users.get(userId);
+    }
+
+    public void putUser(User user) {
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            scope.users.put(user.getId(), user);
+            scope.existingUserIds.add(user.getId());
+        }
+    }
+
+    public void evictUser(long userId) {  //данные пользователя изменились, факт существования остаётся
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            scope.users.remove(userId);
+        }
+    }
+
+    public boolean isExistingUser(long userId) {
+        Scope scope = currentScope.get();
+        return scope != null && scope.existingUserIds.contains(userId);
+    }
+
+    public void markExistingUser(long userId) {
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            scope.existingUserIds.add(userId);
+        }
+    }
+
+    public void clear() {  //удаление всех пользователей
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            scope.users.clear();
+            scope.existingUserIds.clear();
+        }
+    }
+
+    private static class Scope {
+        private final Map<Long, User> users = new HashMap<>();
+        private final LongHashSet existingUserIds = new LongHashSet();
+    }
+}
@@ -0,0 +1,35 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+//область RequestIdentityMap на время обработки http-запроса. При асинхронной выдаче (потоки, SSE)
+//область закрывается, когда обработчик отпускает поток: продолжение идёт в другом потоке уже без неё
+public class RequestIdentityMapInterceptor implements AsyncHandlerInterceptor {
+
+    private final RequestIdentityMap identityMap;
+
+    public RequestIdentityMapInterceptor(RequestIdentityMap identityMap) {
+        this.identityMap = identityMap;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        identityMap.begin();
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+                                               Object handler) {
+        identityMap.end();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        identityMap.end();
+    }
+}
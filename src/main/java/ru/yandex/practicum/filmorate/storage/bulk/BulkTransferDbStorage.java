@@ -0,0 +1,541 @@
+package ru.yandex.practicum.filmorate.storage.bulk;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.annotation.Timed;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.ImportResult;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.utils.LongHashSet;
+import ru.yandex.practicum.filmorate.utils.LongLongHashMap;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+//загрузка и выгрузка всех пользователей, фильмов, лайков и дружб в формате NDJSON: одна запись JSON на строку,
+//тип записи в поле "type". Записи читаются по одной и копятся в пакеты до BATCH_SIZE строк, каждый пакет
+//записывается одним jdbc-пакетом в своей транзакции, поэтому при ошибке уже записанные пакеты сохраняются.
+//Пользователи и фильмы получают новые id, id из файла в лайках и дружбах заменяются на них, так что
+//пользователи и фильмы должны идти в файле раньше ссылающихся на них связей. Связи копятся в свои пакеты
+//независимо от пользователей и фильмов, поэтому записи разных типов можно чередовать. Память расходуется только
+//на текущие пакеты и на соответствие id (21-43 байта на пользователя или фильм), но не на связи.
+//Выгрузка пишет строки прямо из ResultSet в том же порядке, что нужен для загрузки.
+//Пользователи и фильмы проверяются по тем же правилам, что и при создании через api, некорректные записи
+//и дружба с самим собой пропускаются и попадают в skipped
+@Slf4j
+@Timed("filmorate.storage")
+@Repository
+public class BulkTransferDbStorage {
+
+    public static final String USER = "user";
+    public static final String FILM = "film";
+    public static final String LIKE = "like";
+    public static final String FRIENDSHIP = "friendship";
+
+    private static final int BATCH_SIZE = 5000;
+    private static final int EXPORT_FETCH_SIZE = 1000;
+    private static final int CONFIRMED_STATUS_ID = 1;
+    private static final int UNCONFIRMED_STATUS_ID = 2;
+
+    private static final String SQL_INSERT_USER = "insert into \"user\" (login, name, email, birthday) "
+            + "values (?, ?, ?, ?)";
+    private static final String SQL_INSERT_FILM = "insert into film (name, description, release_date, duration, "
+            + "rating_id) values (?, ?, ?, ?, ?)";
+    private static final String SQL_MERGE_FRIENDSHIP = "merge into friends (user_id, friend_id, friendship_status_id) "
+            + "key (user_id, friend_id) values (?, ?, ?)";
+    //friend_count: исходящие заявки и подтверждённые входящие без встречной строки
+    private static final String SQL_RECOUNT_FRIENDS = "update \"user\" set friend_count = "
+            + "(select count(*) from friends as f where f.user_id = \"user\".user_id) "
+            + "+ (select count(*) from friends as f where f.friend_id = \"user\".user_id "
+            + "and f.friendship_status_id = " + CONFIRMED_STATUS_ID + " and not exists (select 1 from friends as r "
+            + "where r.user_id = f.friend_id and r.friend_id = f.user_id)) where user_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate snapshotTemplate;
+
+    public BulkTransferDbStorage(JdbcTemplate jdbcTemplate, ObjectMapper objectMapper, Validator validator,
+                                 PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.snapshotTemplate = new TransactionTemplate(transactionManager);
+        snapshotTemplate.setReadOnly(true);
+        snapshotTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    }
+
+    public ImportResult importRecords(InputStream input) throws ValidationException {  //загрузка NDJSON
+        long start = System.nanoTime();
+        ImportRun run = new ImportRun();
+        try (MappingIterator<JsonNode> records = objectMapper.readerFor(JsonNode.class).readValues(input)) {
+            while (records.hasNextValue()) {
+                JsonNode record = records.nextValue();
+                run.line = records.getCurrentLocation().getLineNr();
+                run.add(record);
+            }
+            run.flushAll();
+        } catch (JsonProcessingException e) {
+            throw new ValidationException("Некорректный JSON в строке " + e.getLocation().getLineNr() + ": "
+                    + e.getOriginalMessage());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        long recordsPerSecond = run.records * 1000 / elapsedMillis;
+        log.info("Загрузка NDJSON: {} записей за {} мс, {} записей в секунду, пропущено {}",
+                run.records, elapsedMillis, recordsPerSecond, run.skipped);
+        return ImportResult.builder()
+                .records(run.records)
+                .imported(run.imported)
+                .skipped(run.skipped)
+                .elapsedMillis(elapsedMillis)
+                .recordsPerSecond(recordsPerSecond)
+                .build();
+    }
+
+    //выгрузка NDJSON: пользователи, фильмы, лайки и дружбы из одного снимка базы
+    public void exportRecords(OutputStream output) {
+        snapshotTemplate.executeWithoutResult(status -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(output)) {
+                generator.setRootValueSeparator(new SerializedString("\n"));
+                exportTable(generator, "select user_id, login, name, email, birthday from \"user\" order by user_id",
+                        resultSet -> {
+                            generator.writeStartObject();
+                            generator.writeStringField("type", USER);
+                            generator.writeNumberField("id", resultSet.getLong("user_id"));
+                            generator.writeStringField("login", resultSet.getString("login"));
+                            generator.writeStringField("name", resultSet.getString("name"));
+                            generator.writeStringField("email", resultSet.getString("email"));
+                            writeDateField(generator, "birthday", resultSet.getDate("birthday"));
+                            generator.writeEndObject();
+                        });
+                exportTable(generator, "select f.film_id, f.name, f.description, f.release_date, f.duration, "
+                        + "f.rating_id, (select listagg(gf.genre_id, ',') within group (order by gf.genre_of_film_id) "
+                        + "from genre_of_film as gf where gf.film_id = f.film_id) as genre_ids "
+                        + "from film as f order by f.film_id", resultSet -> {
+                            generator.writeStartObject();
+                            generator.writeStringField("type", FILM);
+                            generator.writeNumberField("id", resultSet.getLong("film_id"));
+                            generator.writeStringField("name", resultSet.getString("name"));
+                            generator.writeStringField("description", resultSet.getString("description"));
+                            writeDateField(generator, "releaseDate", resultSet.getDate("release_date"));
+                            generator.writeNumberField("duration", resultSet.getInt("duration"));
+                            generator.writeObjectFieldStart("mpa");
+                            generator.writeNumberField("id", resultSet.getInt("rating_id"));
+                            generator.writeEndObject();
+                            generator.writeArrayFieldStart("genres");
+                            String genreIds = resultSet.getString("genre_ids");
+                            if (genreIds != null && !genreIds.isEmpty()) {
+                                for (String genreId : genreIds.split(",")) {
+                                    generator.writeStartObject();
+                                    generator.writeNumberField("id", Integer.parseInt(genreId));
+                                    generator.writeEndObject();
+                                }
+                            }
+                            generator.writeEndArray();
+                            generator.writeEndObject();
+                        });
+                exportTable(generator, "select film_id, user_id from likes order by likes_id", resultSet -> {
+                    generator.writeStartObject();
+                    generator.writeStringField("type", LIKE);
+                    generator.writeNumberField("filmId", resultSet.getLong("film_id"));
+                    generator.writeNumberField("userId", resultSet.getLong("user_id"));
+                    generator.writeEndObject();
+                });
+                exportTable(generator, "select user_id, friend_id, friendship_status_id from friends "
+                        + "order by friends_id", resultSet -> {
+                            generator.writeStartObject();
+                            generator.writeStringField("type", FRIENDSHIP);
+                            generator.writeNumberField("userId", resultSet.getLong("user_id"));
+                            generator.writeNumberField("friendId", resultSet.getLong("friend_id"));
+                            generator.writeBooleanField("confirmed",
+                                    resultSet.getInt("friendship_status_id") == CONFIRMED_STATUS_ID);
+                            generator.writeEndObject();
+                        });
+                generator.writeRaw('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private interface RowWriter {
+        void write(ResultSet resultSet) throws IOException, SQLException;
+    }
+
+    private void exportTable(JsonGenerator generator, String sql, RowWriter writer) {
+        jdbcTemplate.query(connection -> {
+            PreparedStatement stmt = connection.prepareStatement(sql);
+            stmt.setFetchSize(EXPORT_FETCH_SIZE);
+            return stmt;
+        }, (RowCallbackHandler) resultSet -> {
+            try {
+                writer.write(resultSet);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            generator.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeDateField(JsonGenerator generator, String name, Date date) throws IOException {
+        if (date == null) {
+            generator.writeNullField(name);
+        } else {
+            generator.writeStringField(name, date.toLocalDate().toString());
+        }
+    }
+
+    private class ImportRun {  //состояние одной загрузки
+        private final LongLongHashMap userIds = new LongLongHashMap();
+        private final LongLongHashMap filmIds = new LongLongHashMap();
+        private final Map<String, Long> imported = new LinkedHashMap<>();
+        private final List<JsonNode> users = new ArrayList<>();
+        private final List<JsonNode> films = new ArrayList<>();
+        private final LongHashSet pendingUserIds = new LongHashSet();  //id из файла для users и films
+        private final LongHashSet pendingFilmIds = new LongHashSet();
+        private final List<long[]> likes = new ArrayList<>();
+        private final List<long[]> friendships = new ArrayList<>();
+        private long records;
+        private long skipped;
+        private int line;
+
+        private ImportRun() {
+            for (String type : List.of(USER, FILM, LIKE, FRIENDSHIP)) {
+                imported.put(type, 0L);
+            }
+        }
+
+        private void add(JsonNode record) throws ValidationException {
+            records++;
+            String type = record.path("type").asText();
+            switch (type) {
+                case USER:
+                    requireFields(record, "id", "login", "email");
+                    if (!isValid(record, User.class, BulkTransferDbStorage::checkUser)) {
+                        break;
+                    }
+                    users.add(record);
+                    pendingUserIds.add(record.path("id").asLong());
+                    if (users.size() >= BATCH_SIZE) {
+                        flushUsers();
+                    }
+                    break;
+                case FILM:
+                    requireFields(record, "id", "name", "mpa");
+                    if (!isValid(record, Film.class, BulkTransferDbStorage::checkFilm)) {
+                        break;
+                    }
+                    films.add(record);
+                    pendingFilmIds.add(record.path("id").asLong());
+                    if (films.size() >= BATCH_SIZE) {
+                        flushFilms();
+                    }
+                    break;
+                case LIKE:
+                    requireFields(record, "filmId", "userId");
+                    addLink(likes, isFilmKnown(record.path("filmId").asLong()), record.path("filmId").asLong(),
+                            isUserKnown(record.path("userId").asLong()), record.path("userId").asLong(), 0);
+                    if (likes.size() >= BATCH_SIZE) {
+                        flushLikes();
+                    }
+                    break;
+                case FRIENDSHIP:
+                    requireFields(record, "userId", "friendId");
+                    if (record.path("userId").asLong() == record.path("friendId").asLong()) {
+                        skip("пользователь не может дружить сам с собой");
+                        break;
+                    }
+                    addLink(friendships, isUserKnown(record.path("userId").asLong()), record.path("userId").asLong(),
+                            isUserKnown(record.path("friendId").asLong()), record.path("friendId").asLong(),
+                            record.path("confirmed").asBoolean() ? CONFIRMED_STATUS_ID : UNCONFIRMED_STATUS_ID);
+                    if (friendships.size() >= BATCH_SIZE) {
+                        flushFriendships();
+                    }
+                    break;
+                default:
+                    throw new ValidationException("Неизвестный тип записи в строке " + line + ": " + type);
+            }
+        }
+
+        //связь между записями, которые уже встречались в файле; id из файла заменяются на новые при записи пакета
+        private void addLink(List<long[]> links, boolean firstKnown, long firstId, boolean secondKnown, long secondId,
+                             long statusId) {
+            if (!firstKnown || !secondKnown) {
+                skipped++;
+                return;
+            }
+            links.add(new long[]{firstId, secondId, statusId});
+        }
+
+        private boolean isUserKnown(long id) {
+            return userIds.get(id) != 0 || pendingUserIds.contains(id);
+        }
+
+        private boolean isFilmKnown(long id) {
+            return filmIds.get(id) != 0 || pendingFilmIds.contains(id);
+        }
+
+        //id из файла в пакете связей заменяются на новые, пользователи и фильмы пакетов записываются перед этим
+        private void resolveLinks(List<long[]> links, LongLongHashMap firstIds, LongLongHashMap secondIds)
+                throws ValidationException {
+            flushEntities();
+            for (long[] link : links) {
+                link[0] = firstIds.get(link[0]);
+                link[1] = secondIds.get(link[1]);
+            }
+        }
+
+        //проверка аннотаций модели и правил checkEnteredData хранилища, некорректная запись пропускается
+        private <T> boolean isValid(JsonNode record, Class<T> type, Function<T, String> check) {
+            String error;
+            try {
+                T entity = objectMapper.treeToValue(record, type);
+                Set<ConstraintViolation<T>> violations = validator.validate(entity);
+                error = violations.isEmpty() ? check.apply(entity) : violations.iterator().next().getMessage();
+            } catch (JsonProcessingException e) {
+                error = e.getOriginalMessage();
+            }
+            if (error == null) {
+                return true;
+            }
+            skip(error);
+            return false;
+        }
+
+        private void skip(String reason) {
+            skipped++;
+            log.debug("Запись в строке {} пропущена: {}", line, reason);
+        }
+
+        private void requireFields(JsonNode record, String... fields) throws ValidationException {
+            for (String field : fields) {
+                if (record.path(field).isMissingNode() || record.path(field).isNull()) {
+                    throw new ValidationException("В строке " + line + " нет поля " + field);
+                }
+            }
+        }
+
+        private void flushAll() throws ValidationException {
+            flushEntities();
+            flushLikes();
+            flushFriendships();
+        }
+
+        private void flushEntities() throws ValidationException {
+            flushUsers();
+            flushFilms();
+        }
+
+        private void flushUsers() throws ValidationException {
+            if (users.isEmpty()) {
+                return;
+            }
+            long[] newIds = inTransaction(() -> insertReturningIds(SQL_INSERT_USER, "user_id", users, (stmt, user) -> {
+                String login = user.path("login").asText();
+                String name = user.path("name").asText("");
+                stmt.setString(1, login);
+                stmt.setString(2, name.isBlank() ? login : name);
+                stmt.setString(3, user.path("email").asText());
+                setDate(stmt, 4, user.path("birthday"));
+            }));
+            for (int i = 0; i < newIds.length; i++) {
+                userIds.put(users.get(i).path("id").asLong(), newIds[i]);
+            }
+            imported.merge(USER, (long) users.size(), Long::sum);
+            users.clear();
+            pendingUserIds.clear();
+        }
+
+        private void flushFilms() throws ValidationException {
+            if (films.isEmpty()) {
+                return;
+            }
+            long[] newIds = inTransaction(() -> {
+                long[] ids = insertReturningIds(SQL_INSERT_FILM, "film_id", films, (stmt, film) -> {
+                    stmt.setString(1, film.path("name").asText());
+                    stmt.setString(2, film.path("description").asText(null));
+                    setDate(stmt, 3, film.path("releaseDate"));
+                    stmt.setInt(4, film.path("duration").asInt());
+                    stmt.setInt(5, film.path("mpa").path("id").asInt());
+                });
+                List<Object[]> genres = new ArrayList<>();
+                for (int i = 0; i < ids.length; i++) {
+                    Set<Integer> genreIds = new LinkedHashSet<>();
+                    for (JsonNode genre : films.get(i).path("genres")) {
+                        genreIds.add(genre.path("id").asInt());
+                    }
+                    for (Integer genreId : genreIds) {
+                        genres.add(new Object[]{ids[i], genreId});
+                    }
+                }
+                jdbcTemplate.batchUpdate("insert into genre_of_film (film_id, genre_id) values (?, ?)", genres);
+                return ids;
+            });
+            for (int i = 0; i < newIds.length; i++) {
+                filmIds.put(films.get(i).path("id").asLong(), newIds[i]);
+            }
+            imported.merge(FILM, (long) films.size(), Long::sum);
+            films.clear();
+            pendingFilmIds.clear();
+        }
+
+        private void flushLikes() throws ValidationException {  //повторные лайки не дублируются, like_count
+            // затронутых фильмов пересчитывается
+            if (likes.isEmpty()) {
+                return;
+            }
+            resolveLinks(likes, filmIds, userIds);
+            inTransaction(() -> {
+                jdbcTemplate.batchUpdate("merge into likes (film_id, user_id) key (film_id, user_id) values (?, ?)",
+                        likes, likes.size(), (stmt, like) -> {
+                            stmt.setLong(1, like[0]);
+                            stmt.setLong(2, like[1]);
+                        });
+                Set<Long> changedFilms = new LinkedHashSet<>();
+                for (long[] like : likes) {
+                    changedFilms.add(like[0]);
+                }
+                jdbcTemplate.batchUpdate("update film set like_count = "
+                                + "(select count(*) from likes where likes.film_id = film.film_id) where film_id = ?",
+                        new ArrayList<>(changedFilms), changedFilms.size(), (stmt, filmId) -> stmt.setLong(1, filmId));
+                return null;
+            });
+            imported.merge(LIKE, (long) likes.size(), Long::sum);
+            likes.clear();
+        }
+
+        private void flushFriendships() throws ValidationException {  //friend_count обоих пользователей каждой
+            // связи пересчитывается
+            if (friendships.isEmpty()) {
+                return;
+            }
+            resolveLinks(friendships, userIds, userIds);
+            inTransaction(() -> {
+                jdbcTemplate.batchUpdate(SQL_MERGE_FRIENDSHIP, friendships, friendships.size(),
+                        (stmt, friendship) -> {
+                            stmt.setLong(1, friendship[0]);
+                            stmt.setLong(2, friendship[1]);
+                            stmt.setInt(3, (int) friendship[2]);
+                        });
+                Set<Long> changedUsers = new LinkedHashSet<>();
+                for (long[] friendship : friendships) {
+                    changedUsers.add(friendship[0]);
+                    changedUsers.add(friendship[1]);
+                }
+                jdbcTemplate.batchUpdate(SQL_RECOUNT_FRIENDS, new ArrayList<>(changedUsers), changedUsers.size(),
+                        (stmt, userId) -> stmt.setLong(1, userId));
+                return null;
+            });
+            imported.merge(FRIENDSHIP, (long) friendships.size(), Long::sum);
+            friendships.clear();
+        }
+
+        //пакет в отдельной транзакции; ошибка базы, например неизвестный рейтинг, сообщается с номером строки
+        private <T> T inTransaction(BatchWork<T> work) throws ValidationException {
+            try {
+                return transactionTemplate.execute(status -> work.run());
+            } catch (DataAccessException e) {
+                throw new ValidationException("Пакет записей до строки " + line + " не загружен: "
+                        + e.getMostSpecificCause().getMessage());
+            } catch (DateTimeException e) {
+                throw new ValidationException("Пакет записей до строки " + line + " не загружен: " + e.getMessage());
+            }
+        }
+    }
+
+    //ошибка или null. Дата рождения обязательна: через api пользователь без неё не сохраняется,
+    //и чтение пользователей её ожидает
+    private static String checkUser(User user) {
+        if (user.getBirthday() == null) {
+            return "Не задана дата рождения";
+        }
+        if (user.getLogin().contains(" ")) {
+            return "В логине не должно быть пробелов";
+        }
+        return null;
+    }
+
+    private static String checkFilm(Film film) {  //ошибка или null, дата выхода обязательна, как дата рождения
+        if (film.getReleaseDate() == null) {
+            return "Не задана дата выхода фильма";
+        }
+        if (film.getReleaseDate().isBefore(LocalDate.of(1895, 12, 28))) {
+            return "Дата создания фильма не может быть раньше 28.12.1895";
+        }
+        if (film.getDuration() != null && film.getDuration().isNegative()) {
+            return "Продолжительность не может быть отрицательной";
+        }
+        return null;
+    }
+
+    private interface BatchWork<T> {
+        T run();
+    }
+
+    private interface RowBinder {
+        void bind(PreparedStatement stmt, JsonNode record) throws SQLException;
+    }
+
+    //пакетная вставка с получением сгенерированных id в порядке строк пакета
+    private long[] insertReturningIds(String sql, String idColumn, List<JsonNode> rows, RowBinder binder) {
+        return jdbcTemplate.execute((ConnectionCallback<long[]>) connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(sql, new String[]{idColumn})) {
+                for (JsonNode row : rows) {
+                    binder.bind(stmt, row);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                long[] ids = new long[rows.size()];
+                try (ResultSet keys = stmt.getGeneratedKeys()) {
+                    for (int i = 0; i < ids.length && keys.next(); i++) {
+                        ids[i] = keys.getLong(1);
+                    }
+                }
+                return ids;
+            }
+        });
+    }
+
+    private static void setDate(PreparedStatement stmt, int index, JsonNode value) throws SQLException {
+        stmt.setDate(index, Date.valueOf(LocalDate.parse(value.asText())));  //наличие даты проверено при чтении
+    }
+}
@@ -0,0 +1,81 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.yandex.practicum.filmorate.model.Film;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.LongFunction;
+
+//кэш собранных фильмов по id перед FilmDbStorage. Размер ограничен примерным объёмом в куче,
+//вытеснение учитывает частоту обращений (W-TinyLFU в Caffeine).
+//Закэшированный экземпляр наружу не выдаётся: каждый вызов получает свою копию, которую можно менять.
+//Копия стоит O(жанров): таблица лайков общая с кэшем и копируется, только если вызывающий её изменит.
+//Запись сбрасывается сразу и ещё раз после фиксации транзакции, чтобы параллельное чтение
+//не вернуло в кэш данные, которые транзакция уже изменила
+@Component
+public class FilmCache implements MeterBinder {
+
+    private static final int FILM_BASE_BYTES = 256;  //объект фильма, рейтинг, даты и пустые коллекции
+    private static final int GENRE_BYTES = 48;
+
+    private final Cache<Long, Film> cache;
+
+    public FilmCache(@Value("${filmorate.film-cache.max-bytes:67108864}") long maxBytes) {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Long filmId, Film film) -> estimatedBytes(film))
+                .recordStats()
+                .build();
+    }
+
+    public Film get(long filmId, LongFunction<Film> loader) {  //копия фильма из кэша или загруженного loader
+        return cache.get(filmId, loader::apply).copy();
+    }
+
+    public void invalidate(long filmId) {
+        invalidate(List.of(filmId));
+    }
+
+    public void invalidate(Collection<Long> filmIds) {
+        runNowAndAfterCommit(() -> cache.invalidateAll(filmIds));
+    }
+
+    public void invalidateAll() {
+        runNowAndAfterCommit(cache::invalidateAll);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {  //cache.gets с result=hit/miss, cache.evictions, cache.size
+        CaffeineCacheMetrics.monitor(registry, cache, "films");
+    }
+
+    private void runNowAndAfterCommit(Runnable action) {
+        action.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        }
+    }
+
+    private static int estimatedBytes(Film film) {
+        long bytes = FILM_BASE_BYTES + film.getLikes().estimatedBytes() + (long) film.getGenres().size() * GENRE_BYTES;
+        bytes += 2L * film.getName().length();
+        if (film.getDescription() != null) {
+            bytes += 2L * film.getDescription().length();
+        }
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+}
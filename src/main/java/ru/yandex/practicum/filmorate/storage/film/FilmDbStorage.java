@@ -1,37 +1,94 @@
 package ru.yandex.practicum.filmorate.storage.film;
 
+import io.micrometer.core.annotation.Timed;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import ru.yandex.practicum.filmorate.exception.*;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeBatchItem;
 import ru.yandex.practicum.filmorate.model.RatingMPA;
+import ru.yandex.practicum.filmorate.storage.RequestIdentityMap;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
 
+import java.sql.BatchUpdateException;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 @Slf4j
+@Timed("filmorate.storage")
 @Repository("filmDBStorage")
 public class FilmDbStorage implements FilmStorage {
 
-    private final JdbcTemplate jdbcTemplate;
+    private static final String SQL_SELECT_FILMS = "select f.film_id, f.name, f.description, f.release_date, "
+            + "f.duration, f.rating_id from film as f";
+
+    //фильмы вместе с id жанров и лайков, собранными в строки, для потоковой выдачи без догрузки
+    private static final String SQL_STREAM_FILMS = "select f.film_id, f.name, f.description, f.release_date, "
+            + "f.duration, f.rating_id, "
+            + "(select listagg(gf.genre_id, ',') within group (order by gf.genre_of_film_id) "
+            + "from genre_of_film as gf where gf.film_id = f.film_id) as genre_ids, "
+            + "(select listagg(l.user_id, ',') from likes as l where l.film_id = f.film_id) as like_ids "
+            + "from film as f order by f.film_id";
+
+    //вставка лайка, если его ещё нет: количество изменённых строк 1 - лайк добавлен, 0 - уже был.
+    //Если ту же пару вставляет незавершённая параллельная транзакция, запрос после её фиксации
+    //завершается нарушением уникального ключа - лайк тоже уже есть
+    private static final String SQL_MERGE_LIKE = "merge into likes as l "
+            + "using (values (cast(? as bigint), cast(? as bigint))) as s (film_id, user_id) "
+            + "on l.film_id = s.film_id and l.user_id = s.user_id "
+            + "when not matched then insert (film_id, user_id) values (s.film_id, s.user_id)";
+
+    private static final String SQL_STATE_UNIQUE_VIOLATION = "23505";
+
+    private static final int STREAM_FETCH_SIZE = 500;
+
+    //наибольшее количество id в одном условии in (...)
+    private static final int MAX_IN_LIST_SIZE = 1000;
 
-    public FilmDbStorage(JdbcTemplate jdbcTemplate) {
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+    private final ReferenceDataRegistry referenceData;
+    private final FilmCache filmCache;
+    private final LikeWriteBuffer likeBuffer;
+    private final RequestIdentityMap identityMap;
+
+    public FilmDbStorage(JdbcTemplate jdbcTemplate, ReferenceDataRegistry referenceData, FilmCache filmCache,
+                         LikeWriteBuffer likeBuffer, RequestIdentityMap identityMap) {
         this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.referenceData = referenceData;
+        this.filmCache = filmCache;
+        this.likeBuffer = likeBuffer;
+        this.identityMap = identityMap;
     }
 
     @Override  //добавление фильма
@@ -53,23 +110,22 @@ public class FilmDbStorage implements FilmStorage {
 
         film.setId(filmId);
 
-        addGenresToBDAndAddTheirName(film);
-        addMPAName(film);
+        addGenresToBD(film);
 
         log.debug("Добавление фильма: {}", film.getName());
         return new ResponseEntity<>(film, HttpStatus.CREATED);
     }
 
-    @Override  //обновление фильма
+    @Override  //обновление фильма: постоянное число запросов независимо от количества жанров
+    @Transactional
     public ResponseEntity<Film> updateFilm(Film film) throws ValidationException {
         checkEnteredData(film);
-        checkFilmId(film.getId());
 
         String sql = "update film set " +
                 "film_id = ?, name = ?, description = ?, release_date = ?, duration = ?, rating_id = ? " +
                 "where film_id = ?";
 
-        jdbcTemplate.update(sql,
+        int updatedFilms = jdbcTemplate.update(sql,
                 film.getId(),
                 film.getName(),
                 film.getDescription(),
@@ -77,161 +133,272 @@ public class FilmDbStorage implements FilmStorage {
                 film.getDuration(),
                 film.getMpa().getId(),
                 film.getId());
+        if (updatedFilms == 0) {  //существование фильма проверяется самим обновлением
+            throw new FilmNotFoundException("Фильма с таким id не существует");
+        }
 
-        String sqlForDeleteAllGenres = "delete from genre_of_film where film_id = ?";
-        jdbcTemplate.update(sqlForDeleteAllGenres, film.getId());
-
-        addGenresToBDAndAddTheirName(film);
-        addMPAName(film);
+        updateGenresInBD(film);
         addLikesToFilm(film);
+        likeBuffer.applyPending(film);
+        filmCache.invalidate(film.getId());
 
         log.debug("Обновление фильма: {}", film.getName());
         return new ResponseEntity<>(film, HttpStatus.OK);
     }
 
     @Override  //получение всех фильмов
+    @Transactional(readOnly = true)
     public List<Film> getAllFilms() {
 
-        String sql = "select * from film";
+        String sql = SQL_SELECT_FILMS + " order by f.film_id";
         List<Film> filmList = jdbcTemplate.query(sql, this::mapRowToFilm);
 
-        for (Film film : filmList) {
-            addGenreToFilm(film);
-            addLikesToFilm(film);
-        }
+        addGenresAndLikesToAllFilms(filmList);
         return filmList;
     }
 
-    @Override  //получение фильма по id
-    public Film getFilmById(long filmId) {
-        checkFilmId(filmId);
+    @Override  //получение страницы фильмов с id больше afterId
+    @Transactional(readOnly = true)
+    public List<Film> getFilmsPage(long afterId, int size) {
+        String sql = SQL_SELECT_FILMS + " where f.film_id > ? order by f.film_id limit ?";
+        List<Film> filmList = jdbcTemplate.query(sql, this::mapRowToFilm, afterId, size);
 
-        String sql = "select * from film where film_id = ?";
-        Film film = jdbcTemplate.queryForObject(sql, this::mapRowToFilm, filmId);
+        addGenresAndLikesToFilms(filmList);
+        return filmList;
+    }
 
-        addGenreToFilm(film);
-        addLikesToFilm(film);
+    @Override  //поочерёдная выдача всех фильмов без накопления в памяти
+    public void streamAllFilms(Consumer<Film> consumer) {
+        jdbcTemplate.query(connection -> {
+            PreparedStatement stmt = connection.prepareStatement(SQL_STREAM_FILMS);
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+            return stmt;
+        }, (RowCallbackHandler) resultSet -> {
+            Film film = mapRowToFilm(resultSet, 0);
+            for (String genreId : splitIds(resultSet.getString("genre_ids"))) {
+                film.addGenre(referenceData.getGenreById(Integer.valueOf(genreId)));
+            }
+            for (String userId : splitIds(resultSet.getString("like_ids"))) {
+                film.addLike(Long.parseLong(userId));
+            }
+            consumer.accept(film);
+        });
+    }
 
-        return film;
+    @Override  //получение фильма по id, собранный фильм берётся из кэша, лайки - с учётом буфера
+    public Film getFilmById(long filmId) {
+        return likeBuffer.readConsistently(() -> likeBuffer.applyPending(filmCache.get(filmId, this::loadFilmById)));
+    }
+
+    private Film loadFilmById(long filmId) {
+        String sql = SQL_SELECT_FILMS + " where f.film_id = ?";
+        List<Film> filmList = jdbcTemplate.query(sql, this::mapRowToFilm, filmId);
+        if (filmList.isEmpty()) {
+            throw new FilmNotFoundException("Фильма с таким id не существует");
+        }
+
+        addGenresAndLikesToFilms(filmList);
+        return filmList.get(0);
     }
 
     @Override  //удаление всех фильмов
     public void clearFilmMap() {
-        String sql = "delete from film";
-        jdbcTemplate.update(sql);
+        likeBuffer.discard();
+        String sqlForLikes = "delete from likes";
+        jdbcTemplate.update(sqlForLikes);
 
         String sqlForGenreOfFilm = "delete from genre_of_film";
         jdbcTemplate.update(sqlForGenreOfFilm);
 
-        String sqlForLikes = "delete from likes";
-        jdbcTemplate.update(sqlForLikes);
+        String sql = "delete from film";
+        jdbcTemplate.update(sql);
+        filmCache.invalidateAll();
     }
 
-    @Override   //добавление лайка
+    @Override   //добавление лайка, существование пользователя проверяет внешний ключ таблицы likes
+    @Transactional
     public Film addLike(long filmId, long userId) {
-        checkFilmId(filmId);
-        checkUserId(userId);
-
-        String sqlForFilm = "select * from film where film_id = ?";
-        Film film = jdbcTemplate.queryForObject(sqlForFilm, this::mapRowToFilm, filmId);
+        if (likeBuffer.isEnabled()) {
+            return bufferLike(filmId, userId, true);
+        }
+        Film film = getFilmById(filmId);
 
-        addGenreToFilm(film);
-        addLikesToFilm(film);
+        if (!film.getLikes().contains(userId) && insertLike(filmId, userId)) {
+            String sqlForLikeCount = "update film set like_count = like_count + 1 where film_id = ?";
+            jdbcTemplate.update(sqlForLikeCount, filmId);
+            filmCache.invalidate(filmId);
+        }
 
         film.addLike(userId);
-
-        String sql = "insert into likes (film_id, user_id) values (?, ?)";
-        jdbcTemplate.update(sql, filmId, userId);
         return film;
     }
 
     @Override   //удаление лайка
+    @Transactional
     public Film deleteLike(long filmId, long userId) {
-        checkFilmId(filmId);
-        checkUserId(userId);
-
-        String sqlForFilm = "select * from film where film_id = ?";
-        Film film = jdbcTemplate.queryForObject(sqlForFilm, this::mapRowToFilm, filmId);
+        if (likeBuffer.isEnabled()) {
+            return bufferLike(filmId, userId, false);
+        }
+        Film film = getFilmById(filmId);
 
-        addGenreToFilm(film);
-        addLikesToFilm(film);
+        String sqlForDeleteLikes = "delete from likes where film_id = ? and user_id = ?";
+        int deletedLikes = jdbcTemplate.update(sqlForDeleteLikes, filmId, userId);
+        if (deletedLikes == 0) {  //пользователь проверяется, только если лайка не было
+            checkUserId(userId);
+        } else {
+            String sqlForLikeCount = "update film set like_count = like_count - ? where film_id = ?";
+            jdbcTemplate.update(sqlForLikeCount, deletedLikes, filmId);
+            filmCache.invalidate(filmId);
+        }
 
         film.deleteLike(userId);
-
-        String sqlForDeleteLikes = "delete from likes where film_id = ? and user_id = ?";
-        jdbcTemplate.update(sqlForDeleteLikes, filmId, userId);
         return film;
     }
 
+    @Override  //количество лайков из столбца like_count с учётом отложенных лайков
+    public long getLikeCount(long filmId) {
+        return likeBuffer.readConsistently(() -> selectLikeCount(filmId) + likeBuffer.likeCountDelta(filmId));
+    }
+
+    @Override   //добавление лайка без сборки фильма: like_count, проверка пользователя и пары, запись
+    @Transactional
+    public long addLikeAndCount(long filmId, long userId) {
+        if (likeBuffer.isEnabled()) {
+            return bufferLike(filmId, userId, true).getLikes().size();
+        }
+        long likeCount = selectLikeCount(filmId);
+
+        if (!insertLike(filmId, userId)) {
+            return likeCount;
+        }
+        jdbcTemplate.update("update film set like_count = like_count + 1 where film_id = ?", filmId);
+        filmCache.invalidate(filmId);
+        return selectLikeCount(filmId);
+    }
+
+    @Override   //удаление лайка без сборки фильма
+    @Transactional
+    public long deleteLikeAndCount(long filmId, long userId) {
+        if (likeBuffer.isEnabled()) {
+            return bufferLike(filmId, userId, false).getLikes().size();
+        }
+        long likeCount = selectLikeCount(filmId);
+
+        int deletedLikes = jdbcTemplate.update("delete from likes where film_id = ? and user_id = ?",
+                filmId, userId);
+        if (deletedLikes == 0) {
+            checkUserId(userId);
+            return likeCount;
+        }
+        jdbcTemplate.update("update film set like_count = like_count - ? where film_id = ?", deletedLikes, filmId);
+        filmCache.invalidate(filmId);
+        return selectLikeCount(filmId);
+    }
+
+    @Override   //пакетное добавление лайков
+    @Transactional
+    public List<LikeBatchItem> addLikes(List<LikeBatchItem> items) {
+        likeBuffer.flush();  //статусы пакета определяются по базе
+        List<LikeBatchItem> likesToAdd = applyLikeBatch(SQL_MERGE_LIKE, resolveLikeBatch(items, true),
+                LikeBatchItem.ALREADY_LIKED);
+        updateLikeCounts(likesToAdd, 1);
+        log.debug("Пакетное добавление лайков: {} из {}", likesToAdd.size(), items.size());
+        return items;
+    }
+
+    @Override   //пакетное удаление лайков
+    @Transactional
+    public List<LikeBatchItem> deleteLikes(List<LikeBatchItem> items) {
+        likeBuffer.flush();
+        List<LikeBatchItem> likesToDelete = applyLikeBatch("delete from likes where film_id = ? and user_id = ?",
+                resolveLikeBatch(items, false), LikeBatchItem.NOT_LIKED);
+        updateLikeCounts(likesToDelete, -1);
+        log.debug("Пакетное удаление лайков: {} из {}", likesToDelete.size(), items.size());
+        return items;
+    }
+
 
     @Override  //вывод определённого колличества фильмов из рейтинга
+    @Transactional(readOnly = true)
     public List<Film> getRatingOfFilms(Long number) throws ValidationException {
         if (number < 0) {
             throw new ValidationException("Параметр count не может быть отрицательным");
         }
 
-        String sqlForRating = "(select film_id from likes group by film_id order by count(user_id) desc) limit ?";
-        List<Long> listFilmID = jdbcTemplate.query(sqlForRating, this::mapRowToIdFilm, number);
-
-        if (listFilmID.size() != number) {
-            Long remainingNumber = number - listFilmID.size();
-            String sqlForFilmWithoutRating = "select film_id from film where film_id not in "
-                    + "(select film_id from likes) limit ?";
-            List<Long> listOfFilmWithoutRating = jdbcTemplate.query(sqlForFilmWithoutRating, this::mapRowToIdFilm,
-                    remainingNumber);
-            listFilmID.addAll(listOfFilmWithoutRating);
+        if (likeBuffer.hasPending()) {
+            return likeBuffer.readConsistently(() -> getRatingWithPendingLikes(number));
         }
+        return selectRating(number);
+    }
 
-        List<Film> filmList = new ArrayList<>();
-        for (Long filmId : listFilmID) {
-            String sqlForFilm = "select * from film where film_id = ?";
-            Film film = jdbcTemplate.queryForObject(sqlForFilm, this::mapRowToFilm, filmId);
-            filmList.add(film);
+    private List<Film> selectRating(long number) {
+        //рейтинг читается по индексу film_like_count_idx, при равенстве лайков фильмы упорядочены по id
+        String sql = SQL_SELECT_FILMS + " order by f.like_count desc, f.film_id limit ?";
+        List<Film> filmList = jdbcTemplate.query(sql, this::mapRowToFilm, number);
+
+        addGenresAndLikesToFilms(filmList);
+        return filmList;
+    }
+
+    //рейтинг с несохранёнными лайками. Фильм без изменений в буфере может подняться в первые number
+    //только за счёт фильмов, потерявших лайки, поэтому из базы берётся на столько фильмов больше,
+    //к ним добавляются фильмы с изменениями, и кандидаты упорядочиваются заново
+    private List<Film> getRatingWithPendingLikes(long number) {
+        Map<Long, Film> candidates = new LinkedHashMap<>();
+        for (Film film : selectRating(number + likeBuffer.countFilmsLosingLikes())) {
+            candidates.put(film.getId(), film);
+        }
+        List<Long> missingIds = new ArrayList<>(likeBuffer.getPendingFilmIds());
+        missingIds.removeAll(candidates.keySet());
+        for (Film film : getFilmsByIds(missingIds)) {
+            candidates.put(film.getId(), film);
         }
 
-        for (Film film : filmList) {
-            addGenreToFilm(film);
-            addLikesToFilm(film);
+        List<Film> filmList = new ArrayList<>();
+        for (Film film : candidates.values()) {
+            filmList.add(likeBuffer.applyPending(film));
         }
-        return filmList;
+        filmList.sort(Comparator.comparingInt((Film film) -> film.getLikes().size()).reversed()
+                .thenComparingLong(Film::getId));
+        return new ArrayList<>(filmList.subList(0, (int) Math.min(number, filmList.size())));
     }
 
     @Override  //получение рейтинга mpa по id
     public RatingMPA getRatingMPAById(Integer id) {
-        try {
-            String sqlForUserId = "select rating_id, name from rating where rating_id = ?";
-            jdbcTemplate.queryForObject(sqlForUserId, this::mapRowToRatingMPA, id);
-        } catch (EmptyResultDataAccessException e) {
-            throw new MPANotFoundException("mpa с таким id не существует");
-        }
-
-        String sql = "select rating_id, name from rating where rating_id = ?";
-        return jdbcTemplate.queryForObject(sql, this::mapRowToRatingMPA, id);
+        return referenceData.getRatingMPAById(id);
     }
 
     @Override  //вывод всех рейтингов mpa
     public List<RatingMPA> getAllRatingMPA() {
-        String sql = "select rating_id, name from rating";
-        return jdbcTemplate.query(sql, this::mapRowToRatingMPA);
+        return referenceData.getAllRatingMPA();
     }
 
     @Override   //получение жанра по id
     public Genre getGenreById(Integer id) {
-        try {
-            String sqlForUserId = "select genre_id from genre where genre_id = ?";
-            jdbcTemplate.queryForObject(sqlForUserId, this::mapRowToIDGenre, id);
-        } catch (EmptyResultDataAccessException e) {
-            throw new GenreNotFoundException("Жанра с таким id не существует");
-        }
-
-        String sql = "select genre_id, name from genre where genre_id = ?";
-        return jdbcTemplate.queryForObject(sql, this::mapRowToGenre, id);
+        return referenceData.getGenreById(id);
     }
 
     @Override  //вывод всех жанров
     public List<Genre> getAllGenre() {
-        String sql = "select genre_id, name from genre";
-        return jdbcTemplate.query(sql, this::mapRowToGenre);
+        return referenceData.getAllGenre();
+    }
+
+    @Override  //перечитывание справочников, собранные фильмы в кэше содержат прежние названия
+    public void refreshReferenceData() {
+        referenceData.refresh();
+        filmCache.invalidateAll();
+    }
+
+    //отложенный лайк или его удаление: состояние пары в базе читается из кэша согласованно с буфером
+    private Film bufferLike(long filmId, long userId, boolean liked) {
+        Film film = likeBuffer.readConsistently(() -> {
+            Film stored = filmCache.get(filmId, this::loadFilmById);
+            checkUserId(userId);
+            likeBuffer.enqueue(filmId, userId, liked, stored.getLikes().contains(userId));
+            return likeBuffer.applyPending(stored);
+        });
+        likeBuffer.flushIfFull();
+        return film;
     }
 
     private void checkEnteredData(Film film) throws ValidationException {
@@ -241,49 +408,221 @@ public class FilmDbStorage implements FilmStorage {
         if (film.getDuration().isNegative()) {
             throw new ValidationException("Продолжительность не может быть отрицательной");
         }
+        film.setNameMPA(referenceData.getRatingMPAById(film.getMpa().getId()).getName());
+
         //исключение возможных дубликатов в ведённых жанрах
-        Set<Genre> genresSet = new LinkedHashSet<>(film.getGenres());
+        Set<Integer> genreIdSet = new LinkedHashSet<>();
+        for (Genre genre : film.getGenres()) {
+            genreIdSet.add(genre.getId());
+        }
         film.deleteAllGenres();
-        for (Genre genre : genresSet) {
-            String sqlForGenre = "select genre_id, name from genre where genre_id = ?";
-            Genre newGenre = jdbcTemplate.queryForObject(sqlForGenre, this::mapRowToGenre, genre.getId());
-            film.addGenre(newGenre);
+        for (Integer genreId : genreIdSet) {
+            film.addGenre(referenceData.getGenreById(genreId));
         }
     }
 
-    private void checkFilmId(Long id) {
-        try {
-            String sqlForUserId = "select film_id from film where film_id = ?";
-            jdbcTemplate.queryForObject(sqlForUserId, this::mapRowToIdFilm, id);
-        } catch (EmptyResultDataAccessException e) {
+    private long selectLikeCount(long filmId) {
+        List<Long> counts = jdbcTemplate.queryForList("select like_count from film where film_id = ?", Long.class,
+                filmId);
+        if (counts.isEmpty()) {
             throw new FilmNotFoundException("Фильма с таким id не существует");
         }
+        return counts.get(0);
     }
 
     private void checkUserId(Long id) {
+        if (identityMap.isExistingUser(id)) {
+            return;
+        }
         try {
             String sqlForUserId = "select user_id from \"user\" where user_id = ?";
             jdbcTemplate.queryForObject(sqlForUserId, this::mapRowToIdUser, id);
         } catch (EmptyResultDataAccessException e) {
             throw new UserNotFoundException("Пользователя с таким id не существует");
         }
+        identityMap.markExistingUser(id);
+    }
+
+    //вставка лайка, false - лайк уже был, в том числе добавлен параллельным запросом.
+    //Нарушение внешнего ключа по пользователю означает, что его не существует
+    private boolean insertLike(long filmId, long userId) {
+        int inserted;
+        try {
+            inserted = jdbcTemplate.update(SQL_MERGE_LIKE, filmId, userId);
+        } catch (DuplicateKeyException e) {
+            inserted = 0;
+        } catch (DataIntegrityViolationException e) {
+            throw new UserNotFoundException("Пользователя с таким id не существует");
+        }
+        identityMap.markExistingUser(userId);
+        return inserted > 0;
+    }
+
+    //проставление статусов парам пакета тремя запросами на каждые MAX_IN_LIST_SIZE пар: существующие фильмы,
+    //пользователи и лайки. Возвращает пары, которые нужно добавить (adding) или удалить
+    private List<LikeBatchItem> resolveLikeBatch(List<LikeBatchItem> items, boolean adding) {
+        Set<Long> filmIds = new HashSet<>();
+        Set<Long> userIds = new HashSet<>();
+        for (LikeBatchItem item : items) {
+            filmIds.add(item.getFilmId());
+            userIds.add(item.getUserId());
+        }
+        Set<Long> existingFilms = selectExistingIds("select film_id from film where film_id in (:ids)", filmIds);
+        Set<Long> existingUsers = selectExistingIds("select user_id from \"user\" where user_id in (:ids)", userIds);
+        Map<Long, Set<Long>> existingLikes = selectExistingLikes(items);
+
+        Map<Long, Set<Long>> seenPairs = new HashMap<>();
+        List<LikeBatchItem> changes = new ArrayList<>();
+        for (LikeBatchItem item : items) {
+            boolean liked = existingLikes.getOrDefault(item.getFilmId(), Set.of()).contains(item.getUserId());
+            if (!seenPairs.computeIfAbsent(item.getFilmId(), id -> new HashSet<>()).add(item.getUserId())) {
+                item.setStatus(LikeBatchItem.DUPLICATE);
+            } else if (!existingFilms.contains(item.getFilmId())) {
+                item.setStatus(LikeBatchItem.FILM_NOT_FOUND);
+            } else if (!existingUsers.contains(item.getUserId())) {
+                item.setStatus(LikeBatchItem.USER_NOT_FOUND);
+            } else if (adding == liked) {
+                item.setStatus(adding ? LikeBatchItem.ALREADY_LIKED : LikeBatchItem.NOT_LIKED);
+            } else {
+                item.setStatus(adding ? LikeBatchItem.ADDED : LikeBatchItem.REMOVED);
+                changes.add(item);
+            }
+        }
+        return changes;
     }
 
-    private void addGenresToBDAndAddTheirName(Film film) {
+    private Set<Long> selectExistingIds(String sql, Set<Long> ids) {
+        List<Long> idList = new ArrayList<>(ids);
+        Set<Long> existingIds = new HashSet<>();
+        for (int from = 0; from < idList.size(); from += MAX_IN_LIST_SIZE) {
+            List<Long> chunk = idList.subList(from, Math.min(from + MAX_IN_LIST_SIZE, idList.size()));
+            existingIds.addAll(namedParameterJdbcTemplate.queryForList(sql, new MapSqlParameterSource("ids", chunk),
+                    Long.class));
+        }
+        return existingIds;
+    }
+
+    private Map<Long, Set<Long>> selectExistingLikes(List<LikeBatchItem> items) {  //уже поставленные лайки
+        // из пар пакета, поиск идёт по уникальному индексу (film_id, user_id)
+        Map<Long, Set<Long>> existingLikes = new HashMap<>();
+        String sql = "select film_id, user_id from likes where (film_id, user_id) in (:pairs)";
+        for (int from = 0; from < items.size(); from += MAX_IN_LIST_SIZE) {
+            List<Object[]> pairs = new ArrayList<>();
+            for (LikeBatchItem item : items.subList(from, Math.min(from + MAX_IN_LIST_SIZE, items.size()))) {
+                pairs.add(new Object[]{item.getFilmId(), item.getUserId()});
+            }
+            namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("pairs", pairs),
+                    (RowCallbackHandler) resultSet -> existingLikes
+                            .computeIfAbsent(resultSet.getLong("film_id"), id -> new HashSet<>())
+                            .add(resultSet.getLong("user_id")));
+        }
+        return existingLikes;
+    }
+
+    //выполнение пакета по парам changes. Пара, которую параллельный запрос успел изменить после проверки
+    //в resolveLikeBatch, не меняет ни одной строки или нарушает уникальный ключ и получает статус unchanged;
+    //возвращаются изменённые пары
+    private List<LikeBatchItem> applyLikeBatch(String sql, List<LikeBatchItem> changes, String unchanged) {
+        if (changes.isEmpty()) {
+            return changes;
+        }
+        int[] counts = jdbcTemplate.execute(sql, (PreparedStatementCallback<int[]>) statement -> {
+            for (LikeBatchItem item : changes) {
+                statement.setLong(1, item.getFilmId());
+                statement.setLong(2, item.getUserId());
+                statement.addBatch();
+            }
+            try {
+                return statement.executeBatch();
+            } catch (BatchUpdateException e) {
+                return duplicateOnlyCounts(e);  //H2 выполняет остальные строки пакета
+            }
+        });
+        List<LikeBatchItem> applied = new ArrayList<>();
+        for (int i = 0; i < changes.size(); i++) {
+            if (counts[i] == 0 || counts[i] == Statement.EXECUTE_FAILED) {
+                changes.get(i).setStatus(unchanged);
+            } else {
+                applied.add(changes.get(i));
+            }
+        }
+        return applied;
+    }
+
+    //количества строк по каждой паре, если все ошибки пакета - нарушения уникального ключа
+    private static int[] duplicateOnlyCounts(BatchUpdateException e) throws BatchUpdateException {
+        for (SQLException next = e.getNextException(); next != null; next = next.getNextException()) {
+            if (!SQL_STATE_UNIQUE_VIOLATION.equals(next.getSQLState())) {
+                throw e;
+            }
+        }
+        return e.getUpdateCounts();
+    }
+
+    private void updateLikeCounts(List<LikeBatchItem> changes, int delta) {  //изменение like_count одним
+        // пакетом, по одному обновлению на фильм, и сброс этих фильмов в кэше
+        Map<Long, Integer> countByFilm = new LinkedHashMap<>();
+        for (LikeBatchItem item : changes) {
+            countByFilm.merge(item.getFilmId(), delta, Integer::sum);
+        }
+        List<Map.Entry<Long, Integer>> counts = new ArrayList<>(countByFilm.entrySet());
+        jdbcTemplate.batchUpdate("update film set like_count = like_count + ? where film_id = ?", counts,
+                counts.size(), (statement, entry) -> {
+                    statement.setInt(1, entry.getValue());
+                    statement.setLong(2, entry.getKey());
+                });
+        filmCache.invalidate(countByFilm.keySet());
+    }
+
+    private void addGenresToBD(Film film) {  //жанры нового фильма одним пакетом
+        List<Integer> genreIds = new ArrayList<>();
         for (Genre genre : film.getGenres()) {
-            String sqlQuery = "insert into genre_of_film (film_id, genre_id) values(?, ?)";
-            jdbcTemplate.update(sqlQuery, film.getId(), genre.getId());
+            genreIds.add(genre.getId());
+        }
+        insertGenres(film.getId(), genreIds);
+    }
+
+    //запись жанров фильма разницей с сохранёнными. Жанры читаются в порядке строк genre_of_film, поэтому
+    //остаётся самое длинное начало нового списка, которое в том же порядке есть среди сохранённых жанров,
+    //остальные сохранённые строки удаляются одним запросом, оставшиеся жанры добавляются одним пакетом
+    private void updateGenresInBD(Film film) {
+        String sqlForGenres = "select genre_id from genre_of_film where film_id = ? order by genre_of_film_id";
+        List<Integer> storedIds = jdbcTemplate.queryForList(sqlForGenres, Integer.class, film.getId());
+        List<Integer> genreIds = new ArrayList<>();
+        for (Genre genre : film.getGenres()) {
+            genreIds.add(genre.getId());
+        }
 
-            String sqlForGenre = "select genre_id, name from genre where genre_id = ?";
-            Genre newGenre = jdbcTemplate.queryForObject(sqlForGenre, this::mapRowToGenre, genre.getId());
-            film.setNameGenre(newGenre);
+        Set<Integer> keptIds = new HashSet<>();
+        int kept = 0;
+        for (int position = 0; kept < genreIds.size(); kept++) {
+            int index = storedIds.subList(position, storedIds.size()).indexOf(genreIds.get(kept));
+            if (index < 0) {
+                break;
+            }
+            keptIds.add(genreIds.get(kept));
+            position += index + 1;
+        }
+        List<Integer> deletedIds = new ArrayList<>(storedIds);
+        deletedIds.removeAll(keptIds);
+
+        if (!deletedIds.isEmpty()) {
+            namedParameterJdbcTemplate.update("delete from genre_of_film where film_id = :filmId "
+                    + "and genre_id in (:genreIds)", new MapSqlParameterSource("filmId", film.getId())
+                    .addValue("genreIds", deletedIds));
         }
+        insertGenres(film.getId(), genreIds.subList(kept, genreIds.size()));
     }
 
-    private void addMPAName(Film film) {
-        String sqlForMpa = "select name from rating where rating_id =?";
-        String mpa = jdbcTemplate.queryForObject(sqlForMpa, this::mapRowToNameMPA, film.getMpa().getId());
-        film.getMpa().setName(mpa);
+    private void insertGenres(long filmId, List<Integer> genreIds) {
+        if (genreIds.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("insert into genre_of_film (film_id, genre_id) values (?, ?)", genreIds,
+                genreIds.size(), (statement, genreId) -> {
+                    statement.setLong(1, filmId);
+                    statement.setInt(2, genreId);
+                });
     }
 
     private void addLikesToFilm(Film film) {
@@ -295,69 +634,102 @@ public class FilmDbStorage implements FilmStorage {
         }
     }
 
-    private void addGenreToFilm(Film film) {
-        String sqlForGenreId = "select genre_id from genre_of_film where film_id = ?";
-        List<Integer> genreList = jdbcTemplate.query(sqlForGenreId, this::mapRowToIDGenre, film.getId());
-        if (!genreList.isEmpty()) {
-            for (Integer genreId : genreList) {
-                String sqlForGenre = "select genre_id, name from genre where genre_id = ?";
-                Genre genre = jdbcTemplate.queryForObject(sqlForGenre, this::mapRowToGenre, genreId);
-                film.addGenre(genre);
+    @Override  //получение фильмов по списку id с сохранением порядка списка
+    public List<Film> getFilmsByIds(List<Long> filmIds) {
+        if (filmIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Long, Film> filmsById = new LinkedHashMap<>();
+        for (int from = 0; from < filmIds.size(); from += MAX_IN_LIST_SIZE) {
+            List<Long> ids = filmIds.subList(from, Math.min(from + MAX_IN_LIST_SIZE, filmIds.size()));
+            String sql = SQL_SELECT_FILMS + " where f.film_id in (:ids)";
+            namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("ids", ids),
+                    (RowCallbackHandler) resultSet -> {
+                        Film film = mapRowToFilm(resultSet, 0);
+                        filmsById.put(film.getId(), film);
+                    });
+        }
+
+        List<Film> filmList = new ArrayList<>();
+        for (Long filmId : filmIds) {
+            Film film = filmsById.get(filmId);
+            if (film != null) {
+                filmList.add(film);
             }
         }
+        addGenresAndLikesToFilms(filmList);
+        return filmList;
     }
 
-    private Film mapRowToFilm(ResultSet resultSet, int rowNum) throws SQLException {
-        Film film = Film.builder()
-                .id(resultSet.getLong("film_id"))
-                .name(resultSet.getString("name"))
-                .description(resultSet.getString("description"))
-                .releaseDate(resultSet.getDate("release_date").toLocalDate())
-                .duration(Duration.ofSeconds(resultSet.getInt("duration")))
-                .mpa(mapRowToMPA(resultSet.getString("rating_id")))
-                .build();
-
-        return film;
+    //догрузка жанров и лайков для списка фильмов: по одному запросу на жанры и на лайки
+    //на каждые MAX_IN_LIST_SIZE фильмов
+    private void addGenresAndLikesToFilms(List<Film> filmList) {
+        Map<Long, Film> filmsById = mapById(filmList);
+        List<Long> filmIds = new ArrayList<>(filmsById.keySet());
+        for (int from = 0; from < filmIds.size(); from += MAX_IN_LIST_SIZE) {
+            List<Long> ids = filmIds.subList(from, Math.min(from + MAX_IN_LIST_SIZE, filmIds.size()));
+            loadGenresAndLikes(filmsById, " where film_id in (:ids)", new MapSqlParameterSource("ids", ids));
+        }
     }
 
-    private RatingMPA mapRowToMPA(String id) throws SQLException {
-        Integer mpaId = Integer.valueOf(id);
-        String sql = "select name from rating where rating_id = ?";
-        String nameMPA = jdbcTemplate.queryForObject(sql, this::mapRowToNameMPA, mpaId);
-
-        return RatingMPA.builder()
-                .id(mpaId)
-                .name(nameMPA)
-                .build();
+    //догрузка жанров и лайков для всех фильмов базы чтением таблиц целиком
+    private void addGenresAndLikesToAllFilms(List<Film> filmList) {
+        loadGenresAndLikes(mapById(filmList), "", new MapSqlParameterSource());
     }
 
-    private String mapRowToNameMPA(ResultSet resultSet, int rowNum) throws SQLException {
-        return resultSet.getString("name");
+    private Map<Long, Film> mapById(List<Film> filmList) {
+        Map<Long, Film> filmsById = new LinkedHashMap<>();
+        for (Film film : filmList) {
+            filmsById.put(film.getId(), film);
+        }
+        return filmsById;
     }
 
-    private Integer mapRowToIDGenre(ResultSet resultSet, int rowNum) throws SQLException {
-        return resultSet.getInt("genre_id");
-    }
+    private void loadGenresAndLikes(Map<Long, Film> filmsById, String where, MapSqlParameterSource params) {
+        if (filmsById.isEmpty()) {
+            return;
+        }
+        String sqlForGenres = "select film_id, genre_id from genre_of_film" + where + " order by genre_of_film_id";
+        namedParameterJdbcTemplate.query(sqlForGenres, params, (RowCallbackHandler) resultSet -> {
+            Film film = filmsById.get(resultSet.getLong("film_id"));
+            if (film != null) {
+                film.addGenre(referenceData.getGenreById(resultSet.getInt("genre_id")));
+            }
+        });
 
-    private Long mapRowToIdFilm(ResultSet resultSet, int rowNum) throws SQLException {
-        return resultSet.getLong("film_id");
+        String sqlForLikes = "select film_id, user_id from likes" + where;
+        namedParameterJdbcTemplate.query(sqlForLikes, params, (RowCallbackHandler) resultSet -> {
+            Film film = filmsById.get(resultSet.getLong("film_id"));
+            if (film != null) {
+                film.addLike(resultSet.getLong("user_id"));
+            }
+        });
     }
 
-    private Long mapRowToIdUser(ResultSet resultSet, int rowNum) throws SQLException {
-        return resultSet.getLong("user_id");
+    private String[] splitIds(String ids) {
+        if (ids == null || ids.isEmpty()) {
+            return new String[0];
+        }
+        return ids.split(",");
     }
 
-    private RatingMPA mapRowToRatingMPA(ResultSet resultSet, int rowNum) throws SQLException {
-        return RatingMPA.builder()
-                .id(resultSet.getInt("rating_id"))
+    private Film mapRowToFilm(ResultSet resultSet, int rowNum) throws SQLException {
+        Film film = Film.builder()
+                .id(resultSet.getLong("film_id"))
                 .name(resultSet.getString("name"))
+                .description(resultSet.getString("description"))
+                .releaseDate(resultSet.getDate("release_date").toLocalDate())
+                .duration(Duration.ofSeconds(resultSet.getInt("duration")))
+                .mpa(RatingMPA.builder()
+                        .id(resultSet.getInt("rating_id"))
+                        .name(referenceData.getRatingMPAName(resultSet.getInt("rating_id")))
+                        .build())
                 .build();
+
+        return film;
     }
 
-    private Genre mapRowToGenre(ResultSet resultSet, int rowNum) throws SQLException {
-        return Genre.builder()
-                .id(resultSet.getInt("genre_id"))
-                .name(resultSet.getString("name"))
-                .build();
+    private Long mapRowToIdUser(ResultSet resultSet, int rowNum) throws SQLException {
+        return resultSet.getLong("user_id");
     }
 }
@@ -0,0 +1,183 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.utils.LongHashSet;
+import ru.yandex.practicum.filmorate.utils.LongIntHashMap;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//матрица совместных лайков фильмов: для каждой пары фильмов - число пользователей, лайкнувших оба.
+//Загружается из таблицы likes при старте и обновляется FilmService при каждом изменении лайков.
+//Оценка фильма c для пользователя u равна сумме совместных лайков c с фильмами u, то есть
+//сумме пересечений лайков u с лайками каждого пользователя, которому понравился c.
+//Пользователи, у которых больше maxLikesPerUser лайков, в матрицу не входят: их вклад квадратичен по числу
+//лайков и почти не несёт сходства. Такие пользователи получают рекомендации, но не влияют на чужие
+@Slf4j
+@Component
+public class FilmRecommendationIndex implements MeterBinder {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int maxLikesPerUser;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, LongHashSet> likesByUser = new HashMap<>();
+    private final Map<Long, LongIntHashMap> coLikes = new HashMap<>();
+    private long pairCount;
+
+    public FilmRecommendationIndex(JdbcTemplate jdbcTemplate,
+                                   @Value("${filmorate.recommendations.max-likes-per-user:500}") int maxLikesPerUser) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.maxLikesPerUser = maxLikesPerUser;
+    }
+
+    @PostConstruct
+    public void reload() {  //полная загрузка из таблицы likes
+        lock.writeLock().lock();
+        try {
+            clearState();
+            jdbcTemplate.query("select user_id, film_id from likes", (RowCallbackHandler) resultSet ->
+                    likesByUser.computeIfAbsent(resultSet.getLong("user_id"), id -> new LongHashSet())
+                            .add(resultSet.getLong("film_id")));
+            for (LongHashSet likes : likesByUser.values()) {
+                if (likes.size() <= maxLikesPerUser) {
+                    addPairs(likes.toLongArray(), 1);
+                }
+            }
+            log.debug("Загрузка матрицы совместных лайков: {} пользователей, {} пар", likesByUser.size(), pairCount);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addLike(long filmId, long userId) {  //учёт нового лайка, повторный лайк ничего не меняет
+        lock.writeLock().lock();
+        try {
+            LongHashSet likes = likesByUser.computeIfAbsent(userId, id -> new LongHashSet());
+            if (!likes.add(filmId)) {
+                return;
+            }
+            if (likes.size() <= maxLikesPerUser) {
+                for (long otherFilmId : likes.toLongArray()) {
+                    addPair(filmId, otherFilmId, 1);
+                }
+            } else if (likes.size() == maxLikesPerUser + 1) {  //пользователь перестаёт входить в матрицу
+                likes.remove(filmId);
+                addPairs(likes.toLongArray(), -1);
+                likes.add(filmId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void deleteLike(long filmId, long userId) {  //учёт удаления лайка
+        lock.writeLock().lock();
+        try {
+            LongHashSet likes = likesByUser.get(userId);
+            if (likes == null || !likes.remove(filmId)) {
+                return;
+            }
+            if (likes.size() < maxLikesPerUser) {
+                for (long otherFilmId : likes.toLongArray()) {
+                    addPair(filmId, otherFilmId, -1);
+                }
+            } else if (likes.size() == maxLikesPerUser) {  //пользователь снова входит в матрицу
+                addPairs(likes.toLongArray(), 1);
+            }
+            if (likes.isEmpty()) {
+                likesByUser.remove(userId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearState();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //id не более limit фильмов с наибольшей оценкой (при равенстве - с меньшим id), кроме уже лайкнутых
+    public long[] recommend(long userId, int limit) {
+        lock.readLock().lock();
+        try {
+            LongHashSet likes = likesByUser.get(userId);
+            if (likes == null) {
+                return new long[0];
+            }
+            LongIntHashMap scores = new LongIntHashMap();
+            for (long filmId : likes.toLongArray()) {
+                LongIntHashMap neighbours = coLikes.get(filmId);
+                if (neighbours != null) {
+                    scores.addAll(neighbours);
+                }
+            }
+            return scores.topKeys(limit, likes::contains);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getPairCount() {  //количество ненулевых ячеек матрицы
+        lock.readLock().lock();
+        try {
+            return pairCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("filmorate.recommendation.index.pairs", this, FilmRecommendationIndex::getPairCount)
+                .description("Количество пар фильмов с совместными лайками")
+                .register(registry);
+    }
+
+    private void addPairs(long[] filmIds, int delta) {  //все пары фильмов одного пользователя
+        for (int i = 0; i < filmIds.length; i++) {
+            for (int j = i + 1; j < filmIds.length; j++) {
+                addPair(filmIds[i], filmIds[j], delta);
+            }
+        }
+    }
+
+    private void addPair(long filmId, long otherFilmId, int delta) {  //симметричное изменение ячейки матрицы
+        if (filmId == otherFilmId) {
+            return;
+        }
+        addCell(filmId, otherFilmId, delta);
+        addCell(otherFilmId, filmId, delta);
+    }
+
+    private void addCell(long filmId, long otherFilmId, int delta) {
+        LongIntHashMap neighbours = coLikes.computeIfAbsent(filmId, id -> new LongIntHashMap());
+        int before = neighbours.size();
+        neighbours.add(otherFilmId, delta);
+        pairCount += neighbours.size() - before;
+        if (neighbours.isEmpty()) {
+            coLikes.remove(filmId);
+        }
+    }
+
+    private void clearState() {
+        likesByUser.clear();
+        coLikes.clear();
+        pairCount = 0;
+    }
+}
@@ -0,0 +1,336 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.utils.LongHashSet;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//обратный индекс для поиска фильмов: упорядоченный словарь слов названий и описаний (поиск по началу слова)
+//и триграммы названий (поиск по подстроке). Текст приводится к нижнему регистру, "ё" заменяется на "е".
+//Загружается из таблицы film при старте и обновляется FilmService при добавлении, изменении фильмов и лайков.
+//Для каждого слова запроса оценивается лучшее совпадение, фильм подходит, если совпали все слова;
+//результаты упорядочены по сумме оценок, затем по количеству лайков, затем по id
+@Slf4j
+@Component
+public class FilmSearchIndex implements MeterBinder {
+
+    public static final int MIN_WORD_LENGTH = 2;  //более короткие слова запроса не учитываются
+
+    private static final int NAME_WORD_MATCH = 4;  //слово названия совпадает со словом запроса
+    private static final int NAME_PREFIX_MATCH = 3;  //слово названия начинается со слова запроса
+    private static final int NAME_SUBSTRING_MATCH = 2;  //название содержит слово запроса
+    private static final int DESCRIPTION_PREFIX_MATCH = 1;  //слово описания начинается со слова запроса
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Entry> films = new HashMap<>();
+    private final NavigableMap<String, LongHashSet> words = new TreeMap<>();
+    private final Map<Long, LongHashSet> nameTrigrams = new HashMap<>();
+
+    public FilmSearchIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void reload() {  //полная загрузка из таблицы film
+        lock.writeLock().lock();
+        try {
+            clearState();
+            jdbcTemplate.query("select film_id, name, description, like_count from film",
+                    (RowCallbackHandler) resultSet -> putEntry(resultSet.getLong("film_id"),
+                            resultSet.getString("name"), resultSet.getString("description"),
+                            resultSet.getInt("like_count")));
+            log.debug("Загрузка поискового индекса: {} фильмов, {} слов", films.size(), words.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void put(Film film) {  //добавление фильма или замена его текста
+        lock.writeLock().lock();
+        try {
+            removeEntry(film.getId());
+            putEntry(film.getId(), film.getName(), film.getDescription(), film.getLikes().size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void setPopularity(long filmId, int likeCount) {  //количество лайков фильма
+        lock.writeLock().lock();
+        try {
+            Entry entry = films.get(filmId);
+            if (entry != null) {
+                entry.popularity = likeCount;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void changePopularity(long filmId, int delta) {  //изменение количества лайков фильма на delta
+        lock.writeLock().lock();
+        try {
+            Entry entry = films.get(filmId);
+            if (entry != null) {
+                entry.popularity += delta;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearState();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //id не более limit лучших фильмов по запросу. Кандидаты берутся по самому длинному слову запроса,
+    //остальные слова проверяются по тексту кандидатов
+    public long[] search(String query, int limit) {
+        List<String> queryWords = new ArrayList<>();
+        for (String word : tokenize(query)) {
+            if (word.length() >= MIN_WORD_LENGTH) {
+                queryWords.add(word);
+            }
+        }
+        if (queryWords.isEmpty()) {
+            return new long[0];
+        }
+        String longestWord = queryWords.stream().max(Comparator.comparingInt(String::length)).get();
+
+        lock.readLock().lock();
+        try {
+            Comparator<long[]> byRank = Comparator.<long[]>comparingLong(candidate -> candidate[1])
+                    .thenComparingLong(candidate -> -candidate[0]);
+            PriorityQueue<long[]> top = new PriorityQueue<>(byRank);
+            LongHashSet checked = new LongHashSet();
+            for (long[] postings : candidates(longestWord)) {
+                for (long filmId : postings) {
+                    if (!checked.add(filmId)) {
+                        continue;
+                    }
+                    Entry entry = films.get(filmId);
+                    int score = score(entry, queryWords);
+                    if (score == 0) {
+                        continue;
+                    }
+                    top.add(new long[]{filmId, (long) score << 32 | Math.max(0, entry.popularity)});
+                    if (top.size() > limit) {
+                        top.poll();
+                    }
+                }
+            }
+            long[] filmIds = new long[top.size()];
+            for (int i = filmIds.length - 1; i >= 0; i--) {
+                filmIds[i] = top.poll()[0];
+            }
+            return filmIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getFilmCount() {
+        lock.readLock().lock();
+        try {
+            return films.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getWordCount() {  //размер словаря
+        lock.readLock().lock();
+        try {
+            return words.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("filmorate.search.index.films", this, FilmSearchIndex::getFilmCount)
+                .description("Количество фильмов в поисковом индексе")
+                .register(registry);
+        Gauge.builder("filmorate.search.index.words", this, FilmSearchIndex::getWordCount)
+                .description("Количество различных слов в поисковом индексе")
+                .register(registry);
+    }
+
+    //приведение к нижнему регистру с заменой "ё" и разбиение на слова из букв и цифр без повторов
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+        String normalized = normalize(text);
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean wordChar = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT).replace('ё', 'е');
+    }
+
+    //списки фильмов, которые могут подходить под слово: по началу слов и по редчайшей триграмме названия
+    private List<long[]> candidates(String word) {
+        List<long[]> candidates = new ArrayList<>();
+        for (LongHashSet postings : words.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+            candidates.add(postings.toLongArray());
+        }
+        if (word.length() >= 3) {
+            LongHashSet rarest = null;
+            for (int i = 0; i + 3 <= word.length(); i++) {
+                LongHashSet postings = nameTrigrams.get(trigram(word, i));
+                if (postings == null) {
+                    return candidates;
+                }
+                if (rarest == null || postings.size() < rarest.size()) {
+                    rarest = postings;
+                }
+            }
+            candidates.add(rarest.toLongArray());
+        }
+        return candidates;
+    }
+
+    private int score(Entry entry, List<String> queryWords) {  //сумма оценок слов запроса или 0, если какое-то
+        // слово не совпало
+        int total = 0;
+        for (String queryWord : queryWords) {
+            int best = 0;
+            for (String word : entry.nameWords) {
+                if (word.equals(queryWord)) {
+                    best = NAME_WORD_MATCH;
+                    break;
+                }
+                if (word.startsWith(queryWord)) {
+                    best = NAME_PREFIX_MATCH;
+                }
+            }
+            if (best == 0 && entry.name.contains(queryWord)) {
+                best = NAME_SUBSTRING_MATCH;
+            }
+            if (best == 0) {
+                for (String word : entry.descriptionWords) {
+                    if (word.startsWith(queryWord)) {
+                        best = DESCRIPTION_PREFIX_MATCH;
+                        break;
+                    }
+                }
+            }
+            if (best == 0) {
+                return 0;
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    private void putEntry(long filmId, String name, String description, int popularity) {
+        Entry entry = new Entry();
+        entry.name = normalize(name);
+        entry.nameWords = addWords(filmId, tokenize(name));
+        entry.descriptionWords = addWords(filmId, tokenize(description));
+        entry.popularity = popularity;
+        for (int i = 0; i + 3 <= entry.name.length(); i++) {
+            nameTrigrams.computeIfAbsent(trigram(entry.name, i), key -> new LongHashSet()).add(filmId);
+        }
+        films.put(filmId, entry);
+    }
+
+    private String[] addWords(long filmId, Set<String> tokens) {  //слова хранятся в единственном экземпляре -
+        // ключе словаря
+        String[] stored = new String[tokens.size()];
+        int i = 0;
+        for (String token : tokens) {
+            words.computeIfAbsent(token, key -> new LongHashSet()).add(filmId);
+            stored[i++] = words.ceilingKey(token);
+        }
+        return stored;
+    }
+
+    private void removeEntry(long filmId) {
+        Entry entry = films.remove(filmId);
+        if (entry == null) {
+            return;
+        }
+        removeWords(filmId, entry.nameWords);
+        removeWords(filmId, entry.descriptionWords);
+        for (int i = 0; i + 3 <= entry.name.length(); i++) {
+            long key = trigram(entry.name, i);
+            LongHashSet postings = nameTrigrams.get(key);
+            if (postings != null) {
+                postings.remove(filmId);
+                if (postings.isEmpty()) {
+                    nameTrigrams.remove(key);
+                }
+            }
+        }
+    }
+
+    private void removeWords(long filmId, String[] filmWords) {
+        for (String word : filmWords) {
+            LongHashSet postings = words.get(word);
+            if (postings != null) {
+                postings.remove(filmId);
+                if (postings.isEmpty()) {
+                    words.remove(word);
+                }
+            }
+        }
+    }
+
+    private static long trigram(String text, int start) {  //три символа, упакованные в одно число
+        return (long) text.charAt(start) << 32 | (long) text.charAt(start + 1) << 16 | text.charAt(start + 2);
+    }
+
+    private void clearState() {
+        films.clear();
+        words.clear();
+        nameTrigrams.clear();
+    }
+
+    private static class Entry {
+        private String name;  //название в нижнем регистре
+        private String[] nameWords;
+        private String[] descriptionWords;
+        private int popularity;
+    }
+}
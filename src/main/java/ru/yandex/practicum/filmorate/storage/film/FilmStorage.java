@@ -4,9 +4,11 @@ import org.springframework.http.ResponseEntity;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeBatchItem;
 import ru.yandex.practicum.filmorate.model.RatingMPA;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface FilmStorage {
 
@@ -16,14 +18,33 @@ public interface FilmStorage {
 
     public List<Film> getAllFilms(); //получение всех фильмов
 
+    public List<Film> getFilmsPage(long afterId, int size);  //получение страницы фильмов с id больше afterId
+
+    public void streamAllFilms(Consumer<Film> consumer);  //поочерёдная выдача всех фильмов без накопления в памяти
+
     public Film getFilmById(long filmId);  //получение фильма по id
 
+    public List<Film> getFilmsByIds(List<Long> filmIds);  //получение фильмов по списку id в порядке списка,
+    // отсутствующие id пропускаются
+
     public void clearFilmMap();  //удаление всех фильмов
 
     public Film addLike(long filmId, long userId);  //добавление лайка
 
     public Film deleteLike(long filmId, long userId);  //удаление лайка
 
+    public long getLikeCount(long filmId);  //количество лайков фильма
+
+    public long addLikeAndCount(long filmId, long userId);  //добавление лайка, возвращается новое количество
+    // лайков без сборки фильма
+
+    public long deleteLikeAndCount(long filmId, long userId);  //удаление лайка, возвращается новое количество
+
+    public List<LikeBatchItem> addLikes(List<LikeBatchItem> items);  //пакетное добавление лайков, каждой паре
+    // проставляется статус обработки
+
+    public List<LikeBatchItem> deleteLikes(List<LikeBatchItem> items);  //пакетное удаление лайков
+
     public List<Film> getRatingOfFilms(Long number) throws ValidationException;  //вывод определённого колличества
     // фильмов из рейтинга
 
@@ -34,4 +55,6 @@ public interface FilmStorage {
     public Genre getGenreById(Integer id);  //получение жанра по id
 
     public List<Genre> getAllGenre();  //вывод всех жанров
+
+    public void refreshReferenceData();  //перечитывание справочников жанров и рейтингов mpa из базы
 }
@@ -1,5 +1,6 @@
 package ru.yandex.practicum.filmorate.storage.film;
 
+import io.micrometer.core.annotation.Timed;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Primary;
 import org.springframework.http.HttpStatus;
@@ -8,50 +9,38 @@ import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exception.*;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeBatchItem;
 import ru.yandex.practicum.filmorate.model.RatingMPA;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
 import ru.yandex.practicum.filmorate.storage.user.InMemoryUserStorage;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Slf4j
+@Timed("filmorate.storage")
 @Component
 @Primary
 public class InMemoryFilmStorage implements FilmStorage {  //добавление фильма
-    private final Map<Long, Film> filmMap = new HashMap<>();
-    private int id = 0;
-
-    private final Set<Long> ratingOfFilms = new HashSet<>();
-
-    public static Map<Integer, String> ratingMPAMap;
-
-    static {
-        ratingMPAMap = new HashMap<>();
-        ratingMPAMap.put(1, "G");
-        ratingMPAMap.put(2, "PG");
-        ratingMPAMap.put(3, "PG-13");
-        ratingMPAMap.put(4, "R");
-        ratingMPAMap.put(5, "NC-17");
-    }
-
-    public static Map<Integer, String> genreMap;
-
-    static {
-        genreMap = new HashMap<>();
-        genreMap.put(1, "Комедия");
-        genreMap.put(2, "Драма");
-        genreMap.put(3, "Мультфильм");
-        genreMap.put(4, "Триллер");
-        genreMap.put(5, "Документальный");
-        genreMap.put(6, "Боевик");
-    }
+    // Запросы обслуживаются потоками Tomcat параллельно: атомарная выдача id, изменение лайков и замена фильма
+    // выполняются внутри compute-методов ConcurrentHashMap, то есть под блокировкой корзины конкретного ключа
+    private final Map<Long, Film> filmMap = new ConcurrentHashMap<>();
+    private final AtomicLong id = new AtomicLong();
+    //количество лайков каждого фильма, меняется внутри тех же compute-методов, что и множество лайков
+    private final Map<Long, LongAdder> likeCounts = new ConcurrentHashMap<>();
 
     private final UserStorage userStorage;
+    private final ReferenceDataRegistry referenceData;
 
-    public InMemoryFilmStorage(InMemoryUserStorage storage) {
+    public InMemoryFilmStorage(InMemoryUserStorage storage, ReferenceDataRegistry referenceData) {
         this.userStorage = storage;
+        this.referenceData = referenceData;
     }
 
     @Override
@@ -62,18 +51,17 @@ public class InMemoryFilmStorage implements FilmStorage {  //добавлени
         if (film.getDuration().isNegative()) {
             throw new ValidationException("Продолжительность не может быть отрицательной");
         }
-        film.setId(id + 1);
-        id++;
-        film.setNameMPA(ratingMPAMap.get(film.getMpa().getId()));
+        film.setNameMPA(referenceData.getRatingMPAById(film.getMpa().getId()).getName());
+        film.setId(id.incrementAndGet());
         Set<Genre> genresSet = new LinkedHashSet<>(film.getGenres());
         film.deleteAllGenres();
         for (Genre genre : genresSet) {
-            genre.setName(genreMap.get(genre.getId()));
+            genre.setName(referenceData.getGenreById(genre.getId()).getName());
             film.addGenre(genre);
         }
 
+        likeCounts.put(film.getId(), new LongAdder());
         this.filmMap.put(film.getId(), film);
-        ratingOfFilms.add(film.getId());
 
         log.debug("Добавление фильма: {}", film.getName());
         return new ResponseEntity<>(film, HttpStatus.CREATED);
@@ -87,19 +75,23 @@ public class InMemoryFilmStorage implements FilmStorage {  //добавлени
         if (film.getDuration().isNegative()) {
             throw new ValidationException("Продолжительность не может быть отрицательной");
         }
-        if (!filmMap.containsKey(film.getId())) {
-            throw new FilmNotFoundException("Фильма с таким id не существует");
-        }
-
-        film.setNameMPA(ratingMPAMap.get(film.getMpa().getId()));
+        film.setNameMPA(referenceData.getRatingMPAById(film.getMpa().getId()).getName());
         Set<Genre> genresSet = new LinkedHashSet<>(film.getGenres());
         film.deleteAllGenres();
 
         for (Genre genre : genresSet) {
-            genre.setName(genreMap.get(genre.getId()));
+            genre.setName(referenceData.getGenreById(genre.getId()).getName());
             film.addGenre(genre);
         }
-        this.filmMap.replace(film.getId(), film);
+        Film updated = filmMap.computeIfPresent(film.getId(), (filmId, oldFilm) -> {  //лайки переносятся в новую
+            // версию фильма атомарно, чтобы не потерять лайки, поставленные во время обновления
+            oldFilm.getLikes().forEach(film::addLike);
+            likeCounts.get(filmId).add(film.getLikes().size() - oldFilm.getLikes().size());
+            return film;
+        });
+        if (updated == null) {
+            throw new FilmNotFoundException("Фильма с таким id не существует");
+        }
 
         log.debug("Обновление фильма: {}", film.getName());
         return new ResponseEntity<>(film, HttpStatus.OK);
@@ -110,46 +102,148 @@ public class InMemoryFilmStorage implements FilmStorage {  //добавлени
         return new ArrayList<>(filmMap.values());
     }
 
+    @Override
+    public List<Film> getFilmsPage(long afterId, int size) {  //получение страницы фильмов с id больше afterId
+        return filmMap.values().stream()
+                .filter(film -> film.getId() > afterId)
+                .sorted(Comparator.comparingLong(Film::getId))
+                .limit(size)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void streamAllFilms(Consumer<Film> consumer) {  //поочерёдная выдача всех фильмов
+        filmMap.values().forEach(consumer);
+    }
+
     @Override
     public Film getFilmById(long filmId) {  //получение фильма по id
-        if (!filmMap.containsKey(filmId)) {
+        Film film = filmMap.get(filmId);
+        if (film == null) {
             throw new FilmNotFoundException("Фильма с таким id не существует");
         }
-        return filmMap.get(filmId);
+        return film;
+    }
+
+    @Override
+    public List<Film> getFilmsByIds(List<Long> filmIds) {  //получение фильмов по списку id в порядке списка
+        List<Film> films = new ArrayList<>();
+        for (Long filmId : filmIds) {
+            Film film = filmMap.get(filmId);
+            if (film != null) {
+                films.add(film);
+            }
+        }
+        return films;
     }
 
     @Override
     public void clearFilmMap() {  //удаление всех фильмов
         filmMap.clear();
-        id = 0;
-        ratingOfFilms.clear();
+        likeCounts.clear();
+        id.set(0);
         log.debug("Удаление всех фильмов");
     }
 
     @Override
     public Film addLike(long filmId, long userId) { //добавление лайка
-        if (!filmMap.containsKey(filmId)) {
+        if (userStorage.getUserById(userId) == null) {
+            throw new UserNotFoundException("Пользователя с id = " + userId + " не существует");
+        }
+        Film film = filmMap.computeIfPresent(filmId, (key, current) -> {
+            if (current.getLikes().add(userId)) {
+                likeCounts.get(key).increment();
+            }
+            return current;
+        });
+        if (film == null) {
             throw new FilmNotFoundException("Фильма с id = " + filmId + " не существует");
         }
+        return film;
+    }
+
+    @Override
+    public Film deleteLike(long filmId, long userId) {  //удаление лайка
         if (userStorage.getUserById(userId) == null) {
             throw new UserNotFoundException("Пользователя с id = " + userId + " не существует");
         }
-        filmMap.get(filmId).addLike(userId);
-        ratingOfFilms.add(filmId);
-        return filmMap.get(filmId);
+        Film film = filmMap.computeIfPresent(filmId, (key, current) -> {
+            if (current.getLikes().remove(userId)) {
+                likeCounts.get(key).decrement();
+            }
+            return current;
+        });
+        if (film == null) {
+            throw new FilmNotFoundException("Фильма с таким id не существует");
+        }
+        return film;
     }
 
     @Override
-    public Film deleteLike(long filmId, long userId) {  //удаление лайка
-        if (!filmMap.containsKey(filmId)) {
+    public long getLikeCount(long filmId) {  //количество лайков фильма
+        LongAdder likeCount = likeCounts.get(filmId);
+        if (likeCount == null) {
             throw new FilmNotFoundException("Фильма с таким id не существует");
         }
-        if (userStorage.getUserById(userId) == null) {
-            throw new UserNotFoundException("Пользователя с id = " + userId + " не существует");
+        return likeCount.sum();
+    }
+
+    @Override
+    public long addLikeAndCount(long filmId, long userId) {  //добавление лайка с новым количеством лайков
+        addLike(filmId, userId);
+        return getLikeCount(filmId);
+    }
+
+    @Override
+    public long deleteLikeAndCount(long filmId, long userId) {  //удаление лайка с новым количеством лайков
+        deleteLike(filmId, userId);
+        return getLikeCount(filmId);
+    }
+
+    @Override
+    public List<LikeBatchItem> addLikes(List<LikeBatchItem> items) {  //пакетное добавление лайков
+        return applyLikeBatch(items, true);
+    }
+
+    @Override
+    public List<LikeBatchItem> deleteLikes(List<LikeBatchItem> items) {  //пакетное удаление лайков
+        return applyLikeBatch(items, false);
+    }
+
+    private List<LikeBatchItem> applyLikeBatch(List<LikeBatchItem> items, boolean adding) {
+        Set<List<Long>> seenPairs = new HashSet<>();
+        for (LikeBatchItem item : items) {
+            item.setStatus(seenPairs.add(List.of(item.getFilmId(), item.getUserId()))
+                    ? resolveLikeBatchItem(item, adding) : LikeBatchItem.DUPLICATE);
         }
-        filmMap.get(filmId).deleteLike(userId);
-        return filmMap.get(filmId);
+        return items;
+    }
 
+    private String resolveLikeBatchItem(LikeBatchItem item, boolean adding) {  //изменение лайка одной пары пакета
+        if (!filmMap.containsKey(item.getFilmId())) {
+            return LikeBatchItem.FILM_NOT_FOUND;
+        }
+        try {
+            userStorage.getUserById(item.getUserId());
+        } catch (UserNotFoundException e) {
+            return LikeBatchItem.USER_NOT_FOUND;
+        }
+        boolean[] changed = new boolean[1];
+        Film film = filmMap.computeIfPresent(item.getFilmId(), (key, current) -> {
+            changed[0] = adding ? current.getLikes().add(item.getUserId())
+                    : current.getLikes().remove(item.getUserId());
+            if (changed[0]) {
+                likeCounts.get(key).add(adding ? 1 : -1);
+            }
+            return current;
+        });
+        if (film == null) {
+            return LikeBatchItem.FILM_NOT_FOUND;
+        }
+        if (adding) {
+            return changed[0] ? LikeBatchItem.ADDED : LikeBatchItem.ALREADY_LIKED;
+        }
+        return changed[0] ? LikeBatchItem.REMOVED : LikeBatchItem.NOT_LIKED;
     }
 
     @Override
@@ -158,57 +252,40 @@ public class InMemoryFilmStorage implements FilmStorage {  //добавлени
         if (number < 0) {
             throw new ValidationException("Параметр count не может быть отрицательным");
         }
-        List<Long> listIdRating = ratingOfFilms.stream().sorted((p0, p1) -> {
-            filmMap.get(p0).getNumberOfLikes();
-            int compare = filmMap.get(p0).getNumberOfLikes().compareTo(filmMap.get(p1).getNumberOfLikes());
-            return -1 * compare;
-        }).limit(number).collect(Collectors.toList());
-
-        List<Film> listFilmRating = new ArrayList<>();
-        for (long id : listIdRating) {
-            listFilmRating.add(filmMap.get(id));
-        }
-        return listFilmRating;
+        // количество лайков снимается один раз до сортировки: параллельные лайки не должны менять порядок
+        // элементов во время работы компаратора
+        return filmMap.values().stream()
+                .map(film -> new AbstractMap.SimpleImmutableEntry<>(film, film.getNumberOfLikes()))
+                .sorted(Map.Entry.<Film, Long>comparingByValue().reversed()
+                        .thenComparingLong(entry -> entry.getKey().getId()))
+                .limit(number)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
     }
 
 
     @Override  //получение рейтинга mpa по id
     public RatingMPA getRatingMPAById(Integer id) {
-        if (!ratingMPAMap.containsKey(id)) {
-            throw new MPANotFoundException("mpa с таким id не существует");
-        }
-        return RatingMPA.builder()
-                .id(id)
-                .name(ratingMPAMap.get(id))
-                .build();
+        return referenceData.getRatingMPAById(id);
     }
 
     @Override  //вывод всех рейтингов mpa
     public List<RatingMPA> getAllRatingMPA() {
-        List<RatingMPA> ratingMPAList = new ArrayList<>();
-        for (int i = 1; i <= 5; i++) {
-            ratingMPAList.add(RatingMPA.builder().id(i).name(ratingMPAMap.get(i)).build());
-        }
-        return ratingMPAList;
+        return referenceData.getAllRatingMPA();
     }
 
     @Override  //получение жанра по id
     public Genre getGenreById(Integer id) {
-        if (!genreMap.containsKey(id)) {
-            throw new GenreNotFoundException("жанра с таким id не существует");
-        }
-        return Genre.builder()
-                .id(id)
-                .name(genreMap.get(id))
-                .build();
+        return referenceData.getGenreById(id);
     }
 
     @Override  //вывод всех жанров
     public List<Genre> getAllGenre() {
-        List<Genre> genreList = new ArrayList<>();
-        for (int i = 1; i <= genreMap.size(); i++) {
-            genreList.add(Genre.builder().id(i).name(genreMap.get(i)).build());
-        }
-        return genreList;
+        return referenceData.getAllGenre();
+    }
+
+    @Override
+    public void refreshReferenceData() {  //перечитывание справочников, сохранённые фильмы не меняются
+        referenceData.refresh();
     }
 }
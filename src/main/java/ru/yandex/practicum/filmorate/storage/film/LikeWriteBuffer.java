@@ -0,0 +1,362 @@
+package ru.yandex.practicum.filmorate.storage.film;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import ru.yandex.practicum.filmorate.model.Film;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+//отложенная запись лайков (включается filmorate.likes.write-behind.enabled). Лайки и их удаление копятся
+//в памяти как итоговое состояние пары фильм-пользователь: лайк, за которым последовало удаление, взаимно
+//сокращается и в базу не попадает. Буфер сбрасывается одной транзакцией с пакетными запросами по таймеру,
+//при накоплении maxPending пар и при остановке приложения.
+//Чтение фильма и рейтинга накладывает несохранённые изменения поверх данных базы. Пары, которые сейчас
+//сбрасываются, остаются видны до фиксации транзакции; фиксация и сброс кэша идут под блокировкой записи,
+//поэтому чтение под readConsistently не видит изменение ни дважды, ни ни разу.
+//Об изменениях, отклонённых базой, сообщается RejectionListener: индексы, уже учёвшие их, откатываются
+@Slf4j
+@Component
+public class LikeWriteBuffer implements MeterBinder {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final FilmCache filmCache;
+    private final boolean enabled;
+    private final int maxPending;
+
+    private final ReadWriteLock commitLock = new ReentrantReadWriteLock();
+    private final Object flushMonitor = new Object();
+    //film_id -> (user_id -> итоговое состояние лайка), хранятся только пары, отличающиеся от базы
+    private Map<Long, Map<Long, Boolean>> pending = new HashMap<>();
+    private Map<Long, Map<Long, Boolean>> inFlight = new HashMap<>();  //сбрасываемые сейчас пары
+    private int pendingCount;
+    private final List<RejectionListener> rejectionListeners = new CopyOnWriteArrayList<>();
+    private Counter coalesced;
+    private Counter flushed;
+
+    public LikeWriteBuffer(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                           FilmCache filmCache,
+                           @Value("${filmorate.likes.write-behind.enabled:false}") boolean enabled,
+                           @Value("${filmorate.likes.write-behind.max-pending:10000}") int maxPending) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionManager = transactionManager;
+        this.filmCache = filmCache;
+        this.enabled = enabled;
+        this.maxPending = maxPending;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public interface RejectionListener {  //изменение лайка (liked) или его удаления отклонено базой и отброшено
+        void rejected(long filmId, long userId, boolean liked);
+    }
+
+    public void addRejectionListener(RejectionListener listener) {
+        rejectionListeners.add(listener);
+    }
+
+    //чтение данных базы, согласованное с буфером: сброс не может зафиксироваться посреди reader
+    public <T> T readConsistently(Supplier<T> reader) {
+        if (!enabled) {
+            return reader.get();
+        }
+        commitLock.readLock().lock();
+        try {
+            return reader.get();
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    //лайк (liked) или его удаление; storedLiked - состояние пары в базе, прочитанное под readConsistently
+    public synchronized void enqueue(long filmId, long userId, boolean liked, boolean storedLiked) {
+        Map<Long, Boolean> filmPending = pending.computeIfAbsent(filmId, id -> new HashMap<>());
+        Boolean pendingLiked = filmPending.get(userId);
+        if (pendingLiked != null) {
+            if (pendingLiked != liked) {  //возврат к сохранённому состоянию
+                filmPending.remove(userId);
+                pendingCount--;
+                countCoalesced();
+            }
+        } else {
+            Boolean inFlightLiked = lookup(inFlight, filmId, userId);
+            boolean baseLiked = inFlightLiked != null ? inFlightLiked : storedLiked;
+            if (baseLiked != liked) {
+                filmPending.put(userId, liked);
+                pendingCount++;
+            }
+        }
+        if (filmPending.isEmpty()) {
+            pending.remove(filmId);
+        }
+    }
+
+    public synchronized boolean hasPending() {
+        return !pending.isEmpty() || !inFlight.isEmpty();
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    public synchronized Set<Long> getPendingFilmIds() {  //фильмы, у которых есть несохранённые изменения
+        Set<Long> filmIds = new HashSet<>(inFlight.keySet());
+        filmIds.addAll(pending.keySet());
+        return filmIds;
+    }
+
+    public synchronized int countFilmsLosingLikes() {  //фильмы, у которых среди изменений есть удаление лайка
+        Set<Long> filmIds = new HashSet<>();
+        collectFilmsLosingLikes(inFlight, filmIds);
+        collectFilmsLosingLikes(pending, filmIds);
+        return filmIds.size();
+    }
+
+    //разница между количеством лайков фильма с учётом буфера и количеством в базе
+    public synchronized long likeCountDelta(long filmId) {
+        Map<Long, Boolean> filmInFlight = inFlight.getOrDefault(filmId, Map.of());
+        Map<Long, Boolean> filmPending = pending.getOrDefault(filmId, Map.of());
+        long delta = 0;
+        for (Map.Entry<Long, Boolean> change : filmInFlight.entrySet()) {
+            if (!filmPending.containsKey(change.getKey())) {  //пара и в буфере, значит, вернулась к базе
+                delta += change.getValue() ? 1 : -1;
+            }
+        }
+        for (Map.Entry<Long, Boolean> change : filmPending.entrySet()) {
+            if (!filmInFlight.containsKey(change.getKey())) {
+                delta += change.getValue() ? 1 : -1;
+            }
+        }
+        return delta;
+    }
+
+    public synchronized Film applyPending(Film film) {  //наложение несохранённых изменений на фильм из базы
+        applyPending(film, inFlight.get(film.getId()));
+        applyPending(film, pending.get(film.getId()));
+        return film;
+    }
+
+    public void flushIfFull() {  //вызывается вне readConsistently: сброс ждёт окончания чтений
+        if (getPendingCount() >= maxPending) {
+            flush();
+        }
+    }
+
+    @PreDestroy
+    @Scheduled(initialDelayString = "${filmorate.likes.write-behind.flush-interval:PT0.5S}",
+            fixedDelayString = "${filmorate.likes.write-behind.flush-interval:PT0.5S}")
+    public void flush() {  //запись накопленных изменений одной транзакцией
+        synchronized (flushMonitor) {
+            List<long[]> changes = new ArrayList<>();  //film_id, user_id, 1 - лайк или 0 - удаление
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                inFlight = pending;
+                pending = new HashMap<>();
+                pendingCount = 0;
+                inFlight.forEach((filmId, users) -> users.forEach((userId, liked) ->
+                        changes.add(new long[]{filmId, userId, liked ? 1 : 0})));
+            }
+
+            int written;
+            try {
+                written = writeOrSplit(changes);
+            } catch (RuntimeException e) {
+                restoreInFlight(e);
+                return;
+            }
+            if (flushed != null) {
+                flushed.increment(written);
+            }
+            log.debug("Сброс буфера лайков: записано {} изменений из {}", written, changes.size());
+        }
+    }
+
+    //отказ от несохранённых изменений перед удалением всех фильмов или пользователей
+    public void discard() {
+        synchronized (flushMonitor) {
+            synchronized (this) {
+                pending = new HashMap<>();
+                pendingCount = 0;
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("filmorate.likes.write-behind.pending", this, LikeWriteBuffer::getPendingCount)
+                .description("Количество несохранённых изменений лайков")
+                .register(registry);
+        coalesced = Counter.builder("filmorate.likes.write-behind.coalesced")
+                .description("Изменения лайков, сократившиеся в буфере без записи в базу")
+                .register(registry);
+        flushed = Counter.builder("filmorate.likes.write-behind.flushed")
+                .description("Изменения лайков, записанные в базу из буфера")
+                .register(registry);
+    }
+
+    //запись изменений; если база отклоняет пакет (фильм или пользователь удалены), он делится пополам,
+    //пока отклонённое изменение не останется одно - оно отбрасывается, остальные записываются.
+    //Возвращает количество записанных изменений
+    private int writeOrSplit(List<long[]> changes) {
+        try {
+            writeInTransaction(changes);
+            return changes.size();
+        } catch (DataIntegrityViolationException e) {
+            if (changes.size() == 1) {
+                long[] change = changes.get(0);
+                log.warn("{} фильма {} пользователем {} отклонено базой и отброшено: {}",
+                        change[2] == 1 ? "Лайк" : "Удаление лайка", change[0], change[1],
+                        e.getMostSpecificCause().getMessage());
+                commitLock.writeLock().lock();
+                try {
+                    removeInFlight(changes);
+                } finally {
+                    commitLock.writeLock().unlock();
+                }
+                for (RejectionListener listener : rejectionListeners) {
+                    listener.rejected(change[0], change[1], change[2] == 1);
+                }
+                return 0;
+            }
+            int middle = changes.size() / 2;
+            return writeOrSplit(changes.subList(0, middle)) + writeOrSplit(changes.subList(middle, changes.size()));
+        }
+    }
+
+    //своя транзакция и при вызове из транзакции пакетного запроса: пары видны другим сразу после фиксации
+    private void writeInTransaction(List<long[]> changes) {
+        List<long[]> likes = new ArrayList<>();
+        List<long[]> unlikes = new ArrayList<>();
+        Set<Long> filmIds = new HashSet<>();
+        for (long[] change : changes) {
+            (change[2] == 1 ? likes : unlikes).add(change);
+            filmIds.add(change[0]);
+        }
+        TransactionStatus transaction = transactionManager.getTransaction(
+                new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRES_NEW));
+        try {
+            write(likes, unlikes, filmIds);
+            commitLock.writeLock().lock();
+            try {
+                transactionManager.commit(transaction);
+                filmCache.invalidate(filmIds);
+                removeInFlight(changes);
+            } finally {
+                commitLock.writeLock().unlock();
+            }
+        } catch (RuntimeException e) {
+            if (!transaction.isCompleted()) {
+                transactionManager.rollback(transaction);
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void removeInFlight(List<long[]> changes) {  //пары записаны или отброшены
+        for (long[] change : changes) {
+            Map<Long, Boolean> users = inFlight.get(change[0]);
+            if (users != null) {
+                users.remove(change[1]);
+                if (users.isEmpty()) {
+                    inFlight.remove(change[0]);
+                }
+            }
+        }
+    }
+
+    //вставка и удаление лайков пакетами и пересчёт like_count затронутых фильмов по таблице likes:
+    //запись идемпотентна, даже если пару параллельно изменил пакетный запрос
+    private void write(List<long[]> likes, List<long[]> unlikes, Set<Long> filmIds) {
+        jdbcTemplate.batchUpdate("merge into likes (film_id, user_id) key (film_id, user_id) values (?, ?)",
+                likes, likes.size(), (statement, pair) -> {
+                    statement.setLong(1, pair[0]);
+                    statement.setLong(2, pair[1]);
+                });
+        jdbcTemplate.batchUpdate("delete from likes where film_id = ? and user_id = ?",
+                unlikes, unlikes.size(), (statement, pair) -> {
+                    statement.setLong(1, pair[0]);
+                    statement.setLong(2, pair[1]);
+                });
+        List<Long> touched = new ArrayList<>(filmIds);
+        jdbcTemplate.batchUpdate("update film set like_count = "
+                        + "(select count(*) from likes as l where l.film_id = film.film_id) where film_id = ?",
+                touched, touched.size(), (statement, filmId) -> statement.setLong(1, filmId));
+    }
+
+    //возврат несохранённых пар в буфер после ошибки записи. Пара, изменённая во время сброса, в буфере
+    //уже отсчитана от состояния сбрасываемой пары, то есть вернулась к состоянию базы, и сокращается
+    private synchronized void restoreInFlight(RuntimeException e) {
+        log.error("Сброс буфера лайков не удался, изменения будут записаны при следующем сбросе", e);
+        inFlight.forEach((filmId, users) -> users.forEach((userId, liked) -> {
+            Map<Long, Boolean> filmPending = pending.computeIfAbsent(filmId, id -> new HashMap<>());
+            if (filmPending.remove(userId) != null) {
+                pendingCount--;
+            } else {
+                filmPending.put(userId, liked);
+                pendingCount++;
+            }
+            if (filmPending.isEmpty()) {
+                pending.remove(filmId);
+            }
+        }));
+        inFlight = new HashMap<>();
+    }
+
+    private void applyPending(Film film, Map<Long, Boolean> changes) {
+        if (changes == null) {
+            return;
+        }
+        changes.forEach((userId, liked) -> {
+            if (liked) {
+                film.addLike(userId);
+            } else {
+                film.deleteLike(userId);
+            }
+        });
+    }
+
+    private void collectFilmsLosingLikes(Map<Long, Map<Long, Boolean>> changes, Set<Long> filmIds) {
+        changes.forEach((filmId, users) -> {
+            if (users.containsValue(false)) {
+                filmIds.add(filmId);
+            }
+        });
+    }
+
+    private void countCoalesced() {
+        if (coalesced != null) {
+            coalesced.increment();
+        }
+    }
+
+    private static Boolean lookup(Map<Long, Map<Long, Boolean>> changes, long filmId, long userId) {
+        Map<Long, Boolean> users = changes.get(filmId);
+        return users == null ? null : users.get(userId);
+    }
+}
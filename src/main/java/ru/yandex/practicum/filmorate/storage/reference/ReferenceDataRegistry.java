@@ -0,0 +1,116 @@
+package ru.yandex.practicum.filmorate.storage.reference;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.exception.GenreNotFoundException;
+import ru.yandex.practicum.filmorate.exception.MPANotFoundException;
+import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.RatingMPA;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+//справочники жанров и рейтингов mpa, загружаемые в память при старте приложения.
+//Строки, добавленные в базу позже, находятся отдельным запросом по id, после чего справочники перечитываются:
+//фильм с новым жанром или рейтингом читается и без вызова refresh, о таком перечитывании сообщается слушателям
+@Slf4j
+@Component
+public class ReferenceDataRegistry {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private volatile Map<Integer, String> ratingMPAMap = Collections.emptyMap();
+    private volatile Map<Integer, String> genreMap = Collections.emptyMap();
+    private final List<Runnable> refreshListeners = new CopyOnWriteArrayList<>();
+
+    public ReferenceDataRegistry(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct  //перечитывание справочников из базы
+    public void refresh() {
+        Map<Integer, String> newRatingMPAMap = new LinkedHashMap<>();
+        String sqlForRating = "select rating_id, name from rating order by rating_id";
+        jdbcTemplate.query(sqlForRating, (RowCallbackHandler) resultSet ->
+                newRatingMPAMap.put(resultSet.getInt("rating_id"), resultSet.getString("name")));
+
+        Map<Integer, String> newGenreMap = new LinkedHashMap<>();
+        String sqlForGenre = "select genre_id, name from genre order by genre_id";
+        jdbcTemplate.query(sqlForGenre, (RowCallbackHandler) resultSet ->
+                newGenreMap.put(resultSet.getInt("genre_id"), resultSet.getString("name")));
+
+        ratingMPAMap = Collections.unmodifiableMap(newRatingMPAMap);
+        genreMap = Collections.unmodifiableMap(newGenreMap);
+        log.debug("Загружено рейтингов mpa: {}, жанров: {}", newRatingMPAMap.size(), newGenreMap.size());
+    }
+
+    public void addRefreshListener(Runnable listener) {  //справочники перечитаны из-за записи, которой не было
+        refreshListeners.add(listener);
+    }
+
+    public RatingMPA getRatingMPAById(Integer id) {  //получение рейтинга mpa по id
+        String name = getRatingMPAName(id);
+        if (name == null) {
+            throw new MPANotFoundException("mpa с таким id не существует");
+        }
+        return RatingMPA.builder()
+                .id(id)
+                .name(name)
+                .build();
+    }
+
+    public List<RatingMPA> getAllRatingMPA() {  //вывод всех рейтингов mpa
+        List<RatingMPA> ratingMPAList = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : ratingMPAMap.entrySet()) {
+            ratingMPAList.add(RatingMPA.builder().id(entry.getKey()).name(entry.getValue()).build());
+        }
+        return ratingMPAList;
+    }
+
+    public String getRatingMPAName(Integer id) {  //название рейтинга mpa, null если рейтинга нет
+        return findName(ratingMPAMap, "select name from rating where rating_id = ?", id);
+    }
+
+    public Genre getGenreById(Integer id) {  //получение жанра по id
+        String name = findName(genreMap, "select name from genre where genre_id = ?", id);
+        if (name == null) {
+            throw new GenreNotFoundException("Жанра с таким id не существует");
+        }
+        return Genre.builder()
+                .id(id)
+                .name(name)
+                .build();
+    }
+
+    public List<Genre> getAllGenre() {  //вывод всех жанров
+        List<Genre> genreList = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : genreMap.entrySet()) {
+            genreList.add(Genre.builder().id(entry.getKey()).name(entry.getValue()).build());
+        }
+        return genreList;
+    }
+
+    private String findName(Map<Integer, String> names, String sql, Integer id) {  //название из памяти или из базы
+        String name = names.get(id);
+        if (name != null || id == null) {
+            return name;
+        }
+        List<String> storedNames = jdbcTemplate.queryForList(sql, String.class, id);
+        if (storedNames.isEmpty()) {
+            return null;
+        }
+        log.debug("Справочники перечитываются: в базе появилась запись с id {}", id);
+        refresh();
+        for (Runnable listener : refreshListeners) {
+            listener.run();
+        }
+        return storedNames.get(0);
+    }
+}
@@ -0,0 +1,98 @@
+package ru.yandex.practicum.filmorate.storage.replica;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+//выбор базы для соединения: методы хранилищ с @Transactional(readOnly = true) читают из реплики, если
+//ReplicaLagMonitor считает её пригодной, всё остальное идёт в основную базу. Признак readOnly известен только
+//после начала транзакции, поэтому источник оборачивается в LazyConnectionDataSourceProxy.
+//Соединения основной базы отмечают в мониторе каждый выполненный запрос, кроме executeQuery, и закрытие
+//соединения после такого запроса: к этому моменту запись зафиксирована
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final String PRIMARY = "primary";
+    private static final String REPLICA = "replica";
+
+    private final DataSource primary;
+    private final ReplicaLagMonitor monitor;
+
+    public ReadWriteRoutingDataSource(DataSource primary, ReplicaLagMonitor monitor) {
+        this.primary = primary;
+        this.monitor = monitor;
+        setTargetDataSources(Map.of(PRIMARY, primary, REPLICA, monitor.getReplica()));
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return PRIMARY;
+        }
+        boolean fromReplica = monitor.isReplicaUsable();
+        monitor.countRead(fromReplica);
+        return fromReplica ? REPLICA : PRIMARY;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        DataSource target = determineTargetDataSource();
+        return target == primary ? trackWrites(target.getConnection()) : target.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        DataSource target = determineTargetDataSource();
+        Connection connection = target.getConnection(username, password);
+        return target == primary ? trackWrites(connection) : connection;
+    }
+
+    private Connection trackWrites(Connection connection) {
+        boolean[] wrote = new boolean[1];
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    Object result = invoke(connection, method, args);
+                    if (wrote[0] && method.getName().equals("close")) {
+                        monitor.writeCompleted();
+                    }
+                    if (result instanceof Statement) {
+                        return trackWrites((Statement) result, method.getReturnType(), wrote);
+                    }
+                    return result;
+                });
+    }
+
+    private Object trackWrites(Statement statement, Class<?> statementType, boolean[] wrote) {
+        return Proxy.newProxyInstance(statementType.getClassLoader(), new Class<?>[]{statementType},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (!name.startsWith("execute") || name.equals("executeQuery")) {
+                        return invoke(statement, method, args);
+                    }
+                    wrote[0] = true;
+                    monitor.writeCompleted();
+                    try {
+                        return invoke(statement, method, args);
+                    } finally {
+                        monitor.writeCompleted();  //в режиме autocommit запись зафиксирована
+                    }
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
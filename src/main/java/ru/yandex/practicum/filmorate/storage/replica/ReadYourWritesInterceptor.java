@@ -0,0 +1,80 @@
+package ru.yandex.practicum.filmorate.storage.replica;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+//чтение своих записей для каждого клиента отдельно: время последней записи клиента хранится в cookie
+//и на время http-запроса передаётся в ReplicaLagMonitor. Запись в основную базу во время запроса
+//обновляет cookie в ответе, поэтому следующий запрос клиента читает из реплики, только когда она эту
+//запись догнала. Запись происходит до выдачи тела ответа, так что заголовок ещё можно изменить
+public class ReadYourWritesInterceptor implements AsyncHandlerInterceptor {
+
+    public static final String LAST_WRITE_COOKIE = "filmorate-last-write";
+
+    private final ReplicaLagMonitor monitor;
+
+    public ReadYourWritesInterceptor(ReplicaLagMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        monitor.beginRequest(readLastWrite(request), lastWriteMillis -> {
+            if (!response.isCommitted()) {
+                writeLastWrite(response, lastWriteMillis);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+                                               Object handler) {
+        monitor.endRequest();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                Exception ex) {
+        monitor.endRequest();
+    }
+
+    //cookie записывается заново при каждой записи запроса: заменяется только его прежнее значение,
+    //остальные cookie ответа сохраняются
+    private static void writeLastWrite(HttpServletResponse response, long lastWriteMillis) {
+        List<String> otherCookies = new ArrayList<>();
+        for (String header : response.getHeaders(HttpHeaders.SET_COOKIE)) {
+            if (!header.startsWith(LAST_WRITE_COOKIE + "=")) {
+                otherCookies.add(header);
+            }
+        }
+        response.setHeader(HttpHeaders.SET_COOKIE, ResponseCookie.from(LAST_WRITE_COOKIE,
+                Long.toString(lastWriteMillis)).path("/").httpOnly(true).build().toString());
+        for (String header : otherCookies) {
+            response.addHeader(HttpHeaders.SET_COOKIE, header);
+        }
+    }
+
+    private static long readLastWrite(HttpServletRequest request) {  //0 - клиент ещё ничего не записывал
+        if (request.getCookies() == null) {
+            return 0;
+        }
+        for (Cookie cookie : request.getCookies()) {
+            if (LAST_WRITE_COOKIE.equals(cookie.getName())) {
+                try {
+                    return Long.parseLong(cookie.getValue());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,145 @@
+package ru.yandex.practicum.filmorate.storage.replica;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.function.LongConsumer;
+
+//состояние реплики для ReadWriteRoutingDataSource. По таймеру на реплике выполняется lagQuery, возвращающий
+//отставание в миллисекундах; из него следует момент, до которого реплика точно догнала основную базу.
+//Реплика пригодна для чтения, если последняя проверка удалась и не устарела, отставание не больше maxLag
+//и реплика догнала последнюю запись клиента (чтение своих записей). Клиент http-запроса известен
+//по отметке времени его последней записи (ReadYourWritesInterceptor), и чужие записи его чтение не
+//переводят на основную базу. Вне http-запроса сравнивается последняя запись любого клиента по значениям
+//System.nanoTime(); отметки клиентов - время часов этого сервера, часы реплики не участвуют
+@Slf4j
+public class ReplicaLagMonitor implements MeterBinder {
+
+    private final DataSource replica;
+    private final JdbcTemplate replicaJdbcTemplate;
+    private final String lagQuery;
+    private final long maxLagNanos;
+    private final long staleAfterNanos;  //проверка старше этого считается неизвестным отставанием
+
+    private volatile boolean checked;
+    private volatile long checkedAtNanos;
+    private volatile long lagNanos;
+    private volatile long caughtUpToNanos;  //момент, до которого реплика содержит все записи основной базы
+    private volatile long caughtUpToMillis;  //тот же момент по часам сервера, для отметок клиентов
+    private volatile long lastWriteNanos = System.nanoTime();  //до первой проверки реплика не используется
+    private final ThreadLocal<ClientWrites> client = new ThreadLocal<>();  //клиент текущего http-запроса
+    private Counter replicaReads;
+    private Counter primaryReads;
+
+    public ReplicaLagMonitor(DataSource replica, String lagQuery, Duration maxLag, Duration checkInterval) {
+        this.replica = replica;
+        this.replicaJdbcTemplate = new JdbcTemplate(replica);
+        this.lagQuery = lagQuery;
+        this.maxLagNanos = maxLag.toNanos();
+        this.staleAfterNanos = checkInterval.toNanos() * 3;
+    }
+
+    public DataSource getReplica() {
+        return replica;
+    }
+
+    @Scheduled(fixedDelayString = "${filmorate.datasource.replica.check-interval:PT0.2S}")
+    public void check() {  //замер отставания реплики
+        long startNanos = System.nanoTime();  //ответ описывает реплику не раньше этого момента
+        long startMillis = System.currentTimeMillis();
+        try {
+            Long lagMillis = replicaJdbcTemplate.queryForObject(lagQuery, Long.class);
+            lagNanos = Duration.ofMillis(lagMillis == null ? 0 : Math.max(0, lagMillis)).toNanos();
+            caughtUpToNanos = startNanos - lagNanos;
+            caughtUpToMillis = startMillis - lagNanos / 1_000_000;
+            checkedAtNanos = startNanos;
+            checked = true;
+        } catch (RuntimeException e) {
+            if (checked) {
+                log.warn("Не удалось узнать отставание реплики, чтение идёт из основной базы", e);
+            }
+            checked = false;
+        }
+    }
+
+    //начало http-запроса клиента, последняя запись которого была в lastWriteMillis (0 - записей не было);
+    //о каждой новой записи клиенту сообщает writeNotifier
+    public void beginRequest(long lastWriteMillis, LongConsumer writeNotifier) {
+        client.set(new ClientWrites(lastWriteMillis, writeNotifier));
+    }
+
+    public void endRequest() {
+        client.remove();
+    }
+
+    public void writeCompleted() {  //запись через основную базу, реплика не используется, пока её не догонит
+        lastWriteNanos = System.nanoTime();
+        ClientWrites current = client.get();
+        if (current != null) {
+            current.lastWriteMillis = System.currentTimeMillis();
+            current.writeNotifier.accept(current.lastWriteMillis);
+        }
+    }
+
+    public boolean isReplicaUsable() {
+        if (!checked || System.nanoTime() - checkedAtNanos > staleAfterNanos || lagNanos > maxLagNanos) {
+            return false;
+        }
+        ClientWrites current = client.get();
+        if (current != null) {  //запись в ту же миллисекунду, что и проверка, могла в реплику не попасть
+            return caughtUpToMillis > current.lastWriteMillis;
+        }
+        return caughtUpToNanos - lastWriteNanos >= 0;
+    }
+
+    public double getLagMillis() {  //последнее замеренное отставание, -1 - неизвестно
+        return checked ? lagNanos / 1_000_000.0 : -1;
+    }
+
+    public void countRead(boolean fromReplica) {  //чтение, для которого выбрана реплика или основная база
+        Counter counter = fromReplica ? replicaReads : primaryReads;
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws Exception {
+        if (replica instanceof AutoCloseable) {
+            ((AutoCloseable) replica).close();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("filmorate.datasource.replica.lag", this, ReplicaLagMonitor::getLagMillis)
+                .description("Последнее замеренное отставание реплики в миллисекундах, -1 - неизвестно")
+                .register(registry);
+        replicaReads = Counter.builder("filmorate.datasource.reads")
+                .tag("target", "replica")
+                .description("Соединения только для чтения, выданные из реплики или из основной базы")
+                .register(registry);
+        primaryReads = Counter.builder("filmorate.datasource.reads")
+                .tag("target", "primary")
+                .description("Соединения только для чтения, выданные из реплики или из основной базы")
+                .register(registry);
+    }
+
+    private static class ClientWrites {
+        private long lastWriteMillis;
+        private final LongConsumer writeNotifier;
+
+        private ClientWrites(long lastWriteMillis, LongConsumer writeNotifier) {
+            this.lastWriteMillis = lastWriteMillis;
+            this.writeNotifier = writeNotifier;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package ru.yandex.practicum.filmorate.storage.user;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.yandex.practicum.filmorate.utils.FriendshipStatusMap;
+import ru.yandex.practicum.filmorate.utils.LongHashSet;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+//копия таблицы friends в памяти: исходящие заявки каждого пользователя со статусом и подтверждённые входящие.
+//Загружается при старте, изменения из UserDbStorage применяются после фиксации транзакции, как в FilmCache.
+//Чтение не блокируется, изменения и замена графа выполняются последовательно
+@Slf4j
+@Component
+public class FriendGraphIndex implements MeterBinder {
+
+    private static final int CONFIRMED_STATUS_ID = 1;
+    private static final int UNCONFIRMED_STATUS_ID = 2;
+
+    //примерный размер записи ConcurrentHashMap в куче: узел и упакованный ключ
+    private static final long MAP_ENTRY_BYTES = 32 + 16;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Object checkLock = new Object();  //сверки выполняются по одной
+    private final Map<Edge, Integer> uncommittedEdges = new HashMap<>();  //записаны, транзакция не завершена
+
+    private volatile Graph graph = new Graph();
+    private Counter mismatchCounter;
+    private Set<Edge> edgesChangedDuringCheck;  //строки, которые нельзя сверять в текущей сверке; null вне сверки
+    private boolean clearedDuringCheck;
+
+    public FriendGraphIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public synchronized void reload() {  //полная загрузка связей из таблицы friends
+        graph = loadGraph();
+        log.debug("Загрузка индекса друзей: {} связей", graph.edgeCount());
+    }
+
+    public void putEdge(long userId, long friendId, int statusId) {  //добавление или изменение
+        // строки friends (userId, friendId)
+        applyAfterCommit(new Edge(userId, friendId), current -> current.put(userId, friendId, statusId));
+    }
+
+    public void removeEdge(long userId, long friendId) {  //удаление строки friends (userId, friendId)
+        applyAfterCommit(new Edge(userId, friendId), current -> current.remove(userId, friendId));
+    }
+
+    public void clear() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            clearNow();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                clearNow();
+            }
+        });
+    }
+
+    public boolean hasEdge(long userId, long friendId) {  //есть ли строка friends (userId, friendId)
+        FriendshipStatusMap friends = graph.outgoing.get(userId);
+        return friends != null && friends.containsKey(friendId);
+    }
+
+    public boolean isFriend(long userId, long friendId) {  //входит ли friendId в список друзей userId
+        Graph current = graph;
+        FriendshipStatusMap outgoing = current.outgoing.get(userId);
+        LongHashSet incoming = current.incomingConfirmed.get(userId);
+        return outgoing != null && outgoing.containsKey(friendId) || incoming != null && incoming.contains(friendId);
+    }
+
+    //друзья пользователя со статусом: исходящие заявки с их статусом и подтверждённые входящие
+    public FriendshipStatusMap getFriends(long userId) {
+        Graph current = graph;
+        FriendshipStatusMap friends = new FriendshipStatusMap();
+        FriendshipStatusMap outgoing = current.outgoing.get(userId);
+        if (outgoing != null) {
+            friends.putAll(outgoing);
+        }
+        LongHashSet incoming = current.incomingConfirmed.get(userId);
+        if (incoming != null) {
+            for (long friendId : incoming.toLongArray()) {
+                friends.put(friendId, FriendshipStatusMap.CONFIRMED);
+            }
+        }
+        return friends;
+    }
+
+    public long[] getFriendIds(long userId) {  //id друзей пользователя по возрастанию
+        long[] friendIds = getFriends(userId).friendIds();
+        Arrays.sort(friendIds);
+        return friendIds;
+    }
+
+    //сверка индекса с таблицей friends. При расхождении индекс заменяется данными таблицы,
+    //возвращается количество несовпавших строк. Таблица читается без блокировки индекса: строки, записанные
+    //незавершёнными транзакциями или изменённые во время чтения, не сверяются и берутся из текущего индекса
+    @Scheduled(initialDelayString = "${filmorate.friend-index.check-interval:PT10M}",
+            fixedDelayString = "${filmorate.friend-index.check-interval:PT10M}")
+    public int checkConsistency() {
+        synchronized (checkLock) {
+            synchronized (this) {
+                edgesChangedDuringCheck = new HashSet<>(uncommittedEdges.keySet());
+                clearedDuringCheck = false;
+            }
+            Graph actual;
+            try {
+                actual = loadGraph();
+            } catch (RuntimeException e) {
+                finishCheck();
+                throw e;
+            }
+            return replaceIfDiffers(actual);
+        }
+    }
+
+    public long estimatedBytes() {  //примерный размер индекса в куче
+        return graph.estimatedBytes();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("filmorate.friend.index.bytes", this, FriendGraphIndex::estimatedBytes)
+                .description("Примерный размер индекса друзей в памяти")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("filmorate.friend.index.edges", this, index -> index.graph.edgeCount())
+                .description("Количество строк friends в индексе")
+                .register(registry);
+        mismatchCounter = Counter.builder("filmorate.friend.index.mismatches")
+                .description("Строки, в которых индекс друзей разошёлся с таблицей")
+                .register(registry);
+    }
+
+    private void applyAfterCommit(Edge edge, Consumer<Graph> change) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            applyNow(edge, change);
+            return;
+        }
+        synchronized (this) {
+            uncommittedEdges.merge(edge, 1, Integer::sum);
+            markChanged(edge);
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                applyNow(edge, change);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                synchronized (FriendGraphIndex.this) {
+                    uncommittedEdges.computeIfPresent(edge, (key, count) -> count > 1 ? count - 1 : null);
+                }
+            }
+        });
+    }
+
+    private synchronized void applyNow(Edge edge, Consumer<Graph> change) {
+        change.accept(graph);
+        markChanged(edge);
+    }
+
+    private synchronized void clearNow() {
+        graph = new Graph();
+        clearedDuringCheck = true;
+    }
+
+    private void markChanged(Edge edge) {
+        if (edgesChangedDuringCheck != null) {
+            edgesChangedDuringCheck.add(edge);
+        }
+    }
+
+    private synchronized void finishCheck() {
+        edgesChangedDuringCheck = null;
+    }
+
+    private synchronized int replaceIfDiffers(Graph actual) {
+        Set<Edge> skipped = edgesChangedDuringCheck;
+        edgesChangedDuringCheck = null;
+        if (clearedDuringCheck) {  //прочитанная таблица могла устареть целиком, сверка - в следующий раз
+            return 0;
+        }
+        for (Edge edge : skipped) {
+            actual.copyEdge(graph, edge);
+        }
+        int mismatches = graph.countDifferences(actual) + actual.countDifferences(graph);
+        if (mismatches > 0) {
+            log.warn("Индекс друзей расходится с таблицей friends в {} строках, индекс перезагружен", mismatches);
+            graph = actual;
+            if (mismatchCounter != null) {
+                mismatchCounter.increment(mismatches);
+            }
+        }
+        return mismatches;
+    }
+
+    private Graph loadGraph() {
+        Graph loaded = new Graph();
+        jdbcTemplate.query("select user_id, friend_id, friendship_status_id from friends",
+                (RowCallbackHandler) resultSet -> loaded.put(resultSet.getLong("user_id"),
+                        resultSet.getLong("friend_id"), resultSet.getInt("friendship_status_id")));
+        return loaded;
+    }
+
+    private static class Graph {
+        private final Map<Long, FriendshipStatusMap> outgoing = new ConcurrentHashMap<>();
+        private final Map<Long, LongHashSet> incomingConfirmed = new ConcurrentHashMap<>();
+
+        private void put(long userId, long friendId, int statusId) {
+            String status = statusId == CONFIRMED_STATUS_ID
+                    ? FriendshipStatusMap.CONFIRMED : FriendshipStatusMap.UNCONFIRMED;
+            outgoing.computeIfAbsent(userId, id -> new FriendshipStatusMap()).put(friendId, status);
+            if (statusId == CONFIRMED_STATUS_ID) {
+                incomingConfirmed.computeIfAbsent(friendId, id -> new LongHashSet()).add(userId);
+            } else {
+                removeIncoming(friendId, userId);
+            }
+        }
+
+        private void copyEdge(Graph source, Edge edge) {  //строка edge принимает состояние из source
+            FriendshipStatusMap friends = source.outgoing.get(edge.getUserId());
+            String status = friends == null ? null : friends.get(edge.getFriendId());
+            if (status == null) {
+                remove(edge.getUserId(), edge.getFriendId());
+            } else {
+                put(edge.getUserId(), edge.getFriendId(), FriendshipStatusMap.CONFIRMED.equals(status)
+                        ? CONFIRMED_STATUS_ID : UNCONFIRMED_STATUS_ID);
+            }
+        }
+
+        private void remove(long userId, long friendId) {
+            FriendshipStatusMap friends = outgoing.get(userId);
+            if (friends != null) {
+                friends.remove(friendId);
+                if (friends.isEmpty()) {
+                    outgoing.remove(userId);
+                }
+            }
+            removeIncoming(friendId, userId);
+        }
+
+        private void removeIncoming(long userId, long followerId) {
+            LongHashSet followers = incomingConfirmed.get(userId);
+            if (followers != null) {
+                followers.remove(followerId);
+                if (followers.isEmpty()) {
+                    incomingConfirmed.remove(userId);
+                }
+            }
+        }
+
+        private long edgeCount() {
+            long count = 0;
+            for (FriendshipStatusMap friends : outgoing.values()) {
+                count += friends.size();
+            }
+            return count;
+        }
+
+        private int countDifferences(Graph other) {  //строки этого графа, которых нет в other или у которых
+            // другой статус
+            int differences = 0;
+            for (Map.Entry<Long, FriendshipStatusMap> entry : outgoing.entrySet()) {
+                FriendshipStatusMap otherFriends = other.outgoing.get(entry.getKey());
+                for (Map.Entry<Long, String> friend : entry.getValue().entrySet()) {
+                    if (otherFriends == null || !friend.getValue().equals(otherFriends.get(friend.getKey()))) {
+                        differences++;
+                    }
+                }
+            }
+            return differences;
+        }
+
+        private long estimatedBytes() {
+            long bytes = 0;
+            for (FriendshipStatusMap friends : outgoing.values()) {
+                bytes += MAP_ENTRY_BYTES + friends.estimatedBytes();
+            }
+            for (LongHashSet followers : incomingConfirmed.values()) {
+                bytes += MAP_ENTRY_BYTES + followers.estimatedBytes();
+            }
+            return bytes;
+        }
+    }
+
+    @Value
+    private static class Edge {  //строка friends (userId, friendId)
+        long userId;
+        long friendId;
+    }
+}
@@ -1,5 +1,6 @@
 package ru.yandex.practicum.filmorate.storage.user;
 
+import io.micrometer.core.annotation.Timed;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Primary;
 import org.springframework.http.HttpStatus;
@@ -8,19 +9,41 @@ import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exception.UserNotFoundException;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.utils.FriendshipStatusMap;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Slf4j
+@Timed("filmorate.storage")
 @Component
 @Primary
 public class InMemoryUserStorage implements UserStorage {
 
-    private final Map<Long, User> userMap = new HashMap<>();
-    private int id = 0;
+    private static final int LOCK_STRIPES = 64;  //количество блокировок, между которыми распределяются пользователи
+
+    private final Map<Long, User> userMap = new ConcurrentHashMap<>();
+    private final AtomicLong id = new AtomicLong();
+    //количество друзей каждого пользователя, меняется под теми же блокировками, что и списки друзей
+    private final Map<Long, LongAdder> friendCounts = new ConcurrentHashMap<>();
+
+    // Дружба меняет записи сразу двух пользователей, поэтому такие операции выполняются под блокировками обоих
+    // пользователей, которые захватываются в порядке номера полосы, чтобы исключить взаимную блокировку
+    private final Object[] friendLocks = new Object[LOCK_STRIPES];
+
+    public InMemoryUserStorage() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            friendLocks[i] = new Object();
+        }
+    }
 
     @Override
     public ResponseEntity<User> addUser(User user) throws ValidationException {  //добавление пользователя
@@ -30,8 +53,8 @@ public class InMemoryUserStorage implements UserStorage {
         if (user.getName() == null || user.getName().isBlank()) {
             user.setName(user.getLogin());
         }
-        user.setId(id + 1);
-        id++;
+        user.setId(id.incrementAndGet());
+        friendCounts.put(user.getId(), new LongAdder());
         this.userMap.put(user.getId(), user);
         log.debug("Добавление пользователя: {}", user);
         return new ResponseEntity<>(user, HttpStatus.CREATED);
@@ -45,10 +68,11 @@ public class InMemoryUserStorage implements UserStorage {
         if (user.getName() == null || user.getName().isBlank()) {
             user.setName(user.getLogin());
         }
-        if (!userMap.containsKey(user.getId())) {
-            throw new UserNotFoundException("Пользователя с id = " + user.getId() + " не существует");
+        synchronized (lockFor(user.getId())) {  //друзья переносятся в новую версию пользователя
+            User oldUser = getUserById(user.getId());
+            user.getMapFriends().putAll(oldUser.getMapFriends());
+            this.userMap.replace(user.getId(), user);
         }
-        this.userMap.replace(user.getId(), user);
         log.debug("Обновление пользователя: {}", user);
         return new ResponseEntity<>(user, HttpStatus.OK);
     }
@@ -58,57 +82,120 @@ public class InMemoryUserStorage implements UserStorage {
         return new ArrayList<>(userMap.values());
     }
 
+    @Override
+    public List<User> getUsersPage(long afterId, int size) {  //получение страницы пользователей с id больше afterId
+        return userMap.values().stream()
+                .filter(user -> user.getId() > afterId)
+                .sorted(Comparator.comparingLong(User::getId))
+                .limit(size)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void streamAllUsers(Consumer<User> consumer) {  //поочерёдная выдача всех пользователей
+        userMap.values().forEach(consumer);
+    }
+
     @Override
     public void clearUserMap() {  //удаление всех пользователей
         userMap.clear();
-        id = 0;
+        friendCounts.clear();
+        id.set(0);
         log.debug("Удаление всех пользователей");
     }
 
     @Override
     public User getUserById(long id) {  //получение пользователя по id
-        if (!userMap.containsKey(id)) {
+        User user = userMap.get(id);
+        if (user == null) {
             throw new UserNotFoundException("Пользователя с id = " + id + " не существует");
         }
-        return userMap.get(id);
+        return user;
     }
 
     @Override
     public User addFriend(Long userId, Long friendId) { //добавление в друзья
-        if (!userMap.containsKey(userId)) {
-            throw new UserNotFoundException("Пользователя с id = " + id + " не существует");
-        }
-        if (!userMap.containsKey(friendId)) {
-            throw new UserNotFoundException("Пользователя с id = " + id + " не существует");
-        }
-        userMap.get(userId).addFriend(userMap.get(friendId));
-        return userMap.get(userId);
+        getUserById(userId);
+        getUserById(friendId);
+        lockBoth(userId, friendId, () -> {
+            User user = getUserById(userId);
+            int before = user.getMapFriends().size();
+            user.addFriend(getUserById(friendId));
+            friendCounts.get(userId).add(user.getMapFriends().size() - before);
+        });
+        return getUserById(userId);
     }
 
     @Override
     public List<User> getFriends(Long userId) {  //получение списка друзей
-        if (!userMap.containsKey(userId)) {
-            throw new UserNotFoundException("Пользователя с id = " + id + " не существует");
-        }
         List<User> listOfFriends = new ArrayList<>();
-        for (Long id : userMap.get(userId).getFriends()) {
-            listOfFriends.add(userMap.get(id));
+        for (Long id : getUserById(userId).getFriends()) {
+            User friend = userMap.get(id);
+            if (friend != null) {
+                listOfFriends.add(friend);
+            }
         }
         return listOfFriends;
     }
 
     @Override
-    public List<User> getListOfMutualFriends(Long user1Id, Long user2Id) {  //получение списка общих друзей
-        if (!userMap.containsKey(user1Id)) {
-            throw new UserNotFoundException("Пользователя с id = " + id + " не существует");
+    public long[] getFriendIds(long userId) {  //id друзей пользователя по возрастанию
+        User user = userMap.get(userId);
+        if (user == null) {
+            return new long[0];
         }
-        if (!userMap.containsKey(user2Id)) {
-            throw new UserNotFoundException("Пользователя с id = " + id + " не существует");
+        long[] friendIds = user.getMapFriends().friendIds();
+        Arrays.sort(friendIds);
+        return friendIds;
+    }
+
+    @Override
+    public long getFriendCount(long userId) {  //количество друзей пользователя
+        LongAdder friendCount = friendCounts.get(userId);
+        if (friendCount == null) {
+            throw new UserNotFoundException("Пользователя с id = " + userId + " не существует");
+        }
+        return friendCount.sum();
+    }
+
+    @Override
+    public List<User> getUsersByIds(long[] userIds) {  //пользователи по возрастающему списку id
+        List<User> users = new ArrayList<>();
+        for (long id : userIds) {
+            User user = userMap.get(id);
+            if (user != null) {
+                users.add(user);
+            }
         }
+        return users;
+    }
+
+    @Override
+    public List<User> getListOfMutualFriends(Long user1Id, Long user2Id) {  //получение списка общих друзей
+        return getListOfMutualFriends(user1Id, user2Id, null);
+    }
+
+    @Override
+    public List<User> getListOfMutualFriends(Long user1Id, Long user2Id, Integer limit) {  //получение не более
+        // limit общих друзей: обход меньшего списка друзей с проверкой по хеш-таблице большего
+        User user1 = getUserById(user1Id);
+        User user2 = getUserById(user2Id);
+        FriendshipStatusMap smaller = user1.getMapFriends();
+        FriendshipStatusMap larger = user2.getMapFriends();
+        if (smaller.size() > larger.size()) {
+            smaller = user2.getMapFriends();
+            larger = user1.getMapFriends();
+        }
+        long[] friendIds = smaller.friendIds();
+        Arrays.sort(friendIds);
         List<User> listOfMutualFriends = new ArrayList<>();
-        for (Long id : userMap.get(user1Id).getFriends()) {
-            if (userMap.get(user2Id).getFriends().contains(id)) {
-                listOfMutualFriends.add(userMap.get(id));
+        for (long id : friendIds) {
+            if (limit != null && listOfMutualFriends.size() >= limit) {
+                break;
+            }
+            User friend = userMap.get(id);
+            if (larger.containsKey(id) && friend != null) {
+                listOfMutualFriends.add(friend);
             }
         }
         return listOfMutualFriends;
@@ -116,14 +203,39 @@ public class InMemoryUserStorage implements UserStorage {
 
     @Override
     public ResponseEntity<User> deleteFriend(Long userId, Long friendId) {  //удаление друга
-        if (!userMap.containsKey(userId)) {
-            throw new UserNotFoundException("Пользователя с id = " + id + " не существует");
-        }
-        if (!userMap.containsKey(friendId)) {
-            throw new UserNotFoundException("Пользователя с id = " + id + " не существует");
+        getUserById(userId);
+        getUserById(friendId);
+        lockBoth(userId, friendId, () -> {
+            User user = getUserById(userId);
+            User friend = getUserById(friendId);
+            if (user.isFriend(friendId)) {
+                user.deleteFriend(friend);
+                friendCounts.get(userId).decrement();
+            }
+            if (friend.isFriend(userId)) {
+                friend.deleteFriend(user);
+                friendCounts.get(friendId).decrement();
+            }
+        });
+        return new ResponseEntity<>(getUserById(userId), HttpStatus.OK);
+    }
+
+    private Object lockFor(long userId) {  //блокировка полосы, к которой относится пользователь
+        return friendLocks[stripe(userId)];
+    }
+
+    private int stripe(long userId) {
+        return (Long.hashCode(userId) & 0x7fffffff) % LOCK_STRIPES;
+    }
+
+    private void lockBoth(long userId, long friendId, Runnable action) {  //выполнение действия под блокировками
+        // обоих пользователей
+        int first = Math.min(stripe(userId), stripe(friendId));
+        int second = Math.max(stripe(userId), stripe(friendId));
+        synchronized (friendLocks[first]) {
+            synchronized (friendLocks[second]) {
+                action.run();
+            }
         }
-        userMap.get(userId).deleteFriend(userMap.get(friendId));
-        userMap.get(friendId).deleteFriend(userMap.get(userId));
-        return new ResponseEntity<>(userMap.get(userId), HttpStatus.OK);
     }
 }
@@ -1,16 +1,29 @@
 package ru.yandex.practicum.filmorate.storage.user;
 
+import io.micrometer.core.annotation.Timed;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.yandex.practicum.filmorate.exception.UserNotFoundException;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.RequestIdentityMap;
+import ru.yandex.practicum.filmorate.utils.FriendshipStatusMap;
 
 import java.sql.Date;
 import java.sql.PreparedStatement;
@@ -18,16 +31,37 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.function.Consumer;
 
 @Slf4j
+@Timed("filmorate.storage")
 @Repository("userDbStorage")
 public class UserDbStorage implements UserStorage {
 
+    private static final String SQL_SELECT_USERS = "select user_id, login, name, email, birthday from \"user\"";
+
+    private static final int STREAM_FETCH_SIZE = 500;
+
+    //наибольшее количество id в одном условии in (...)
+    private static final int MAX_IN_LIST_SIZE = 1000;
+
     private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+    private final FriendGraphIndex friendGraph;
+    private final RequestIdentityMap identityMap;
+    private final TransactionTemplate primaryTemplate;  //отдельная транзакция для чтения, идущая в основную базу
 
-    public UserDbStorage(JdbcTemplate jdbcTemplate) {
+    public UserDbStorage(JdbcTemplate jdbcTemplate, FriendGraphIndex friendGraph, RequestIdentityMap identityMap,
+                         PlatformTransactionManager transactionManager) {
         this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.friendGraph = friendGraph;
+        this.identityMap = identityMap;
+        this.primaryTemplate = new TransactionTemplate(transactionManager);
+        primaryTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
     }
 
     @Override  //добавление пользователя
@@ -46,6 +80,7 @@ public class UserDbStorage implements UserStorage {
         }, keyHolder);
         long userId = keyHolder.getKey().longValue();
         user.setId(userId);
+        identityMap.markExistingUser(userId);
 
         log.debug("Добавление пользователя: {}", user.getLogin());
         return new ResponseEntity<>(user, HttpStatus.CREATED);
@@ -54,140 +89,219 @@ public class UserDbStorage implements UserStorage {
     @Override  //обновление пользователя
     public ResponseEntity<User> updateUser(User user) throws ValidationException {
         checkEnteredData(user);
-        checkUserId(user.getId());
 
         String sql = "update \"user\" set " +
                 "user_id = ?, login = ?, name = ?, email = ?, birthday = ? " +
                 "where user_id = ?";
 
-        jdbcTemplate.update(sql,
+        int updated = jdbcTemplate.update(sql,
                 user.getId(),
                 user.getLogin(),
                 user.getName(),
                 user.getEmail(),
                 user.getBirthday(),
                 user.getId());
+        if (updated == 0) {  //существование проверяется по количеству изменённых строк
+            throw new UserNotFoundException("Пользователя с таким id не существует");
+        }
+        identityMap.evictUser(user.getId());
 
         log.debug("Обновление пользователя: {}", user.getLogin());
         return new ResponseEntity<>(user, HttpStatus.OK);
     }
 
     @Override  //получение всех пользователей
+    @Transactional(readOnly = true)
     public List<User> getAllUsers() {
-        String sql = "select * from \"user\"";
+        String sql = "select * from \"user\" order by user_id";
         List<User> userList = jdbcTemplate.query(sql, this::mapRowToUser);
 
-        for (User user : userList) {
-            addFriendsToUser(user);
-        }
+        addFriendsToUsers(userList);
         return userList;
     }
 
-    @Override  //получение пользователя по id
+    @Override  //получение страницы пользователей с id больше afterId
+    @Transactional(readOnly = true)
+    public List<User> getUsersPage(long afterId, int size) {
+        String sql = "select * from \"user\" where user_id > ? order by user_id limit ?";
+        List<User> userList = jdbcTemplate.query(sql, this::mapRowToUser, afterId, size);
+
+        addFriendsToUsers(userList);
+        return userList;
+    }
+
+    @Override  //поочерёдная выдача всех пользователей без накопления в памяти
+    public void streamAllUsers(Consumer<User> consumer) {
+        jdbcTemplate.query(connection -> {
+            PreparedStatement stmt = connection.prepareStatement(SQL_SELECT_USERS + " order by user_id");
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+            return stmt;
+        }, (RowCallbackHandler) resultSet -> {
+            User user = mapRowToUser(resultSet, 0);
+            addFriendsToUsers(List.of(user));
+            consumer.accept(user);
+        });
+    }
+
+    @Override  //получение пользователя по id, повторно в рамках запроса - без обращения к базе
     public User getUserById(long id) {
-        checkUserId(id);
+        User cached = identityMap.getUser(id);
+        if (cached != null) {
+            return cached;
+        }
 
-        String sqlForUser = "select * from \"user\" where user_id = ?";
-        User user = jdbcTemplate.queryForObject(sqlForUser, this::mapRowToUser, id);
+        List<User> users = jdbcTemplate.query(SQL_SELECT_USERS + " where user_id = ?", this::mapRowToUser, id);
+        if (users.isEmpty()) {
+            throw new UserNotFoundException("Пользователя с таким id не существует");
+        }
+        User user = users.get(0);
 
-        addFriendsToUser(user);
+        addFriendsToUsers(List.of(user));
+        identityMap.putUser(user);
         return user;
     }
 
     @Override  //удаление всех пользователей
     public void clearUserMap() {
-        String sql = "delete from \"user\"";
-        jdbcTemplate.update(sql);
-
         String sqlForFriends = "delete from friends";
         jdbcTemplate.update(sqlForFriends);
 
         String sqlForLikes = "delete from likes";
         jdbcTemplate.update(sqlForLikes);
+
+        String sql = "delete from \"user\"";
+        jdbcTemplate.update(sql);
+
+        String sqlForLikeCount = "update film set like_count = 0";
+        jdbcTemplate.update(sqlForLikeCount);
+
+        friendGraph.clear();
+        identityMap.clear();
     }
 
-    @Override //добавление в друзья
+    @Override //добавление в друзья, friend_count меняется в той же транзакции.
+    // Существование друга проверяет внешний ключ таблицы friends, отдельного запроса нет
+    @Transactional
     public User addFriend(Long userId, Long friendId) {
         User user = getUserById(userId);
-        User friend = getUserById(friendId);
 
-        if (friend.isFriend(userId)) {
+        if (user.isFriend(friendId)) {  //заявка уже отправлена или дружба уже подтверждена
+            return user;
+        }
+        if (friendGraph.hasEdge(friendId, userId)) {
             String sql = "update friends set friendship_status_id = ? where user_id = ? and friend_id = ?";
             jdbcTemplate.update(sql, 1, friendId, userId);
+            friendGraph.putEdge(friendId, userId, 1);
+            user.addFriend(friendId, FriendshipStatusMap.CONFIRMED);
         } else {
             String sql = "insert into friends (user_id, friend_id, friendship_status_id) values (?, ?, ?)";
-            jdbcTemplate.update(sql, userId, friendId, 2);
+            try {
+                jdbcTemplate.update(sql, userId, friendId, 2);
+            } catch (DuplicateKeyException e) {  //заявку успел записать параллельный запрос
+                return addExistingFriend(user, friendId);
+            } catch (DataIntegrityViolationException e) {
+                throw new UserNotFoundException("Пользователя с таким id не существует");
+            }
+            identityMap.markExistingUser(friendId);
+            friendGraph.putEdge(userId, friendId, 2);
+            user.addFriend(friendId, FriendshipStatusMap.UNCONFIRMED);
         }
-
-        user.addFriend(friend);
+        changeFriendCount(userId, 1);  //у friendId userId уже был в друзьях или остаётся входящей заявкой
         return user;
     }
 
     @Override  //получение списка друзей
+    @Transactional(readOnly = true)
     public List<User> getFriends(Long userId) {
-        checkUserId(userId);
-
-        String sql = "select friend_id as user_id from friends where user_id = ? "
-                + "union "
-                + "select user_id from friends where friend_id = ? and friendship_status_id = 1";
-
-        List<Long> listFriendsId = jdbcTemplate.query(sql, this::mapRowToIdUser, userId, userId);
+        List<User> listFriends = getIndexedUsers(friendGraph.getFriendIds(userId));
+        if (listFriends.isEmpty()) {
+            checkUserId(userId);
+        }
+        return listFriends;
+    }
 
-        List<User> listFriends = new ArrayList<>();
+    @Override  //id друзей пользователя по возрастанию
+    public long[] getFriendIds(long userId) {
+        return friendGraph.getFriendIds(userId);
+    }
 
-        if (!listFriendsId.isEmpty()) {
-            for (Long id : listFriendsId) {
-                String sqlForFriend = "select * from \"user\" where user_id = ?";
-                User friend = jdbcTemplate.queryForObject(sqlForFriend, this::mapRowToUser, id);
-                listFriends.add(friend);
-            }
+    @Override  //количество друзей пользователя из столбца friend_count
+    @Transactional(readOnly = true)
+    public long getFriendCount(long userId) {
+        List<Long> counts = jdbcTemplate.queryForList("select friend_count from \"user\" where user_id = ?",
+                Long.class, userId);
+        if (counts.isEmpty()) {
+            throw new UserNotFoundException("Пользователя с таким id не существует");
         }
-        return listFriends;
+        return counts.get(0);
     }
 
     @Override  //получение списка общих друзей
+    @Transactional(readOnly = true)
     public List<User> getListOfMutualFriends(Long user1Id, Long user2Id) {
-        checkUserId(user1Id);
-        checkUserId(user2Id);
-
-        String sqlUser = "select friend_id as user_id from friends where user_id = ? "
-                + "union "
-                + "select user_id from friends where friend_id = ? and friendship_status_id = 1";
-
-        List<Long> listFriendsUser1 = jdbcTemplate.query(sqlUser, this::mapRowToIdUser, user1Id, user1Id);
-
-        List<Long> listFriendsUser2 = jdbcTemplate.query(sqlUser, this::mapRowToIdUser, user2Id, user2Id);
-
-        List<Long> listManualFriendsOfUsers = new ArrayList<>();
+        return getListOfMutualFriends(user1Id, user2Id, null);
+    }
 
-        for (Long id : listFriendsUser1) {
-            if (listFriendsUser2.contains(id)) {
-                listManualFriendsOfUsers.add(id);
+    @Override  //получение не более limit общих друзей
+    @Transactional(readOnly = true)
+    public List<User> getListOfMutualFriends(Long user1Id, Long user2Id, Integer limit) {
+        //пересечение отсортированных списков друзей из индекса, затем один запрос за самими пользователями
+        long[] friends1 = friendGraph.getFriendIds(user1Id);
+        long[] friends2 = friendGraph.getFriendIds(user2Id);
+        int maxSize = limit == null ? Integer.MAX_VALUE : limit;
+        long[] mutualIds = new long[Math.min(maxSize, Math.min(friends1.length, friends2.length))];
+        int count = 0;
+        for (int i = 0, j = 0; i < friends1.length && j < friends2.length && count < mutualIds.length; ) {
+            if (friends1[i] < friends2[j]) {
+                i++;
+            } else if (friends1[i] > friends2[j]) {
+                j++;
+            } else {
+                mutualIds[count++] = friends1[i];
+                i++;
+                j++;
             }
         }
 
-        List<User> listFriends = new ArrayList<>();
-
-        if (!listManualFriendsOfUsers.isEmpty()) {
-            for (Long id : listManualFriendsOfUsers) {
-                String sqlForFriend = "select * from \"user\" where user_id = ?";
-                User friend = jdbcTemplate.queryForObject(sqlForFriend, this::mapRowToUser, id);
-                listFriends.add(friend);
-            }
+        List<User> listFriends = getIndexedUsers(Arrays.copyOf(mutualIds, count));
+        if (listFriends.isEmpty()) {  //существование пользователей проверяется только при пустом результате
+            checkUserId(user1Id);
+            checkUserId(user2Id);
         }
         return listFriends;
     }
 
-    @Override   //удаление друга
+    //удаление друга, существование пользователей проверяется только если удалять было нечего.
+    //Индекс друзей меняется только после фиксации, поэтому friend_count уменьшается по строкам, удалённым
+    //в этой транзакции: строки блокируются при чтении статуса, и параллельное удаление той же дружбы
+    //находит их уже удалёнными
+    @Override
+    @Transactional
     public ResponseEntity<User> deleteFriend(Long userId, Long friendId) {
-        checkUserId(userId);
-        checkUserId(friendId);
+        Integer status = lockFriendshipStatus(userId, friendId);
+        Integer reverseStatus = lockFriendshipStatus(friendId, userId);
 
         String sql = "delete from friends where user_id = ? and friend_id = ?";
-        jdbcTemplate.update(sql, userId, friendId);
-        jdbcTemplate.update(sql, friendId, userId);
+        boolean deleted = jdbcTemplate.update(sql, userId, friendId) > 0;
+        boolean reverseDeleted = jdbcTemplate.update(sql, friendId, userId) > 0;
+        if (!deleted && !reverseDeleted) {
+            checkUserId(userId);
+            checkUserId(friendId);
+        }
+        friendGraph.removeEdge(userId, friendId);
+        friendGraph.removeEdge(friendId, userId);
+        //друзья пользователя - его заявки и подтверждённые входящие, как в V4__friend_count.sql
+        if (deleted || reverseDeleted && reverseStatus != null && reverseStatus == 1) {
+            changeFriendCount(userId, -1);
+        }
+        if (reverseDeleted || deleted && status != null && status == 1) {
+            changeFriendCount(friendId, -1);
+        }
+        identityMap.evictUser(userId);
+        identityMap.evictUser(friendId);
 
         User user = getUserById(userId);
+        user.getMapFriends().remove(friendId);  //индекс друзей изменится только после фиксации
 
         return new ResponseEntity<>(user, HttpStatus.OK);
     }
@@ -196,10 +310,6 @@ public class UserDbStorage implements UserStorage {
         return resultSet.getLong("user_id");
     }
 
-    private Long mapRowToIdFriend(ResultSet resultSet, int rowNum) throws SQLException {
-        return resultSet.getLong("friend_id");
-    }
-
     private User mapRowToUser(ResultSet resultSet, int rowNum) throws SQLException {
         return User.builder()
                 .id(resultSet.getLong("user_id"))
@@ -219,44 +329,81 @@ public class UserDbStorage implements UserStorage {
         }
     }
 
+    private void changeFriendCount(long userId, int delta) {
+        jdbcTemplate.update("update \"user\" set friend_count = friend_count + ? where user_id = ?", delta, userId);
+    }
+
+    private Integer lockFriendshipStatus(long userId, long friendId) {  //статус строки friends или null
+        String sql = "select friendship_status_id from friends where user_id = ? and friend_id = ? for update";
+        List<Integer> statuses = jdbcTemplate.queryForList(sql, Integer.class, userId, friendId);
+        return statuses.isEmpty() ? null : statuses.get(0);
+    }
+
+    //заявка уже есть в базе: пользователь получает её текущий статус, friend_count уже учтён
+    private User addExistingFriend(User user, long friendId) {
+        String sql = "select friendship_status_id from friends where user_id = ? and friend_id = ?";
+        Integer statusId = jdbcTemplate.queryForObject(sql, Integer.class, user.getId(), friendId);
+        user.addFriend(friendId, statusId == 1 ? FriendshipStatusMap.CONFIRMED : FriendshipStatusMap.UNCONFIRMED);
+        return user;
+    }
+
     private void checkUserId(Long id) {
+        if (identityMap.isExistingUser(id)) {
+            return;
+        }
         try {
             String sqlForUserId = "select user_id from \"user\" where user_id = ?";
             jdbcTemplate.queryForObject(sqlForUserId, this::mapRowToIdUser, id);
         } catch (EmptyResultDataAccessException e) {
             throw new UserNotFoundException("Пользователя с таким id не существует");
         }
+        identityMap.markExistingUser(id);
     }
 
-    private void addFriendsToUser(User user) {
-        String sqlForFriendsConfirmed = "select friend_id as user_id from friends where user_id = ? "
-                + "and friendship_status_id = 1"
-                + "union "
-                + "select user_id from friends where friend_id = ? and friendship_status_id = 1";
-        List<Long> listConfirmedFriendsId = jdbcTemplate.query(sqlForFriendsConfirmed, this::mapRowToIdUser,
-                user.getId(), user.getId());
-
-        if (!listConfirmedFriendsId.isEmpty()) {
-            for (Long friendId : listConfirmedFriendsId) {
-                String sqlForFriend = "select * from \"user\" where user_id = ?";
-                User friend = jdbcTemplate.queryForObject(sqlForFriend, this::mapRowToUser, friendId);
-                user.addFriend(friend);
-                user.setStatusFriendship(friendId, "confirmed");
+    @Override  //получение пользователей по возрастающему списку id, запросами не длиннее MAX_IN_LIST_SIZE
+    public List<User> getUsersByIds(long[] userIds) {
+        List<User> userList = new ArrayList<>();
+        for (int from = 0; from < userIds.length; from += MAX_IN_LIST_SIZE) {
+            List<Long> ids = new ArrayList<>();
+            for (int i = from; i < Math.min(from + MAX_IN_LIST_SIZE, userIds.length); i++) {
+                ids.add(userIds[i]);
             }
+            String sql = SQL_SELECT_USERS + " where user_id in (:ids) order by user_id";
+            userList.addAll(namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("ids", ids),
+                    this::mapRowToUser));
         }
+        return userList;
+    }
 
-        String sqlForFriendsUnconfirmed = "select friend_id from friends where user_id = ? "
-                + "and friendship_status_id = 2";
-        List<Long> listUnconfirmedFriendsId = jdbcTemplate.query(sqlForFriendsUnconfirmed, this::mapRowToIdFriend,
-                user.getId());
-
-        if (!listUnconfirmedFriendsId.isEmpty()) {
-            for (Long friendId : listUnconfirmedFriendsId) {
-                String sqlForFriend = "select * from \"user\" where user_id = ?";
-                User friend = jdbcTemplate.queryForObject(sqlForFriend, this::mapRowToUser, friendId);
-                user.addFriend(friend);
-                user.setStatusFriendship(friendId, "unconfirmed");
+    //пользователи по id из индекса друзей. Индекс меняется после фиксации в основной базе, и в отстающей реплике
+    //только что созданного друга может ещё не быть: недостающие пользователи дочитываются из основной базы
+    private List<User> getIndexedUsers(long[] userIds) {
+        List<User> userList = getUsersByIds(userIds);
+        if (userList.size() == userIds.length || !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return userList;
+        }
+        long[] missingIds = new long[userIds.length - userList.size()];
+        int count = 0;
+        for (int i = 0, j = 0; i < userIds.length && count < missingIds.length; i++) {  //оба списка по возрастанию
+            if (j < userList.size() && userList.get(j).getId() == userIds[i]) {
+                j++;
+            } else {
+                missingIds[count++] = userIds[i];
             }
         }
+        List<User> missing = primaryTemplate.execute(status -> getUsersByIds(missingIds));
+        if (missing == null || missing.isEmpty()) {
+            return userList;
+        }
+        userList.addAll(missing);
+        userList.sort(Comparator.comparingLong(User::getId));
+        return userList;
+    }
+
+    //друзья пользователей берутся из индекса, без обращения к таблице friends
+    private void addFriendsToUsers(List<User> userList) {
+        for (User user : userList) {
+            user.getMapFriends().putAll(friendGraph.getFriends(user.getId()));
+        }
     }
 }
@@ -5,6 +5,7 @@ import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.User;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface UserStorage {
 
@@ -14,6 +15,11 @@ public interface UserStorage {
 
     public List<User> getAllUsers();  //получение всех пользователей
 
+    public List<User> getUsersPage(long afterId, int size);  //получение страницы пользователей с id больше afterId
+
+    public void streamAllUsers(Consumer<User> consumer);  //поочерёдная выдача всех пользователей без накопления
+    // в памяти
+
     public User getUserById(long id);  //получение пользователя по id
 
     public void clearUserMap();  //удаление всех пользователей
@@ -22,7 +28,16 @@ public interface UserStorage {
 
     public List<User> getFriends(Long userId);  //получение списка друзей
 
+    public long[] getFriendIds(long userId);  //id друзей пользователя по возрастанию
+
+    public long getFriendCount(long userId);  //количество друзей пользователя
+
+    public List<User> getUsersByIds(long[] userIds);  //пользователи по возрастающему списку id, без списков друзей
+
     public List<User> getListOfMutualFriends(Long user1Id, Long user2Id);  //получение списка общих друзей
 
+    public List<User> getListOfMutualFriends(Long user1Id, Long user2Id, Integer limit);  //получение не более limit
+    // общих друзей в порядке id, при limit = null - всех
+
     public ResponseEntity<User> deleteFriend(Long userId, Long friendId);   //удаление друга
 }
@@ -0,0 +1,159 @@
+package ru.yandex.practicum.filmorate.utils;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+//потокобезопасное отображение id друга в статус дружбы. Статус хранится одним байтом (как в таблице
+//friendship_status), а наружу отдаётся прежними строками, поэтому json не меняется. Допускаются только
+//"confirmed" и "unconfirmed": отображение заполняется и из тела запроса, другие строки отклоняются
+public class FriendshipStatusMap extends AbstractMap<Long, String> {
+
+    public static final String CONFIRMED = "confirmed";
+    public static final String UNCONFIRMED = "unconfirmed";
+
+    private static final byte CONFIRMED_CODE = 1;  //коды совпадают с id в таблице friendship_status
+    private static final byte UNCONFIRMED_CODE = 2;
+
+    private final LongByteHashMap map = new LongByteHashMap();
+
+    public synchronized String get(long friendId) {
+        return toStatus(map.get(friendId));
+    }
+
+    public synchronized boolean containsKey(long friendId) {
+        return map.get(friendId) != 0;
+    }
+
+    public synchronized String put(long friendId, String status) {
+        return toStatus(map.put(friendId, toCode(status)));
+    }
+
+    public synchronized String remove(long friendId) {
+        return toStatus(map.remove(friendId));
+    }
+
+    public synchronized long[] friendIds() {  //снимок id друзей
+        return map.keys();
+    }
+
+    public synchronized long estimatedBytes() {  //примерный размер отображения в куче
+        return 16 + map.estimatedBytes();
+    }
+
+    @Override
+    public String get(Object key) {
+        return key instanceof Long ? get(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && containsKey(((Long) key).longValue());
+    }
+
+    @Override
+    public String put(Long key, String value) {
+        return put(key.longValue(), value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        return key instanceof Long ? remove(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public synchronized String replace(Long key, String value) {
+        return containsKey(key.longValue()) ? put(key.longValue(), value) : null;
+    }
+
+    @Override
+    public synchronized int size() {
+        return map.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    //снимок записей по возрастанию id, как у прежнего HashMap<Long, String> с небольшими id, поэтому json
+    //не меняется. Удаление через итератор меняет само отображение
+    @Override
+    public Set<Entry<Long, String>> entrySet() {
+        long[] ids;
+        byte[] codes;
+        synchronized (this) {
+            ids = map.keys();
+            Arrays.sort(ids);
+            codes = map.valuesOf(ids);
+        }
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<Long, String>> iterator() {
+                return new Iterator<>() {
+                    private int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < ids.length;
+                    }
+
+                    @Override
+                    public Entry<Long, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<Long, String> entry = new SimpleImmutableEntry<>(ids[index], toStatus(codes[index]));
+                        index++;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (index == 0) {
+                            throw new IllegalStateException();
+                        }
+                        FriendshipStatusMap.this.remove(ids[index - 1]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ids.length;
+            }
+        };
+    }
+
+    @Override
+    public void putAll(Map<? extends Long, ? extends String> other) {
+        for (Entry<? extends Long, ? extends String> entry : other.entrySet()) {
+            put(entry.getKey().longValue(), entry.getValue());
+        }
+    }
+
+    private static byte toCode(String status) {
+        if (CONFIRMED.equals(status)) {
+            return CONFIRMED_CODE;
+        }
+        if (UNCONFIRMED.equals(status)) {
+            return UNCONFIRMED_CODE;
+        }
+        throw new IllegalArgumentException("Статус дружбы должен быть " + CONFIRMED + " или " + UNCONFIRMED);
+    }
+
+    private static String toStatus(byte code) {
+        switch (code) {
+            case CONFIRMED_CODE:
+                return CONFIRMED;
+            case UNCONFIRMED_CODE:
+                return UNCONFIRMED;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ru.yandex.practicum.filmorate.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+//запись json-массива в ответ по мере получения элементов, без сборки всего списка в памяти
+public class JsonArrayStreamWriter {
+
+    private JsonArrayStreamWriter() {
+    }
+
+    public static <T> void write(ObjectMapper objectMapper, OutputStream outputStream,
+                                 Consumer<Consumer<T>> source) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+            generator.writeStartArray();
+            try {
+                source.accept(element -> {
+                    try {
+                        objectMapper.writeValue(generator, element);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            generator.writeEndArray();
+        }
+    }
+}
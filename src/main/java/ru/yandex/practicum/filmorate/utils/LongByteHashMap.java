@@ -0,0 +1,154 @@
+package ru.yandex.practicum.filmorate.utils;
+
+import java.util.Arrays;
+
+//хеш-таблица с открытой адресацией из примитивных ключей long и значений byte, без упаковки в объекты.
+//Значение 0 означает пустую ячейку, поэтому хранить можно только ненулевые значения.
+//Класс не потокобезопасен, синхронизацию обеспечивают обёртки LongHashSet и FriendshipStatusMap
+public class LongByteHashMap {
+
+    private static final int MIN_CAPACITY = 4;
+
+    private long[] keys = new long[0];
+    private byte[] values = new byte[0];
+    private int size;
+    private int mask = -1;
+
+    public byte get(long key) {  //значение по ключу или 0, если ключа нет
+        if (size == 0) {
+            return 0;
+        }
+        int slot = find(key);
+        return slot < 0 ? 0 : values[slot];
+    }
+
+    public byte put(long key, byte value) {  //добавление или замена значения, возвращает прежнее значение или 0
+        if (value == 0) {
+            throw new IllegalArgumentException("Значение 0 зарезервировано для пустых ячеек");
+        }
+        if ((size + 1) * 4L > values.length * 3L) {
+            resize(Math.max(MIN_CAPACITY, values.length * 2));
+        }
+        int slot = slot(key);
+        while (values[slot] != 0) {
+            if (keys[slot] == key) {
+                byte previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return 0;
+    }
+
+    public byte remove(long key) {  //удаление ключа, возвращает прежнее значение или 0
+        if (size == 0) {
+            return 0;
+        }
+        int slot = find(key);
+        if (slot < 0) {
+            return 0;
+        }
+        byte previous = values[slot];
+        values[slot] = 0;
+        size--;
+        // сдвиг следующих элементов цепочки на освободившееся место, чтобы поиск не обрывался на пустой ячейке
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (values[next] == 0) {
+                return previous;
+            }
+            int home = slot(keys[next]);
+            boolean stays = free <= next ? free < home && home <= next : free < home || home <= next;
+            if (!stays) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                values[next] = 0;
+                free = next;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long estimatedBytes() {  //примерный размер в куче: объект и два массива с заголовками
+        return 32 + 16 + keys.length * 8L + 16 + values.length;
+    }
+
+    public void clear() {
+        keys = new long[0];
+        values = new byte[0];
+        size = 0;
+        mask = -1;
+    }
+
+    public LongByteHashMap copy() {  //независимая копия таблицы
+        LongByteHashMap copy = new LongByteHashMap();
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.size = size;
+        copy.mask = mask;
+        return copy;
+    }
+
+    public long[] keys() {  //копия всех ключей
+        long[] result = new long[size];
+        int index = 0;
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != 0) {
+                result[index++] = keys[slot];
+            }
+        }
+        return result;
+    }
+
+    public byte[] valuesOf(long[] keys) {  //значения для переданных ключей в том же порядке
+        byte[] result = new byte[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = get(keys[i]);
+        }
+        return result;
+    }
+
+    private int find(long key) {  //номер ячейки с ключом или -1
+        int slot = slot(key);
+        while (values[slot] != 0) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        byte[] oldValues = values;
+        keys = new long[capacity];
+        values = new byte[capacity];
+        mask = capacity - 1;
+        size = 0;
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != 0) {
+                put(oldKeys[slot], oldValues[slot]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(keys());
+    }
+}
@@ -0,0 +1,140 @@
+package ru.yandex.practicum.filmorate.utils;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.LongPredicate;
+
+//счётчики по ключам long в хеш-таблице с открытой адресацией, без упаковки в объекты.
+//Ключ, счётчик которого стал равен 0, удаляется. Класс не потокобезопасен:
+//при параллельном подсчёте каждый поток ведёт свою таблицу, а затем они объединяются через addAll
+public class LongIntHashMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys = new long[0];
+    private int[] values = new int[0];
+    private int size;
+    private int mask = -1;
+
+    public interface EntryConsumer {
+        void accept(long key, int value);
+    }
+
+    public void add(long key, int delta) {  //изменение счётчика ключа на delta
+        if (delta == 0) {
+            return;
+        }
+        if ((size + 1) * 4L > values.length * 3L) {
+            resize(Math.max(MIN_CAPACITY, values.length * 2));
+        }
+        int slot = slot(key);
+        while (values[slot] != 0) {
+            if (keys[slot] == key) {
+                values[slot] += delta;
+                if (values[slot] == 0) {
+                    removeSlot(slot);
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        size++;
+    }
+
+    public int get(long key) {  //значение счётчика или 0
+        if (size == 0) {
+            return 0;
+        }
+        int slot = slot(key);
+        while (values[slot] != 0) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    public void addAll(LongIntHashMap other) {  //прибавление счётчиков другой таблицы
+        other.forEach(this::add);
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != 0) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    //не более limit ключей с наибольшими счётчиками (при равенстве - с меньшим ключом), кроме исключённых
+    public long[] topKeys(int limit, LongPredicate excluded) {
+        Comparator<long[]> byRank = Comparator.<long[]>comparingLong(entry -> entry[1])
+                .thenComparingLong(entry -> -entry[0]);
+        PriorityQueue<long[]> top = new PriorityQueue<>(byRank);
+        forEach((key, value) -> {
+            if (excluded.test(key)) {
+                return;
+            }
+            top.add(new long[]{key, value});
+            if (top.size() > limit) {
+                top.poll();
+            }
+        });
+        long[] topKeys = new long[top.size()];
+        for (int i = topKeys.length - 1; i >= 0; i--) {
+            topKeys[i] = top.poll()[0];
+        }
+        return topKeys;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void removeSlot(int slot) {  //освобождение ячейки со сдвигом следующих элементов цепочки
+        values[slot] = 0;
+        size--;
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (values[next] == 0) {
+                return;
+            }
+            int home = slot(keys[next]);
+            boolean stays = free <= next ? free < home && home <= next : free < home || home <= next;
+            if (!stays) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                values[next] = 0;
+                free = next;
+            }
+        }
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != 0) {
+                add(oldKeys[slot], oldValues[slot]);
+            }
+        }
+    }
+}
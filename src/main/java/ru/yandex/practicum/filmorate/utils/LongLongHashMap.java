@@ -0,0 +1,71 @@
+package ru.yandex.practicum.filmorate.utils;
+
+//соответствие положительных ключей long положительным значениям long в хеш-таблице с открытой адресацией,
+//без упаковки в объекты. Ячейка таблицы занимает 16 байт, таблица заполнена от 3/8 до 3/4, поэтому на запись
+//приходится 21-43 байта. Класс не потокобезопасен
+public class LongLongHashMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys = new long[0];
+    private long[] values = new long[0];
+    private int size;
+    private int mask = -1;
+
+    public void put(long key, long value) {  //ключ и значение должны быть больше 0
+        if (key <= 0 || value <= 0) {
+            throw new IllegalArgumentException("Ключ и значение должны быть положительными");
+        }
+        if ((size + 1) * 4L > keys.length * 3L) {
+            resize(Math.max(MIN_CAPACITY, keys.length * 2));
+        }
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    public long get(long key) {  //значение или 0, если ключа нет
+        if (size == 0) {
+            return 0;
+        }
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        size = 0;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != 0) {
+                put(oldKeys[slot], oldValues[slot]);
+            }
+        }
+    }
+}
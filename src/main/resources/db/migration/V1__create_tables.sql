@@ -1,15 +1,3 @@
-DROP TABLE IF EXISTS genre_of_film;
-DROP TABLE IF EXISTS genre;
-
-DROP TABLE IF EXISTS friends;
-DROP TABLE IF EXISTS friendship_status;
-
-DROP TABLE IF EXISTS likes;
-DROP TABLE IF EXISTS "user";
-
-DROP TABLE IF EXISTS film;
-DROP TABLE IF EXISTS rating;
-
 CREATE TABLE IF NOT EXISTS rating (
 rating_id integer NOT NULL GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
 name varchar(10) NOT NULL,
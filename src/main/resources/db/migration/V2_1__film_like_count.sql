@@ -0,0 +1,5 @@
+-- Количество лайков фильма хранится в film.like_count для рейтинга популярных фильмов.
+ALTER TABLE film ADD COLUMN like_count bigint NOT NULL DEFAULT 0;
+
+-- лайки, поставленные до появления столбца; повторные лайки одного пользователя V3 удалит, поэтому они не считаются
+UPDATE film SET like_count = (SELECT count(DISTINCT l.user_id) FROM likes AS l WHERE l.film_id = film.film_id);
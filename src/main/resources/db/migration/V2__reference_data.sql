@@ -22,15 +22,3 @@ MERGE INTO friendship_status
     KEY(friendship_status_id)
 VALUES (1, 'confirmed'),
        (2, 'unconfirmed');
-
-
-
-
-
-
-
-
-
-
-
-
@@ -0,0 +1,20 @@
+-- H2 сам создаёт индекс для каждого внешнего ключа, поэтому выборки по likes(film_id), likes(user_id),
+-- genre_of_film(film_id), friends(user_id) и friends(friend_id) уже идут по индексам.
+-- Здесь добавляются уникальность связей и индекс для рейтинга фильмов.
+-- В базе, созданной старым schema.sql, могут быть повторные связи: остаётся запись с наименьшим id.
+DELETE FROM likes AS l WHERE EXISTS (SELECT 1 FROM likes AS d
+  WHERE d.film_id = l.film_id AND d.user_id = l.user_id AND d.likes_id < l.likes_id);
+
+DELETE FROM friends AS f WHERE EXISTS (SELECT 1 FROM friends AS d
+  WHERE d.user_id = f.user_id AND d.friend_id = f.friend_id AND d.friends_id < f.friends_id);
+
+DELETE FROM genre_of_film AS g WHERE EXISTS (SELECT 1 FROM genre_of_film AS d
+  WHERE d.film_id = g.film_id AND d.genre_id = g.genre_id AND d.genre_of_film_id < g.genre_of_film_id);
+
+ALTER TABLE likes ADD CONSTRAINT likes_film_user_uk UNIQUE (film_id, user_id);
+
+ALTER TABLE friends ADD CONSTRAINT friends_user_friend_uk UNIQUE (user_id, friend_id);
+
+ALTER TABLE genre_of_film ADD CONSTRAINT genre_of_film_film_genre_uk UNIQUE (film_id, genre_id);
+
+CREATE INDEX film_like_count_idx ON film (like_count DESC, film_id);
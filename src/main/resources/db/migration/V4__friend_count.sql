@@ -0,0 +1,8 @@
+-- Количество друзей пользователя хранится рядом с ним, как like_count у фильма, и меняется в одной транзакции
+-- со строками friends. Друзья пользователя - его исходящие заявки и подтверждённые входящие.
+ALTER TABLE "user" ADD COLUMN friend_count bigint NOT NULL DEFAULT 0;
+
+UPDATE "user" SET friend_count =
+    (SELECT count(*) FROM friends AS f WHERE f.user_id = "user".user_id)
+    + (SELECT count(*) FROM friends AS f WHERE f.friend_id = "user".user_id AND f.friendship_status_id = 1
+        AND NOT EXISTS (SELECT 1 FROM friends AS r WHERE r.user_id = f.friend_id AND r.friend_id = f.user_id));
@@ -1,24 +1,79 @@
 package ru.yandex.practicum.filmorate;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.Flyway;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.practicum.filmorate.exception.GenreNotFoundException;
+import ru.yandex.practicum.filmorate.exception.MPANotFoundException;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeBatchItem;
 import ru.yandex.practicum.filmorate.model.RatingMPA;
+import ru.yandex.practicum.filmorate.metrics.JdbcStatementCounter;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.EntityVersions;
+import ru.yandex.practicum.filmorate.service.FilmService;
+import ru.yandex.practicum.filmorate.storage.RequestIdentityMap;
+import ru.yandex.practicum.filmorate.storage.film.FilmCache;
 import ru.yandex.practicum.filmorate.storage.film.FilmDbStorage;
+import ru.yandex.practicum.filmorate.storage.film.FilmRecommendationIndex;
+import ru.yandex.practicum.filmorate.storage.film.FilmSearchIndex;
+import ru.yandex.practicum.filmorate.storage.film.InMemoryFilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.reference.ReferenceDataRegistry;
+import ru.yandex.practicum.filmorate.storage.replica.ReadWriteRoutingDataSource;
+import ru.yandex.practicum.filmorate.storage.replica.ReadYourWritesInterceptor;
+import ru.yandex.practicum.filmorate.storage.replica.ReplicaLagMonitor;
+import ru.yandex.practicum.filmorate.storage.user.FriendGraphIndex;
+import ru.yandex.practicum.filmorate.storage.user.InMemoryUserStorage;
 import ru.yandex.practicum.filmorate.storage.user.UserDbStorage;
+import ru.yandex.practicum.filmorate.utils.FriendshipStatusMap;
+import ru.yandex.practicum.filmorate.utils.LongHashSet;
 
+import javax.servlet.http.Cookie;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.assertj.core.api.AssertionsForClassTypes.assertThatThrownBy;
 
+@Slf4j
 @SpringBootTest
 @AutoConfigureTestDatabase
 @RequiredArgsConstructor(onConstructor_ = @Autowired)
@@ -26,6 +81,14 @@ public class FilmorateApplicationIntegrationTest {
 
     private final UserDbStorage userStorage;
     private final FilmDbStorage filmStorage;
+    private final JdbcTemplate jdbcTemplate;
+    private final InMemoryUserStorage inMemoryUserStorage;
+    private final InMemoryFilmStorage inMemoryFilmStorage;
+    private final ObjectMapper objectMapper;
+    private final JdbcStatementCounter jdbcStatementCounter;
+    private final FriendGraphIndex friendGraphIndex;
+    private final ReferenceDataRegistry referenceData;
+    private final PlatformTransactionManager transactionManager;
 
     private void createUser() throws ValidationException {
         User user = User.builder()
@@ -154,6 +217,116 @@ public class FilmorateApplicationIntegrationTest {
         assertThat(userStorage.getListOfMutualFriends(user.getId(), friend.getId()).contains(3));
     }
 
+    @Test
+    public void testGetMutualFriendsInOneStatement() throws ValidationException {
+        createUser();
+        createSecondUser();
+        createThirdUser();
+        createUser();
+        List<User> allUsers = userStorage.getAllUsers();
+        List<User> users = allUsers.subList(allUsers.size() - 4, allUsers.size());
+        long user1Id = users.get(0).getId();
+        long user2Id = users.get(1).getId();
+        for (User friend : users.subList(2, 4)) {
+            userStorage.addFriend(user1Id, friend.getId());
+            userStorage.addFriend(friend.getId(), user2Id);
+            userStorage.addFriend(user2Id, friend.getId());
+        }
+
+        jdbcStatementCounter.resetCurrentThread();
+        List<User> mutualFriends = userStorage.getListOfMutualFriends(user1Id, user2Id);
+        assertThat(jdbcStatementCounter.getCurrentThreadCount()).isEqualTo(1);
+        assertThat(mutualFriends.size()).isEqualTo(2);
+        assertThat(mutualFriends.get(0).getId()).isEqualTo(users.get(2).getId());
+        assertThat(mutualFriends.get(0).getLogin()).isEqualTo(users.get(2).getLogin());
+
+        List<User> limited = userStorage.getListOfMutualFriends(user1Id, user2Id, 1);
+        assertThat(limited.size()).isEqualTo(1);
+        assertThat(limited.get(0).getId()).isEqualTo(users.get(2).getId());
+    }
+
+    @Test
+    public void testFriendGraphIndexFollowsTableAndDetectsDrift() throws ValidationException {
+        createUser();
+        createSecondUser();
+        createThirdUser();
+        List<User> allUsers = userStorage.getAllUsers();
+        long user1Id = allUsers.get(allUsers.size() - 3).getId();
+        long user2Id = allUsers.get(allUsers.size() - 2).getId();
+        long user3Id = allUsers.get(allUsers.size() - 1).getId();
+
+        userStorage.addFriend(user1Id, user2Id);
+        userStorage.addFriend(user2Id, user1Id);
+        userStorage.addFriend(user1Id, user3Id);
+        assertThat(friendGraphIndex.checkConsistency()).isEqualTo(0);
+        assertThat(userStorage.getUserById(user2Id).getMapFriends().get(user1Id)).isEqualTo("confirmed");
+        assertThat(userStorage.getUserById(user3Id).getMapFriends().isEmpty()).isTrue();
+
+        jdbcStatementCounter.resetCurrentThread();
+        assertThat(userStorage.getFriends(user1Id).size()).isEqualTo(2);
+        assertThat(jdbcStatementCounter.getCurrentThreadCount()).isEqualTo(1);
+
+        userStorage.deleteFriend(user1Id, user3Id);
+        assertThat(friendGraphIndex.checkConsistency()).isEqualTo(0);
+
+        jdbcTemplate.update("insert into friends (user_id, friend_id, friendship_status_id) values (?, ?, 2)",
+                user3Id, user1Id);
+        assertThat(friendGraphIndex.checkConsistency()).isEqualTo(1);
+        assertThat(userStorage.getUserById(user3Id).getMapFriends().get(user1Id)).isEqualTo("unconfirmed");
+        assertThat(friendGraphIndex.estimatedBytes()).isGreaterThan(0L);
+    }
+
+    @Test
+    public void testRepeatedDeleteFriendInOneTransactionDecrementsCountsOnce() throws ValidationException {
+        createUser();
+        createSecondUser();
+        List<User> allUsers = userStorage.getAllUsers();
+        long userId = allUsers.get(allUsers.size() - 2).getId();
+        long friendId = allUsers.get(allUsers.size() - 1).getId();
+        userStorage.addFriend(userId, friendId);
+        userStorage.addFriend(friendId, userId);
+        assertThat(userStorage.getFriendCount(userId)).isEqualTo(1L);
+        assertThat(userStorage.getFriendCount(friendId)).isEqualTo(1L);
+
+        //индекс друзей до фиксации не меняется, второе удаление видит дружбу в нём, но не в таблице
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            userStorage.deleteFriend(userId, friendId);
+            userStorage.deleteFriend(userId, friendId);
+            userStorage.deleteFriend(friendId, userId);
+        });
+        assertThat(userStorage.getFriendCount(userId)).isZero();
+        assertThat(userStorage.getFriendCount(friendId)).isZero();
+    }
+
+    @Test
+    public void testFriendGraphIndexAppliesOnlyCommittedWrites() throws ValidationException {
+        createUser();
+        createSecondUser();
+        List<User> allUsers = userStorage.getAllUsers();
+        long userId = allUsers.get(allUsers.size() - 2).getId();
+        long friendId = allUsers.get(allUsers.size() - 1).getId();
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+
+        transaction.executeWithoutResult(status -> {
+            userStorage.addFriend(userId, friendId);
+            status.setRollbackOnly();
+        });
+        assertThat(friendGraphIndex.hasEdge(userId, friendId)).isFalse();
+
+        transaction.executeWithoutResult(status -> {
+            userStorage.addFriend(userId, friendId);
+            assertThat(friendGraphIndex.hasEdge(userId, friendId)).isFalse();
+            //сверка видит незафиксированную строку, но не считает её расхождением
+            assertThat(friendGraphIndex.checkConsistency()).isEqualTo(0);
+        });
+        assertThat(friendGraphIndex.hasEdge(userId, friendId)).isTrue();
+        assertThat(friendGraphIndex.checkConsistency()).isEqualTo(0);
+
+        User user = userStorage.deleteFriend(userId, friendId).getBody();
+        assertThat(user.isFriend(friendId)).isFalse();
+        assertThat(friendGraphIndex.hasEdge(userId, friendId)).isFalse();
+    }
+
     @Test
     public void testDeleteFriend() throws ValidationException {
         createUser();
@@ -254,6 +427,83 @@ public class FilmorateApplicationIntegrationTest {
         assertThat(updatedFilm.getGenres().contains(Genre.builder().id(6).name("Боевик").build()));
     }
 
+    @Test
+    public void testFilmsByIdsAboveInListLimitHydrateInChunks() throws ValidationException {
+        createUser();
+        Long userId = jdbcTemplate.queryForObject("select max(user_id) from \"user\"", Long.class);
+        List<Long> filmIds = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            filmIds.add(jdbcTemplate.queryForObject("select film_id from final table (insert into film "
+                    + "(name, description, release_date, duration, rating_id) "
+                    + "values ('Film', 'description', '2000-01-01', 120, 1))", Long.class));
+        }
+        Long lastFilmId = filmIds.get(filmIds.size() - 1);
+        jdbcTemplate.update("insert into genre_of_film (film_id, genre_id) values (?, 2)", lastFilmId);
+        jdbcTemplate.update("insert into likes (film_id, user_id) values (?, ?)", lastFilmId, userId);
+
+        jdbcStatementCounter.resetCurrentThread();
+        List<Film> films = filmStorage.getFilmsByIds(filmIds);
+        //фильмы, жанры и лайки - по запросу на каждые 1000 id
+        assertThat(jdbcStatementCounter.getCurrentThreadCount()).isEqualTo(6);
+        assertThat(films.size()).isEqualTo(1500);
+        Film lastFilm = films.get(films.size() - 1);
+        assertThat(lastFilm.getId()).isEqualTo(lastFilmId);
+        assertThat(lastFilm.getGenres().contains(Genre.builder().id(2).name("Драма").build())).isTrue();
+        assertThat(lastFilm.getLikes().contains(userId)).isTrue();
+    }
+
+    @Test
+    public void testFilmWithReferenceDataAddedToDatabaseIsReadWithoutRefresh() {
+        jdbcTemplate.update("insert into rating (rating_id, name) values (60, 'TV-MA')");
+        jdbcTemplate.update("insert into genre (genre_id, name) values (70, 'Вестерн')");
+        Long filmId = jdbcTemplate.queryForObject("select film_id from final table (insert into film "
+                + "(name, description, release_date, duration, rating_id) "
+                + "values ('Film', 'description', '2000-01-01', 120, 60))", Long.class);
+        jdbcTemplate.update("insert into genre_of_film (film_id, genre_id) values (?, 70)", filmId);
+        try {
+            Film film = filmStorage.getFilmById(filmId);
+            assertThat(film.getMpa().getName()).isEqualTo("TV-MA");
+            assertThat(film.getGenres().contains(Genre.builder().id(70).name("Вестерн").build())).isTrue();
+            assertThat(referenceData.getAllGenre().size()).isEqualTo(7);
+            assertThatThrownBy(() -> referenceData.getGenreById(71)).isInstanceOf(GenreNotFoundException.class);
+        } finally {
+            jdbcTemplate.update("delete from genre_of_film where film_id = ?", filmId);
+            jdbcTemplate.update("delete from film where film_id = ?", filmId);
+            jdbcTemplate.update("delete from genre where genre_id = 70");
+            jdbcTemplate.update("delete from rating where rating_id = 60");
+            filmStorage.refreshReferenceData();
+        }
+    }
+
+    @Test
+    public void testUpdateFilmWritesGenreDiffWithConstantStatements() throws ValidationException {
+        createFilm();
+        List<Film> films = filmStorage.getAllFilms();
+        Film film = films.get(films.size() - 1);
+        String sqlForGenres = "select genre_id from genre_of_film where film_id = ? order by genre_of_film_id";
+        List<Integer> storedRows = jdbcTemplate.queryForList("select genre_of_film_id from genre_of_film "
+                + "where film_id = ?", Integer.class, film.getId());
+
+        for (int genreId : List.of(3, 4, 5, 6)) {
+            film.addGenre(Genre.builder().id(genreId).build());
+        }
+        jdbcStatementCounter.resetCurrentThread();
+        filmStorage.updateFilm(film);  //обновление, чтение жанров, удаление, пакет вставки, чтение лайков
+        assertThat(jdbcStatementCounter.getCurrentThreadCount()).isLessThanOrEqualTo(5);
+        assertThat(jdbcTemplate.queryForList(sqlForGenres, Integer.class, film.getId()))
+                .isEqualTo(List.of(1, 3, 4, 5, 6));
+        assertThat(jdbcTemplate.queryForList("select genre_of_film_id from genre_of_film where film_id = ? "
+                + "and genre_id = 1", Integer.class, film.getId())).isEqualTo(storedRows);  //строка не переписана
+
+        film.deleteAllGenres();
+        film.addGenre(Genre.builder().id(1).build());
+        film.addGenre(Genre.builder().id(5).build());
+        film.addGenre(Genre.builder().id(2).build());
+        filmStorage.updateFilm(film);
+        assertThat(jdbcTemplate.queryForList(sqlForGenres, Integer.class, film.getId())).isEqualTo(List.of(1, 5, 2));
+        assertThat(filmStorage.getFilmById(film.getId()).getGenres().get(2).getName()).isEqualTo("Драма");
+    }
+
     @Test
     public void testGetAllFilms() throws ValidationException {
         createFilm();
@@ -324,4 +574,783 @@ public class FilmorateApplicationIntegrationTest {
         assertThat(limitRatingOfFilms.size() == 1);
         assertThat(limitRatingOfFilms.get(0).getId() == 2);
     }
+
+    private String explain(String sql) {
+        return jdbcTemplate.queryForObject("explain " + sql, String.class);
+    }
+
+    @Test
+    public void testHotQueriesUseIndexes() {
+        String likesOfFilms = explain("select film_id, user_id from likes where film_id in (1, 2)");
+        assertThat(likesOfFilms).doesNotContain("tableScan").contains("FILM_ID IN(1, 2) */");
+
+        String likesOfUser = explain("select film_id from likes where user_id = 1");
+        assertThat(likesOfUser).doesNotContain("tableScan").contains("USER_ID = CAST(1 AS BIGINT) */");
+
+        String genresOfFilms = explain("select film_id, genre_id from genre_of_film where film_id in (1, 2)");
+        assertThat(genresOfFilms).doesNotContain("tableScan").contains("FILM_ID IN(1, 2) */");
+
+        String friendsOfUser = explain("select friend_id as user_id from friends where user_id = 1 "
+                + "union select user_id from friends where friend_id = 1 and friendship_status_id = 1");
+        assertThat(friendsOfUser).doesNotContain("tableScan")
+                .contains("USER_ID = CAST(1 AS BIGINT) */")
+                .contains("FRIEND_ID = CAST(1 AS BIGINT) */");
+
+        String ratingOfFilms = explain("select film_id from film order by like_count desc, film_id limit 10");
+        assertThat(ratingOfFilms).contains("FILM_LIKE_COUNT_IDX").contains("index sorted");
+    }
+
+    @Test
+    public void testDuplicateLikesAndFriendshipsAreRejected() throws ValidationException {
+        long userId = userStorage.addUser(User.builder()
+                .login("TestLoginUniqueUser")
+                .email("TestEmailUniqueUser@mail.ru")
+                .birthday(LocalDate.of(2000, 10, 11))
+                .build()).getBody().getId();
+        long friendId = userStorage.addUser(User.builder()
+                .login("TestLoginUniqueFriend")
+                .email("TestEmailUniqueFriend@mail.ru")
+                .birthday(LocalDate.of(2000, 10, 11))
+                .build()).getBody().getId();
+        Film film = Film.builder()
+                .name("Test unique film")
+                .description("Test description of unique film")
+                .releaseDate(LocalDate.of(2000, 10, 11))
+                .duration(Duration.ofMinutes(100))
+                .mpa(RatingMPA.builder().id(1).build())
+                .build();
+        long filmId = filmStorage.addFilm(film).getBody().getId();
+
+        filmStorage.addLike(filmId, userId);
+        filmStorage.addLike(filmId, userId);
+        assertThat(filmStorage.getFilmById(filmId).getLikes().size()).isEqualTo(1);
+        assertThatThrownBy(() -> jdbcTemplate.update("insert into likes (film_id, user_id) values (?, ?)",
+                filmId, userId)).isInstanceOf(DuplicateKeyException.class);
+
+        userStorage.addFriend(userId, friendId);
+        userStorage.addFriend(userId, friendId);
+        assertThat(userStorage.getFriends(userId).size()).isEqualTo(1);
+        assertThatThrownBy(() -> jdbcTemplate.update("insert into friends (user_id, friend_id, friendship_status_id) "
+                + "values (?, ?, 2)", userId, friendId)).isInstanceOf(DuplicateKeyException.class);
+    }
+
+    @Test
+    public void testGetFilmsPageAndStreamAllFilms() throws ValidationException {
+        createUser();
+        createFilm();
+        createSecondFilm();
+        createThirdFilm();
+        filmStorage.addLike(2, 1);
+
+        List<Film> allFilms = filmStorage.getAllFilms();
+        long firstId = allFilms.get(0).getId();
+
+        List<Film> page = filmStorage.getFilmsPage(firstId, 2);
+        assertThat(page.size()).isEqualTo(2);
+        assertThat(page.get(0)).isEqualTo(allFilms.get(1));
+        assertThat(page.get(1)).isEqualTo(allFilms.get(2));
+
+        List<Film> streamedFilms = new ArrayList<>();
+        filmStorage.streamAllFilms(streamedFilms::add);
+        assertThat(streamedFilms).isEqualTo(allFilms);
+    }
+
+    @Test
+    public void testGetUsersPageAndStreamAllUsers() throws ValidationException {
+        createUser();
+        createSecondUser();
+        createThirdUser();
+
+        List<User> users = userStorage.getAllUsers();
+        long firstId = users.get(0).getId();
+        userStorage.addFriend(firstId, users.get(1).getId());
+        userStorage.addFriend(users.get(1).getId(), firstId);
+        userStorage.addFriend(firstId, users.get(2).getId());
+
+        List<User> allUsers = userStorage.getAllUsers();
+        List<User> page = userStorage.getUsersPage(firstId, 1);
+        assertThat(page.size()).isEqualTo(1);
+        assertThat(page.get(0)).isEqualTo(allUsers.get(1));
+
+        List<User> streamedUsers = new ArrayList<>();
+        userStorage.streamAllUsers(streamedUsers::add);
+        assertThat(streamedUsers).isEqualTo(allUsers);
+    }
+
+    @Test
+    public void testBatchLikesKeepLikeCountInSync() throws ValidationException {
+        createUser();
+        createSecondUser();
+        createFilm();
+        List<Film> films = filmStorage.getAllFilms();
+        long filmId = films.get(films.size() - 1).getId();
+        List<User> users = userStorage.getAllUsers();
+        List<LikeBatchItem> likes = new ArrayList<>();
+        for (User user : users.subList(users.size() - 2, users.size())) {
+            likes.add(LikeBatchItem.builder().filmId(filmId).userId(user.getId()).build());
+        }
+
+        filmStorage.addLikes(likes);
+        assertThat(likes.get(1).getStatus()).isEqualTo(LikeBatchItem.ADDED);
+        String sqlForLikeCount = "select like_count from film where film_id = ?";
+        assertThat(jdbcTemplate.queryForObject(sqlForLikeCount, Long.class, filmId)).isEqualTo(2L);
+
+        filmStorage.deleteLikes(likes.subList(0, 1));
+        assertThat(jdbcTemplate.queryForObject(sqlForLikeCount, Long.class, filmId)).isEqualTo(1L);
+        assertThat(filmStorage.getFilmById(filmId).getNumberOfLikes()).isEqualTo(1L);
+    }
+
+    @Test
+    public void testBatchLikesReportConcurrentlyAddedLikeAsAlreadyLiked() throws Exception, ValidationException {
+        createUser();
+        createSecondUser();
+        createFilm();
+        List<Film> films = filmStorage.getAllFilms();
+        long filmId = films.get(films.size() - 1).getId();
+        List<User> users = userStorage.getAllUsers();
+        long firstUserId = users.get(users.size() - 2).getId();
+        long secondUserId = users.get(users.size() - 1).getId();
+        List<LikeBatchItem> likes = List.of(
+                LikeBatchItem.builder().filmId(filmId).userId(firstUserId).build(),
+                LikeBatchItem.builder().filmId(filmId).userId(secondUserId).build());
+
+        //параллельная транзакция вставляет ту же пару и фиксируется, пока пакет ждёт её блокировку
+        runWhileConcurrentInsertCommits(() -> filmStorage.addLikes(likes),
+                "insert into likes (film_id, user_id) values (?, ?)", filmId, firstUserId);
+
+        assertThat(likes.get(0).getStatus()).isEqualTo(LikeBatchItem.ALREADY_LIKED);
+        assertThat(likes.get(1).getStatus()).isEqualTo(LikeBatchItem.ADDED);
+        String sqlForLikeCount = "select like_count from film where film_id = ?";
+        assertThat(jdbcTemplate.queryForObject(sqlForLikeCount, Long.class, filmId)).isEqualTo(1L);
+    }
+
+    @Test
+    public void testSingleLikeTreatsConcurrentlyAddedLikeAsAlreadyLiked() throws Exception, ValidationException {
+        createUser();
+        createFilm();
+        List<Film> films = filmStorage.getAllFilms();
+        long filmId = films.get(films.size() - 1).getId();
+        List<User> users = userStorage.getAllUsers();
+        long userId = users.get(users.size() - 1).getId();
+
+        long likeCount = runWhileConcurrentInsertCommits(() -> filmStorage.addLikeAndCount(filmId, userId),
+                "insert into likes (film_id, user_id) values (?, ?)", filmId, userId);
+
+        assertThat(likeCount).isZero();  //лайк добавлен другой транзакцией, like_count она не меняла
+        assertThat(filmStorage.addLike(filmId, userId).getLikes().contains(userId)).isTrue();
+    }
+
+    @Test
+    public void testFriendRequestTreatsConcurrentDuplicateAsAlreadySent() throws Exception, ValidationException {
+        createUser();
+        createSecondUser();
+        List<User> users = userStorage.getAllUsers();
+        long userId = users.get(users.size() - 2).getId();
+        long friendId = users.get(users.size() - 1).getId();
+
+        User user = runWhileConcurrentInsertCommits(() -> userStorage.addFriend(userId, friendId),
+                "insert into friends (user_id, friend_id, friendship_status_id) values (?, ?, 2)", userId, friendId);
+
+        assertThat(user.getFriends()).isEqualTo(List.of(friendId));
+        assertThat(user.getMapFriends().get(friendId)).isEqualTo(FriendshipStatusMap.UNCONFIRMED);
+    }
+
+    //выполнение action, пока параллельная транзакция держит вставленную sql строку и фиксирует её через 300 мс
+    private <T> T runWhileConcurrentInsertCommits(Callable<T> action, String sql, long... args) throws Exception {
+        try (Connection concurrent = jdbcTemplate.getDataSource().getConnection()) {
+            concurrent.setAutoCommit(false);
+            try (PreparedStatement statement = concurrent.prepareStatement(sql)) {
+                for (int i = 0; i < args.length; i++) {
+                    statement.setLong(i + 1, args[i]);
+                }
+                statement.executeUpdate();
+            }
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<?> commit = executor.submit(() -> {
+                    Thread.sleep(300);
+                    concurrent.commit();
+                    return null;
+                });
+                T result = action.call();
+                commit.get();
+                return result;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void testFilmCacheHandsOutCopiesAndFollowsWrites() throws ValidationException {
+        createUser();
+        createFilm();
+        List<Film> films = filmStorage.getAllFilms();
+        long filmId = films.get(films.size() - 1).getId();
+        List<User> users = userStorage.getAllUsers();
+        long userId = users.get(users.size() - 1).getId();
+
+        Film film = filmStorage.getFilmById(filmId);
+        film.addLike(userId);  //изменение выданной копии не попадает в кэш
+        film.setNameMPA("changed");
+        jdbcStatementCounter.resetCurrentThread();
+        Film cached = filmStorage.getFilmById(filmId);
+        assertThat(jdbcStatementCounter.getCurrentThreadCount()).isZero();
+        assertThat(cached.getLikes().toLongArray()).isEmpty();
+        assertThat(cached.getMpa().getName()).isNotEqualTo("changed");
+
+        filmStorage.addLike(filmId, userId);
+        assertThat(filmStorage.getFilmById(filmId).getLikes().toLongArray()).containsExactly(userId);
+        filmStorage.deleteLike(filmId, userId);
+        assertThat(filmStorage.getFilmById(filmId).getLikes().toLongArray()).isEmpty();
+    }
+
+    @Test
+    public void testFilmCopySharesLikesUntilEitherChanges() {
+        Film film = Film.builder().name("Film").build();
+        for (long userId = 1; userId <= 1000; userId++) {
+            film.addLike(userId);
+        }
+        Film firstCopy = film.copy();
+        Film secondCopy = film.copy();
+
+        firstCopy.addLike(1001L);
+        secondCopy.deleteLike(1L);
+        film.deleteLike(2L);
+        assertThat(firstCopy.getLikes().size()).isEqualTo(1001);
+        assertThat(firstCopy.getLikes().contains(2L)).isTrue();
+        assertThat(secondCopy.getLikes().size()).isEqualTo(999);
+        assertThat(secondCopy.getLikes().contains(1L)).isFalse();
+        assertThat(secondCopy.getLikes().contains(2L)).isTrue();
+        assertThat(film.getLikes().size()).isEqualTo(999);
+        assertThat(film.getLikes().contains(1L)).isTrue();
+        assertThat(film.getLikes().contains(1001L)).isFalse();
+        film.getLikes().clear();
+        assertThat(film.copy().getLikes().toLongArray()).isEmpty();
+        assertThat(firstCopy.getLikes().size()).isEqualTo(1001);
+    }
+
+    @Test
+    public void testWriteBehindLikesAreCoalescedAndReadBeforeFlush() throws ValidationException {
+        createUser();
+        createSecondUser();
+        createFilm();
+        createSecondFilm();
+        List<Film> films = filmStorage.getAllFilms();
+        long firstFilmId = films.get(films.size() - 2).getId();
+        long secondFilmId = films.get(films.size() - 1).getId();
+        List<User> users = userStorage.getAllUsers();
+        long userId = users.get(users.size() - 1).getId();
+        LikeWriteBuffer likeBuffer = new LikeWriteBuffer(jdbcTemplate, transactionManager, new FilmCache(1 << 20),
+                true, 100);
+        FilmDbStorage writeBehindStorage = new FilmDbStorage(jdbcTemplate, referenceData, new FilmCache(1 << 20),
+                likeBuffer, new RequestIdentityMap());
+        String sqlForLikes = "select count(*) from likes where film_id = ?";
+
+        writeBehindStorage.addLike(firstFilmId, userId);  //лайк и его удаление сокращаются
+        writeBehindStorage.deleteLike(firstFilmId, userId);
+        writeBehindStorage.addLike(secondFilmId, userId);
+        assertThat(likeBuffer.getPendingCount()).isEqualTo(1);
+        assertThat(jdbcTemplate.queryForObject(sqlForLikes, Long.class, secondFilmId)).isZero();
+        assertThat(writeBehindStorage.getFilmById(secondFilmId).getLikes().toLongArray()).containsExactly(userId);
+        List<Long> pendingRating = new ArrayList<>();
+        for (Film film : writeBehindStorage.getRatingOfFilms(5L)) {
+            pendingRating.add(film.getId());
+        }
+
+        likeBuffer.flush();
+        assertThat(likeBuffer.getPendingCount()).isZero();
+        assertThat(jdbcTemplate.queryForObject(sqlForLikes, Long.class, firstFilmId)).isZero();
+        assertThat(jdbcTemplate.queryForObject(sqlForLikes, Long.class, secondFilmId)).isEqualTo(1L);
+        assertThat(jdbcTemplate.queryForObject("select like_count from film where film_id = ?", Long.class,
+                secondFilmId)).isEqualTo(1L);
+        List<Long> storedRating = new ArrayList<>();
+        for (Film film : filmStorage.getRatingOfFilms(5L)) {
+            storedRating.add(film.getId());
+        }
+        assertThat(pendingRating).isEqualTo(storedRating);
+    }
+
+    @Test
+    public void testWriteBehindFlushDropsOnlyRejectedLikes() throws ValidationException {
+        createUser();
+        createFilm();
+        createSecondFilm();
+        List<Film> films = filmStorage.getAllFilms();
+        long firstFilmId = films.get(films.size() - 2).getId();
+        long secondFilmId = films.get(films.size() - 1).getId();
+        List<User> users = userStorage.getAllUsers();
+        long userId = users.get(users.size() - 1).getId();
+        long missingUserId = userId + 1000;
+        LikeWriteBuffer likeBuffer = new LikeWriteBuffer(jdbcTemplate, transactionManager, new FilmCache(1 << 20),
+                true, 100);
+
+        likeBuffer.enqueue(firstFilmId, userId, true, false);
+        likeBuffer.enqueue(firstFilmId, missingUserId, true, false);  //пользователя нет, лайк отклонит база
+        likeBuffer.enqueue(secondFilmId, userId, true, false);
+        likeBuffer.flush();
+
+        assertThat(likeBuffer.hasPending()).isFalse();
+        String sqlForLikeCount = "select like_count from film where film_id = ?";
+        assertThat(jdbcTemplate.queryForObject(sqlForLikeCount, Long.class, firstFilmId)).isEqualTo(1L);
+        assertThat(jdbcTemplate.queryForObject(sqlForLikeCount, Long.class, secondFilmId)).isEqualTo(1L);
+    }
+
+    @Test
+    public void testRejectedBufferedLikeIsRevertedInIndexes() throws ValidationException {
+        createUser();
+        createSecondUser();
+        createThirdUser();
+        long[] filmIds = new long[2];
+        for (int i = 0; i < filmIds.length; i++) {
+            filmIds[i] = filmStorage.addFilm(Film.builder()
+                    .name("Rejectedlike film")
+                    .description("Description")
+                    .releaseDate(LocalDate.of(2000, 1, 1))
+                    .duration(Duration.ofMinutes(100))
+                    .mpa(RatingMPA.builder().id(1).build())
+                    .build()).getBody().getId();
+        }
+        List<User> users = userStorage.getAllUsers();
+        long userId = users.get(users.size() - 3).getId();
+        long[] deletedUserIds = {users.get(users.size() - 2).getId(), users.get(users.size() - 1).getId()};
+        FilmCache cache = new FilmCache(1 << 20);
+        LikeWriteBuffer likeBuffer = new LikeWriteBuffer(jdbcTemplate, transactionManager, cache, true, 100);
+        FilmRecommendationIndex recommendationIndex = new FilmRecommendationIndex(jdbcTemplate, 500);
+        recommendationIndex.reload();
+        FilmSearchIndex searchIndex = new FilmSearchIndex(jdbcTemplate);
+        searchIndex.reload();
+        EntityVersions versions = new EntityVersions();
+        FilmService filmService = new FilmService(new FilmDbStorage(jdbcTemplate, referenceData, cache, likeBuffer,
+                new RequestIdentityMap()), recommendationIndex, searchIndex, versions, likeBuffer, referenceData);
+
+        filmService.addLike(filmIds[1], userId);
+        filmService.addLike(filmIds[1], deletedUserIds[0]);
+        filmService.addLike(filmIds[0], deletedUserIds[0]);
+        filmService.addLike(filmIds[0], deletedUserIds[1]);
+        assertThat(recommendationIndex.recommend(userId, 10)).containsExactly(filmIds[0]);
+        assertThat(searchIndex.search("Rejectedlike", 10)).containsExactly(filmIds[0], filmIds[1]);
+        String filmTag = versions.filmTag(filmIds[0]);
+        long filmListVersion = versions.getFilmListVersion();
+
+        for (long deletedUserId : deletedUserIds) {
+            jdbcTemplate.update("delete from \"user\" where user_id = ?", deletedUserId);
+        }
+        likeBuffer.flush();  //лайки удалённых пользователей отклоняет база
+
+        assertThat(recommendationIndex.recommend(userId, 10)).isEmpty();
+        assertThat(searchIndex.search("Rejectedlike", 10)).containsExactly(filmIds[1], filmIds[0]);
+        assertThat(versions.filmTag(filmIds[0])).isNotEqualTo(filmTag);
+        assertThat(versions.getFilmListVersion()).isGreaterThan(filmListVersion);
+        assertThat(filmService.getFilmById(filmIds[1]).getLikes().toLongArray()).containsExactly(userId);
+    }
+
+    @Test
+    public void testInMemoryStoragesDoNotLoseConcurrentUpdates() throws Throwable {
+        int usersPerThread = 500;
+        int films = 20;
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            inMemoryFilmStorage.clearFilmMap();
+            inMemoryUserStorage.clearUserMap();
+
+            long nanos = runConcurrently(threads, thread -> {
+                for (int i = 0; i < usersPerThread; i++) {
+                    try {
+                        inMemoryUserStorage.addUser(User.builder()
+                                .login("login" + thread + "_" + i)
+                                .email("user" + thread + "_" + i + "@mail.ru")
+                                .birthday(LocalDate.of(2000, 1, 1))
+                                .build());
+                    } catch (ValidationException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            int userCount = threads * usersPerThread;
+            assertThat(inMemoryUserStorage.getAllUsers().size()).isEqualTo(userCount);
+            assertThat(inMemoryUserStorage.getUsersPage(0, userCount).get(userCount - 1).getId())
+                    .isEqualTo((long) userCount);
+            log.info("addUser: потоков = {}, операций в секунду = {}", threads, opsPerSecond(userCount, nanos));
+
+            for (int i = 0; i < films; i++) {
+                inMemoryFilmStorage.addFilm(Film.builder()
+                        .name("Film" + i)
+                        .description("Description")
+                        .releaseDate(LocalDate.of(2000, 1, 1))
+                        .duration(Duration.ofMinutes(100))
+                        .mpa(RatingMPA.builder().id(1).build())
+                        .build());
+            }
+            int finalThreads = threads;
+            nanos = runConcurrently(threads, thread -> {
+                for (long userId = thread + 1; userId <= userCount; userId += finalThreads) {
+                    for (long filmId = 1; filmId <= films; filmId++) {
+                        inMemoryFilmStorage.addLike(filmId, userId);
+                    }
+                }
+            });
+            for (Film film : inMemoryFilmStorage.getAllFilms()) {
+                assertThat(film.getNumberOfLikes()).isEqualTo((long) userCount);
+            }
+            log.info("addLike: потоков = {}, операций в секунду = {}", threads,
+                    opsPerSecond((long) userCount * films, nanos));
+
+            // пары пользователей отправляют друг другу заявки в друзья, соседние потоки делают это в разном порядке
+            nanos = runConcurrently(threads, thread -> {
+                for (long userId = 1; userId < userCount; userId += 2) {
+                    long first = thread % 2 == 0 ? userId : userId + 1;
+                    long second = thread % 2 == 0 ? userId + 1 : userId;
+                    inMemoryUserStorage.addFriend(first, second);
+                    inMemoryUserStorage.addFriend(second, first);
+                }
+            });
+            for (long userId = 1; userId < userCount; userId += 2) {
+                assertThat(inMemoryUserStorage.getUserById(userId).getMapFriends().get(userId + 1))
+                        .isEqualTo("confirmed");
+                assertThat(inMemoryUserStorage.getUserById(userId + 1).getMapFriends().get(userId))
+                        .isEqualTo("confirmed");
+            }
+            log.info("addFriend: потоков = {}, операций в секунду = {}", threads,
+                    opsPerSecond((long) threads * userCount, nanos));
+        }
+        inMemoryFilmStorage.clearFilmMap();
+        inMemoryUserStorage.clearUserMap();
+    }
+
+    private long runConcurrently(int threads, IntConsumer work) throws Exception {  //одновременный запуск задачи
+        // в нескольких потоках, возвращает время работы в наносекундах
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int thread = i;
+                Callable<Void> task = () -> {
+                    start.await();
+                    work.accept(thread);
+                    return null;
+                };
+                futures.add(executor.submit(task));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            return System.nanoTime() - begin;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long opsPerSecond(long operations, long nanos) {
+        return operations * TimeUnit.SECONDS.toNanos(1) / Math.max(nanos, 1);
+    }
+
+    @Test
+    public void testInMemoryFilmStorageRejectsUnknownMpa() {
+        Film film = Film.builder()
+                .name("Film")
+                .description("Film description")
+                .releaseDate(LocalDate.of(2023, 4, 16))
+                .duration(Duration.ofSeconds(120))
+                .mpa(RatingMPA.builder().id(99).build())
+                .build();
+
+        assertThatThrownBy(() -> inMemoryFilmStorage.addFilm(film)).isInstanceOf(MPANotFoundException.class);
+        assertThat(inMemoryFilmStorage.getAllFilms().stream().anyMatch(stored -> stored.getMpa().getName() == null))
+                .isFalse();
+    }
+
+    @Test
+    public void testPrimitiveLikeAndFriendCollectionsMatchJdkCollections() throws Exception {
+        Random random = new Random(42);
+        Set<Long> expectedLikes = new HashSet<>();
+        LongHashSet likes = new LongHashSet();
+        Map<Long, String> expectedFriends = new HashMap<>();
+        FriendshipStatusMap friends = new FriendshipStatusMap();
+        for (int i = 0; i < 100_000; i++) {
+            long id = random.nextInt(2_000);
+            if (random.nextInt(3) == 0) {
+                assertThat(likes.remove(id)).isEqualTo(expectedLikes.remove(id));
+                assertThat(friends.remove(id)).isEqualTo(expectedFriends.remove(id));
+            } else {
+                String status = random.nextBoolean() ? FriendshipStatusMap.CONFIRMED : FriendshipStatusMap.UNCONFIRMED;
+                assertThat(likes.add(id)).isEqualTo(expectedLikes.add(id));
+                assertThat(friends.put(id, status)).isEqualTo(expectedFriends.put(id, status));
+            }
+        }
+        assertThat(likes).isEqualTo(expectedLikes);
+        assertThat(friends).isEqualTo(expectedFriends);
+        assertThatThrownBy(() -> friends.put(1L, "best")).isInstanceOf(IllegalArgumentException.class);
+
+        User user = User.builder().id(1).login("login").email("user@mail.ru").build();
+        user.addFriend(2L, FriendshipStatusMap.CONFIRMED);
+        assertThat(objectMapper.writeValueAsString(user.getMapFriends())).isEqualTo("{\"2\":\"confirmed\"}");
+        likes.clear();
+        likes.add(7L);
+        assertThat(objectMapper.writeValueAsString(likes)).isEqualTo("[7]");
+    }
+
+    @Test
+    public void testPrimitiveLikeAndFriendCollectionsSerializeLikeJdkCollections() throws Exception {
+        //json прежних HashSet<Long> и HashMap<Long, String> для тех же id, добавленных в другом порядке
+        List<Long> ids = List.of(6L, 2L, 5L, 1L, 4L, 3L, 11L, 9L);
+        Set<Long> expectedLikes = new HashSet<>();
+        Map<Long, String> expectedFriends = new HashMap<>();
+        Film film = Film.builder().name("Film").build();
+        User user = User.builder().id(1).login("login").email("user@mail.ru").build();
+        for (Long id : ids) {
+            String status = id % 2 == 0 ? FriendshipStatusMap.CONFIRMED : FriendshipStatusMap.UNCONFIRMED;
+            expectedLikes.add(id);
+            expectedFriends.put(id, status);
+            film.addLike(id);
+            user.addFriend(id, status);
+        }
+
+        assertThat(objectMapper.writeValueAsString(film.getLikes()))
+                .isEqualTo(objectMapper.writeValueAsString(expectedLikes));
+        assertThat(objectMapper.writeValueAsString(user.getMapFriends()))
+                .isEqualTo(objectMapper.writeValueAsString(expectedFriends));
+        assertThat(objectMapper.writeValueAsString(user.getFriends()))
+                .isEqualTo(objectMapper.writeValueAsString(new ArrayList<>(expectedFriends.keySet())));
+        assertThat(objectMapper.writeValueAsString(film.getLikes())).isEqualTo("[1,2,3,4,5,6,9,11]");
+    }
+
+    @Test
+    public void testReadOnlyTransactionsUseReplicaOnlyWhileItIsFreshAndCaughtUp() {
+        //две независимые базы H2: "репликация" - ручное копирование строк, отставание задаётся в таблице реплики
+        DataSource primary = new DriverManagerDataSource("jdbc:h2:mem:routing-primary;DB_CLOSE_DELAY=-1", "sa", "");
+        DataSource replica = new DriverManagerDataSource("jdbc:h2:mem:routing-replica;DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate primaryJdbcTemplate = new JdbcTemplate(primary);
+        JdbcTemplate replicaJdbcTemplate = new JdbcTemplate(replica);
+        primaryJdbcTemplate.execute("create table note (text varchar(20))");
+        primaryJdbcTemplate.update("insert into note values ('first'), ('second')");
+        replicaJdbcTemplate.execute("create table note (text varchar(20))");
+        replicaJdbcTemplate.update("insert into note values ('first')");
+        replicaJdbcTemplate.execute("create table replication_status (lag_ms bigint)");
+        replicaJdbcTemplate.update("insert into replication_status values (0)");
+
+        ReplicaLagMonitor monitor = new ReplicaLagMonitor(replica, "select lag_ms from replication_status",
+                Duration.ofSeconds(1), Duration.ofMinutes(1));
+        DataSource routing = new LazyConnectionDataSourceProxy(new ReadWriteRoutingDataSource(primary, monitor));
+        JdbcTemplate routedJdbcTemplate = new JdbcTemplate(routing);
+        TransactionTemplate readOnly = new TransactionTemplate(new DataSourceTransactionManager(routing));
+        readOnly.setReadOnly(true);
+        Supplier<Long> countNotes = () -> readOnly.execute(status ->
+                routedJdbcTemplate.queryForObject("select count(*) from note", Long.class));
+
+        assertThat(countNotes.get()).isEqualTo(2);  //отставание ещё не замерено
+        monitor.check();
+        assertThat(countNotes.get()).isEqualTo(1);
+
+        replicaJdbcTemplate.update("update replication_status set lag_ms = 5000");
+        monitor.check();
+        assertThat(countNotes.get()).isEqualTo(2);  //отставание больше допустимого
+
+        replicaJdbcTemplate.update("update replication_status set lag_ms = 0");
+        monitor.check();
+        routedJdbcTemplate.update("insert into note values ('third')");
+        assertThat(countNotes.get()).isEqualTo(3);  //реплика не догнала запись, чтение из основной базы
+
+        replicaJdbcTemplate.update("insert into note values ('second'), ('third'), ('replica')");
+        monitor.check();
+        assertThat(monitor.isReplicaUsable()).isTrue();
+        assertThat(countNotes.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void testReplicaReadsArePinnedPerClientByLastWriteCookie() throws Exception {
+        DataSource primary = new DriverManagerDataSource("jdbc:h2:mem:pin-primary;DB_CLOSE_DELAY=-1", "sa", "");
+        DataSource replica = new DriverManagerDataSource("jdbc:h2:mem:pin-replica;DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate replicaJdbcTemplate = new JdbcTemplate(replica);
+        new JdbcTemplate(primary).execute("create table note (text varchar(20))");
+        replicaJdbcTemplate.execute("create table note (text varchar(20))");
+        replicaJdbcTemplate.update("insert into note values ('replica')");
+        replicaJdbcTemplate.execute("create table replication_status (lag_ms bigint)");
+        replicaJdbcTemplate.update("insert into replication_status values (0)");
+
+        ReplicaLagMonitor monitor = new ReplicaLagMonitor(replica, "select lag_ms from replication_status",
+                Duration.ofSeconds(1), Duration.ofMinutes(1));
+        DataSource routing = new LazyConnectionDataSourceProxy(new ReadWriteRoutingDataSource(primary, monitor));
+        JdbcTemplate routedJdbcTemplate = new JdbcTemplate(routing);
+        TransactionTemplate readOnly = new TransactionTemplate(new DataSourceTransactionManager(routing));
+        readOnly.setReadOnly(true);
+        Supplier<Boolean> readsReplica = () -> readOnly.execute(status -> routedJdbcTemplate.queryForObject(
+                "select count(*) from note where text = 'replica'", Long.class)) == 1;
+        ReadYourWritesInterceptor interceptor = new ReadYourWritesInterceptor(monitor);
+        monitor.check();
+
+        //клиент пишет: в ответе отметка его записи, до конца запроса он читает из основной базы
+        MockHttpServletResponse writeResponse = new MockHttpServletResponse();
+        interceptor.preHandle(new MockHttpServletRequest(), writeResponse, null);
+        routedJdbcTemplate.update("insert into note values ('written')");
+        assertThat(readsReplica.get()).isFalse();
+        interceptor.afterCompletion(new MockHttpServletRequest(), writeResponse, null, null);
+        Cookie lastWrite = writeResponse.getCookie(ReadYourWritesInterceptor.LAST_WRITE_COOKIE);
+        assertThat(lastWrite).isNotNull();
+
+        assertThat(readsReplica.get()).isFalse();  //вне http-запроса - по последней записи любого клиента
+        assertThat(readInRequest(interceptor, readsReplica, null)).isTrue();  //чужая запись не мешает
+        assertThat(readInRequest(interceptor, readsReplica, lastWrite)).isFalse();
+
+        Thread.sleep(5);
+        monitor.check();  //реплика догнала запись
+        assertThat(readInRequest(interceptor, readsReplica, lastWrite)).isTrue();
+    }
+
+    @Test
+    public void testFriendListsReadFromReplicaAndFetchUsersMissingThereFromPrimary() {
+        DataSource primary = new DriverManagerDataSource("jdbc:h2:mem:friends-primary;DB_CLOSE_DELAY=-1", "sa", "");
+        DataSource replica = new DriverManagerDataSource("jdbc:h2:mem:friends-replica;DB_CLOSE_DELAY=-1", "sa", "");
+        migrate(primary);
+        migrate(replica);
+        JdbcTemplate primaryJdbcTemplate = new JdbcTemplate(primary);
+        JdbcTemplate replicaJdbcTemplate = new JdbcTemplate(replica);
+        String sqlForUser = "insert into \"user\" (user_id, login, name, email, birthday) "
+                + "values (?, ?, ?, 'user@mail.ru', '2000-01-01')";
+        for (long id = 1; id <= 4; id++) {
+            primaryJdbcTemplate.update(sqlForUser, id, "login" + id, "primary");
+        }
+        for (long id = 1; id <= 3; id++) {  //пользователь 4 в реплику ещё не попал
+            replicaJdbcTemplate.update(sqlForUser, id, "login" + id, "replica");
+        }
+        primaryJdbcTemplate.update("insert into friends (user_id, friend_id, friendship_status_id) "
+                + "values (1, 2, 2), (1, 4, 2), (3, 2, 2), (3, 4, 2)");
+        replicaJdbcTemplate.execute("create table replication_status (lag_ms bigint)");
+        replicaJdbcTemplate.update("insert into replication_status values (0)");
+
+        ReplicaLagMonitor monitor = new ReplicaLagMonitor(replica, "select lag_ms from replication_status",
+                Duration.ofSeconds(1), Duration.ofMinutes(1));
+        DataSource routing = new LazyConnectionDataSourceProxy(new ReadWriteRoutingDataSource(primary, monitor));
+        JdbcTemplate routedJdbcTemplate = new JdbcTemplate(routing);
+        DataSourceTransactionManager routedTransactionManager = new DataSourceTransactionManager(routing);
+        FriendGraphIndex friendGraph = new FriendGraphIndex(primaryJdbcTemplate);
+        friendGraph.reload();
+        UserDbStorage routedStorage = new UserDbStorage(routedJdbcTemplate, friendGraph, new RequestIdentityMap(),
+                routedTransactionManager);
+        TransactionTemplate readOnly = new TransactionTemplate(routedTransactionManager);  //как @Transactional
+        readOnly.setReadOnly(true);
+        monitor.check();
+        assertThat(monitor.isReplicaUsable()).isTrue();
+
+        List<User> friends = readOnly.execute(status -> routedStorage.getFriends(1L));
+        assertThat(friends.size()).isEqualTo(2);
+        assertThat(friends.get(0).getId()).isEqualTo(2L);
+        assertThat(friends.get(0).getName()).isEqualTo("replica");
+        assertThat(friends.get(1).getId()).isEqualTo(4L);
+        assertThat(friends.get(1).getName()).isEqualTo("primary");
+
+        List<User> mutualFriends = readOnly.execute(status -> routedStorage.getListOfMutualFriends(1L, 3L));
+        assertThat(mutualFriends.size()).isEqualTo(2);
+        assertThat(mutualFriends.get(0).getName()).isEqualTo("replica");
+        assertThat(mutualFriends.get(1).getId()).isEqualTo(4L);
+    }
+
+    @Test
+    public void testLastWriteCookieKeepsOtherCookiesOfResponse() {
+        DataSource primary = new DriverManagerDataSource("jdbc:h2:mem:cookie-primary;DB_CLOSE_DELAY=-1", "sa", "");
+        DataSource replica = new DriverManagerDataSource("jdbc:h2:mem:cookie-replica;DB_CLOSE_DELAY=-1", "sa", "");
+        new JdbcTemplate(primary).execute("create table note (text varchar(20))");
+        ReplicaLagMonitor monitor = new ReplicaLagMonitor(replica, "select 0", Duration.ofSeconds(1),
+                Duration.ofMinutes(1));
+        JdbcTemplate routedJdbcTemplate = new JdbcTemplate(
+                new LazyConnectionDataSourceProxy(new ReadWriteRoutingDataSource(primary, monitor)));
+        ReadYourWritesInterceptor interceptor = new ReadYourWritesInterceptor(monitor);
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.addCookie(new Cookie("session", "abc"));
+        interceptor.preHandle(new MockHttpServletRequest(), response, null);
+        routedJdbcTemplate.update("insert into note values ('first')");
+        routedJdbcTemplate.update("insert into note values ('second')");
+        interceptor.afterCompletion(new MockHttpServletRequest(), response, null, null);
+
+        assertThat(response.getCookie("session")).isNotNull();
+        long lastWriteCookies = response.getHeaders(HttpHeaders.SET_COOKIE).stream()
+                .filter(header -> header.startsWith(ReadYourWritesInterceptor.LAST_WRITE_COOKIE + "="))
+                .count();
+        assertThat(lastWriteCookies).isEqualTo(1L);
+    }
+
+    private static boolean readInRequest(ReadYourWritesInterceptor interceptor, Supplier<Boolean> read,
+                                         Cookie cookie) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        if (cookie != null) {
+            request.setCookies(cookie);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        interceptor.preHandle(request, response, null);
+        try {
+            return read.get();
+        } finally {
+            interceptor.afterCompletion(request, response, null, null);
+        }
+    }
+
+    @Test
+    public void testMigrationsUpgradeDatabaseCreatedByBaselineSchema() {
+        DataSource legacy = createBaselineDatabase("legacy-schema");
+        JdbcTemplate legacyJdbcTemplate = new JdbcTemplate(legacy);
+        legacyJdbcTemplate.update("insert into \"user\" (login, name, email, birthday) "
+                + "values ('login', 'name', 'user@mail.ru', '2000-01-01')");
+        legacyJdbcTemplate.update("insert into film (name, description, release_date, duration, rating_id) "
+                + "values ('Film', 'description', '2000-01-01', 120, 1)");
+        legacyJdbcTemplate.update("insert into likes (film_id, user_id) values (1, 1)");
+
+        migrate(legacy);
+
+        assertThat(legacyJdbcTemplate.queryForObject("select like_count from film where film_id = 1",
+                Long.class)).isEqualTo(1L);
+        assertThat(legacyJdbcTemplate.queryForObject("select friend_count from \"user\"", Long.class)).isZero();
+    }
+
+    @Test
+    public void testPopularFilmsAfterUpgradeCountLikesStoredBeforeMigration() throws ValidationException {
+        DataSource legacy = createBaselineDatabase("legacy-likes");
+        JdbcTemplate legacyJdbcTemplate = new JdbcTemplate(legacy);
+        for (int i = 1; i <= 2; i++) {
+            legacyJdbcTemplate.update("insert into \"user\" (login, name, email, birthday) "
+                    + "values (?, 'name', ?, '2000-01-01')", "login" + i, "user" + i + "@mail.ru");
+        }
+        for (int i = 1; i <= 3; i++) {
+            legacyJdbcTemplate.update("insert into film (name, description, release_date, duration, rating_id) "
+                    + "values (?, 'description', '2000-01-01', 120, 1)", "Film" + i);
+        }
+        legacyJdbcTemplate.update("insert into likes (film_id, user_id) values (2, 1), (2, 2), (3, 1)");
+        legacyJdbcTemplate.update("insert into likes (film_id, user_id) values (3, 1), (3, 1)");  //повторные лайки
+
+        migrate(legacy);
+
+        ReferenceDataRegistry legacyReferenceData = new ReferenceDataRegistry(legacyJdbcTemplate);
+        legacyReferenceData.refresh();
+        FilmCache cache = new FilmCache(1 << 20);
+        FilmDbStorage legacyStorage = new FilmDbStorage(legacyJdbcTemplate, legacyReferenceData, cache,
+                new LikeWriteBuffer(legacyJdbcTemplate, new DataSourceTransactionManager(legacy), cache, false, 100),
+                new RequestIdentityMap());
+        List<Long> rating = new ArrayList<>();
+        for (Film film : legacyStorage.getRatingOfFilms(3L)) {
+            rating.add(film.getId());
+        }
+        assertThat(rating).isEqualTo(List.of(2L, 3L, 1L));
+        assertThat(legacyStorage.getLikeCount(2L)).isEqualTo(2L);
+        assertThat(legacyStorage.getLikeCount(3L)).isEqualTo(1L);
+    }
+
+    //база до перехода на миграции: таблицы старого schema.sql (их же создаёт V1) и справочники, без истории Flyway
+    private static DataSource createBaselineDatabase(String name) {
+        DataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "");
+        new ResourceDatabasePopulator(new ClassPathResource("db/migration/V1__create_tables.sql"),
+                new ClassPathResource("db/migration/V2__reference_data.sql")).execute(dataSource);
+        return dataSource;
+    }
+
+    private static void migrate(DataSource dataSource) {  //настройки Flyway приложения
+        Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:db/migration")
+                .baselineOnMigrate(true)
+                .baselineVersion("1")
+                .load()
+                .migrate();
+    }
 }
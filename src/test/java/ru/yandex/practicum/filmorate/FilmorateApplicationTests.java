@@ -1,25 +1,39 @@
 package ru.yandex.practicum.filmorate;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.model.RatingMPA;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.PopularFilmsBroadcaster;
+import ru.yandex.practicum.filmorate.storage.film.FilmDbStorage;
+import ru.yandex.practicum.filmorate.utils.FriendshipStatusMap;
 
 import java.time.Duration;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -32,6 +46,12 @@ class FilmorateApplicationTests {
     ObjectMapper objectMapper;
     @Autowired
     private MockMvc mockMvc;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private PopularFilmsBroadcaster popularFilmsBroadcaster;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
 
     @BeforeEach
     void clear() throws Exception {
@@ -84,6 +104,74 @@ class FilmorateApplicationTests {
                 .andExpect(content().json(objectMapper.writeValueAsString(Arrays.asList(film))));
     }
 
+    @Test
+    void shouldGetFilmsPageAndStream() throws Exception {
+        Film film = Film.builder()
+                .id(1L)
+                .name("Film")
+                .description("Film description")
+                .releaseDate(LocalDate.of(2023, 04, 16))
+                .duration(Duration.ofSeconds(120))
+                .mpa(RatingMPA.builder().id(1).name("G").build())
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            mockMvc.perform(post("/films")
+                    .content(objectMapper.writeValueAsString(film))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+
+        mockMvc.perform(get("/films?after=1&size=1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(2));
+
+        mockMvc.perform(get("/films?size=0"))
+                .andExpect(status().isBadRequest());
+
+        MvcResult result = mockMvc.perform(get("/films/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[2].id").value(3))
+                .andExpect(jsonPath("$[2].mpa.name").value("G"));
+    }
+
+    @Test
+    void shouldRecordStorageAndJdbcMetrics() throws Exception {
+        Film film = Film.builder()
+                .id(1L)
+                .name("Film")
+                .description("Film description")
+                .releaseDate(LocalDate.of(2023, 04, 16))
+                .duration(Duration.ofSeconds(120))
+                .mpa(RatingMPA.builder().id(1).name("G").build())
+                .build();
+
+        mockMvc.perform(post("/films")
+                .content(objectMapper.writeValueAsString(film))
+                .contentType(MediaType.APPLICATION_JSON));
+        mockMvc.perform(get("/films/1"))
+                .andExpect(status().isOk());
+
+        Timer storageTimer = meterRegistry.find("filmorate.storage")
+                .tag("class", FilmDbStorage.class.getName())
+                .tag("method", "getFilmById")
+                .timer();
+        assertNotNull(storageTimer);
+        assertTrue(storageTimer.count() >= 1);
+
+        DistributionSummary statements = meterRegistry.find("filmorate.jdbc.statements.per.request")
+                .tag("method", "GET")
+                .tag("uri", "/films/{id}")
+                .summary();
+        assertNotNull(statements);
+        assertTrue(statements.count() >= 1);
+        assertTrue(statements.max() >= 1);
+    }
+
     @Test
     void shouldGetFilmById() throws Exception {
         Film film = Film.builder()
@@ -293,7 +381,7 @@ class FilmorateApplicationTests {
                 .birthday(LocalDate.of(2000, 01, 16))
                 .build();
 
-        user.getMapFriends().put(2L, "newUser");
+        user.getMapFriends().put(2L, FriendshipStatusMap.UNCONFIRMED);
 
 
         mockMvc.perform(post("http://localhost:8080/users")
@@ -732,6 +820,358 @@ class FilmorateApplicationTests {
                 .andExpect(status().isNotFound());
     }
 
+    @Test
+    void shouldSuggestFriendsByMutualFriends() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            User user = User.builder()
+                    .login("UserLogin" + i)
+                    .name("User")
+                    .email("User" + i + "@email.ru")
+                    .birthday(LocalDate.of(2000, 01, 16))
+                    .build();
+            mockMvc.perform(post("/users")
+                    .content(objectMapper.writeValueAsString(user))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+        for (String friendship : List.of("1/friends/2", "1/friends/3", "2/friends/4", "2/friends/5", "3/friends/4")) {
+            mockMvc.perform(put("/users/" + friendship));
+        }
+
+        mockMvc.perform(get("/users/1/friends/suggestions?limit=5"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].id").value(4))
+                .andExpect(jsonPath("$[1].id").value(5));
+        mockMvc.perform(get("/users/1/friends/suggestions?limit=1"))
+                .andExpect(jsonPath("$.length()").value(1));
+        mockMvc.perform(get("/users/1/friends/suggestions?limit=0"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/users/99/friends/suggestions"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void shouldAnswerNotModifiedUntilEntityChanges() throws Exception {
+        for (int i = 1; i <= 2; i++) {
+            User user = User.builder()
+                    .login("UserLogin" + i)
+                    .name("User")
+                    .email("User" + i + "@email.ru")
+                    .birthday(LocalDate.of(2000, 01, 16))
+                    .build();
+            mockMvc.perform(post("/users")
+                    .content(objectMapper.writeValueAsString(user))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+        Film film = Film.builder()
+                .name("Film")
+                .description("Film description")
+                .releaseDate(LocalDate.of(2023, 04, 16))
+                .duration(Duration.ofSeconds(120))
+                .mpa(RatingMPA.builder().id(1).name("G").build())
+                .build();
+        mockMvc.perform(post("/films")
+                .content(objectMapper.writeValueAsString(film))
+                .contentType(MediaType.APPLICATION_JSON));
+
+        String filmTag = mockMvc.perform(get("/films/1"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+        assertNotNull(filmTag);
+        mockMvc.perform(get("/films/1").header("If-None-Match", filmTag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        String ratingTag = mockMvc.perform(get("/films/popular"))
+                .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(put("/films/1/like/1"));
+        mockMvc.perform(get("/films/1").header("If-None-Match", filmTag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.likes[0]").value(1));
+        mockMvc.perform(get("/films/popular").header("If-None-Match", ratingTag))
+                .andExpect(status().isOk());
+
+        String userTag = mockMvc.perform(get("/users/2"))
+                .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(get("/users/2").header("If-None-Match", userTag))
+                .andExpect(status().isNotModified());
+        mockMvc.perform(put("/users/1/friends/2"));  //версия меняется у обоих пользователей
+        mockMvc.perform(get("/users/2").header("If-None-Match", userTag))
+                .andExpect(status().isOk());
+
+        String genreTag = mockMvc.perform(get("/genres"))
+                .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(get("/genres").header("If-None-Match", genreTag))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    void shouldStreamRatingSnapshotAndThenDeltas() throws Exception {
+        User user = User.builder()
+                .login("UserLogin")
+                .name("User")
+                .email("User@email.ru")
+                .birthday(LocalDate.of(2000, 01, 16))
+                .build();
+        mockMvc.perform(post("/users")
+                .content(objectMapper.writeValueAsString(user))
+                .contentType(MediaType.APPLICATION_JSON));
+        for (int i = 1; i <= 2; i++) {
+            Film film = Film.builder()
+                    .name("Film" + i)
+                    .description("Film description")
+                    .releaseDate(LocalDate.of(2023, 04, 16))
+                    .duration(Duration.ofSeconds(120))
+                    .mpa(RatingMPA.builder().id(1).name("G").build())
+                    .build();
+            mockMvc.perform(post("/films")
+                    .content(objectMapper.writeValueAsString(film))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+
+        MockHttpServletResponse stream = mockMvc.perform(get("/films/popular/stream?count=2"))
+                .andExpect(request().asyncStarted())
+                .andReturn().getResponse();
+        awaitContent(stream, "event:snapshot");
+        assertTrue(stream.getContentAsString().startsWith("event:snapshot"));
+        assertTrue(stream.getContentAsString().contains("\"rank\":1,\"film\":{\"id\":1"));
+
+        mockMvc.perform(put("/films/2/like/1"));
+        popularFilmsBroadcaster.broadcast();
+        awaitContent(stream, "event:delta");  //сообщения отправляет отдельный поток
+        String events = stream.getContentAsString();
+        assertTrue(events.contains("{\"size\":2,\"changed\":[{\"rank\":1,\"film\":{\"id\":2"));
+
+        mockMvc.perform(get("/films/popular/stream?count=0"))
+                .andExpect(status().isBadRequest());
+    }
+
+    private static void awaitContent(MockHttpServletResponse response, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!response.getContentAsString().contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void shouldExportAndImportNdjson() throws Exception {
+        for (int i = 1; i <= 2; i++) {
+            User user = User.builder()
+                    .login("UserLogin" + i)
+                    .name("User")
+                    .email("User" + i + "@email.ru")
+                    .birthday(LocalDate.of(2000, 01, 16))
+                    .build();
+            mockMvc.perform(post("/users")
+                    .content(objectMapper.writeValueAsString(user))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+        Film film = Film.builder()
+                .name("Film")
+                .description("Film description")
+                .releaseDate(LocalDate.of(2023, 04, 16))
+                .duration(Duration.ofSeconds(120))
+                .mpa(RatingMPA.builder().id(2).name("PG").build())
+                .build();
+        film.addGenre(Genre.builder().id(3).build());
+        mockMvc.perform(post("/films")
+                .content(objectMapper.writeValueAsString(film))
+                .contentType(MediaType.APPLICATION_JSON));
+        mockMvc.perform(put("/films/1/like/2"));
+        mockMvc.perform(put("/users/1/friends/2"));
+
+        MvcResult result = mockMvc.perform(get("/admin/export"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        String export = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        assertTrue(export.startsWith("{\"type\":\"user\",\"id\":1,\"login\":\"UserLogin1\""));
+        assertTrue(export.contains("\n{\"type\":\"like\",\"filmId\":1,\"userId\":2}\n"));
+
+        mockMvc.perform(delete("/films"));
+        mockMvc.perform(delete("/users"));
+        mockMvc.perform(post("/admin/import").content(export).contentType("application/x-ndjson"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.records").value(5))
+                .andExpect(jsonPath("$.imported.user").value(2))
+                .andExpect(jsonPath("$.imported.film").value(1))
+                .andExpect(jsonPath("$.skipped").value(0));
+
+        //после удаления id выдаются заново, ссылки в лайках и дружбах переназначены на новые id
+        mockMvc.perform(get("/films/popular?count=1"))
+                .andExpect(jsonPath("$[0].id").value(2))
+                .andExpect(jsonPath("$[0].genres[0].id").value(3))
+                .andExpect(jsonPath("$[0].mpa.id").value(2))
+                .andExpect(jsonPath("$[0].likes[0]").value(4));
+        mockMvc.perform(get("/users/3/friends"))
+                .andExpect(jsonPath("$[0].id").value(4));
+
+        mockMvc.perform(post("/admin/import").content("{\"type\":\"unknown\"}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void shouldSkipInvalidRecordsOnImport() throws Exception {
+        String records = String.join("\n",
+                "{\"type\":\"user\",\"id\":1,\"login\":\"Login\",\"email\":\"user@mail.ru\","
+                        + "\"birthday\":\"2000-01-01\"}",
+                "{\"type\":\"user\",\"id\":2,\"login\":\"Log in\",\"email\":\"user2@mail.ru\"}",
+                "{\"type\":\"user\",\"id\":3,\"login\":\"Login3\",\"email\":\"mail.ru\"}",
+                "{\"type\":\"user\",\"id\":4,\"login\":\"Login4\",\"email\":\"user4@mail.ru\","
+                        + "\"birthday\":\"2999-01-01\"}",
+                "{\"type\":\"film\",\"id\":1,\"name\":\"Film\",\"releaseDate\":\"1800-01-01\",\"duration\":120,"
+                        + "\"mpa\":{\"id\":1}}",
+                "{\"type\":\"film\",\"id\":2,\"name\":\"Film\",\"releaseDate\":\"2000-01-01\",\"duration\":-1,"
+                        + "\"mpa\":{\"id\":1}}",
+                "{\"type\":\"friendship\",\"userId\":1,\"friendId\":1,\"confirmed\":false}");
+
+        mockMvc.perform(post("/admin/import").content(records).contentType("application/x-ndjson"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.records").value(7))
+                .andExpect(jsonPath("$.imported.user").value(1))
+                .andExpect(jsonPath("$.imported.film").value(0))
+                .andExpect(jsonPath("$.imported.friendship").value(0))
+                .andExpect(jsonPath("$.skipped").value(6));
+        mockMvc.perform(get("/users"))
+                .andExpect(jsonPath("$.length()").value(1));
+    }
+
+    @Test
+    void shouldSkipImportedRecordsWithoutDatesAndAcceptInterleavedLinks() throws Exception {
+        String records = String.join("\n",
+                "{\"type\":\"user\",\"id\":1,\"login\":\"Login1\",\"email\":\"user1@mail.ru\","
+                        + "\"birthday\":\"2000-01-01\"}",
+                "{\"type\":\"user\",\"id\":2,\"login\":\"Login2\",\"email\":\"user2@mail.ru\"}",
+                "{\"type\":\"film\",\"id\":1,\"name\":\"Film1\",\"duration\":120,\"mpa\":{\"id\":1}}",
+                "{\"type\":\"film\",\"id\":2,\"name\":\"Film2\",\"releaseDate\":null,\"duration\":120,"
+                        + "\"mpa\":{\"id\":1}}",
+                "{\"type\":\"film\",\"id\":3,\"name\":\"Film3\",\"releaseDate\":\"2000-01-01\",\"duration\":120,"
+                        + "\"mpa\":{\"id\":1}}",
+                "{\"type\":\"like\",\"filmId\":3,\"userId\":1}",
+                "{\"type\":\"user\",\"id\":3,\"login\":\"Login3\",\"email\":\"user3@mail.ru\","
+                        + "\"birthday\":\"2000-01-01\"}",
+                "{\"type\":\"like\",\"filmId\":3,\"userId\":3}",
+                "{\"type\":\"friendship\",\"userId\":1,\"friendId\":3,\"confirmed\":false}",
+                "{\"type\":\"like\",\"filmId\":3,\"userId\":4}",  //пользователь 4 ещё не встречался
+                "{\"type\":\"user\",\"id\":4,\"login\":\"Login4\",\"email\":\"user4@mail.ru\","
+                        + "\"birthday\":\"2000-01-01\"}",
+                "{\"type\":\"friendship\",\"userId\":3,\"friendId\":2,\"confirmed\":false}");
+
+        mockMvc.perform(post("/admin/import").content(records).contentType("application/x-ndjson"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.records").value(12))
+                .andExpect(jsonPath("$.imported.user").value(3))
+                .andExpect(jsonPath("$.imported.film").value(1))
+                .andExpect(jsonPath("$.imported.like").value(2))
+                .andExpect(jsonPath("$.imported.friendship").value(1))
+                .andExpect(jsonPath("$.skipped").value(5));
+        mockMvc.perform(get("/users"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3));
+        mockMvc.perform(get("/films"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].name").value("Film3"))
+                .andExpect(jsonPath("$[0].likes.length()").value(2));
+        mockMvc.perform(get("/users/1/friends"))
+                .andExpect(jsonPath("$[0].login").value("Login3"));
+    }
+
+    @Test
+    void shouldSearchFilmsByNameAndDescription() throws Exception {
+        User user = User.builder()
+                .login("UserLogin")
+                .name("User")
+                .email("User@email.ru")
+                .birthday(LocalDate.of(2000, 01, 16))
+                .build();
+        mockMvc.perform(post("/users")
+                .content(objectMapper.writeValueAsString(user))
+                .contentType(MediaType.APPLICATION_JSON));
+        Map<String, String> films = new LinkedHashMap<>();
+        films.put("Ёжик в тумане", "Мультфильм о ёжике");
+        films.put("Туманность Андромеды", "Фантастика");
+        films.put("Иван Васильевич меняет профессию", "Комедия о машине времени");
+        for (Map.Entry<String, String> entry : films.entrySet()) {
+            Film film = Film.builder()
+                    .name(entry.getKey())
+                    .description(entry.getValue())
+                    .releaseDate(LocalDate.of(1975, 04, 16))
+                    .duration(Duration.ofSeconds(120))
+                    .mpa(RatingMPA.builder().id(1).name("G").build())
+                    .build();
+            mockMvc.perform(post("/films")
+                    .content(objectMapper.writeValueAsString(film))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+        mockMvc.perform(put("/films/2/like/1"));
+
+        mockMvc.perform(get("/films/search").param("q", "ежик"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].name").value("Ёжик в тумане"));
+        mockMvc.perform(get("/films/search").param("q", "Туман"))  //совпадение по началу слова, выше популярный
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].id").value(2))
+                .andExpect(jsonPath("$[1].id").value(1));
+        mockMvc.perform(get("/films/search").param("q", "ман"))  //совпадение по подстроке названия
+                .andExpect(jsonPath("$.length()").value(2));
+        mockMvc.perform(get("/films/search").param("q", "машин"))  //совпадение в описании
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(3));
+        mockMvc.perform(get("/films/search").param("q", "ёжик туман"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(1));
+        mockMvc.perform(get("/films/search").param("q", "я"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void shouldRecommendFilmsLikedBySimilarUsers() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            User user = User.builder()
+                    .login("UserLogin" + i)
+                    .name("User")
+                    .email("User" + i + "@email.ru")
+                    .birthday(LocalDate.of(2000, 01, 16))
+                    .build();
+            mockMvc.perform(post("/users")
+                    .content(objectMapper.writeValueAsString(user))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+        for (int i = 1; i <= 4; i++) {
+            Film film = Film.builder()
+                    .name("Film" + i)
+                    .description("Film description")
+                    .releaseDate(LocalDate.of(2023, 04, 16))
+                    .duration(Duration.ofSeconds(120))
+                    .mpa(RatingMPA.builder().id(1).name("G").build())
+                    .build();
+            mockMvc.perform(post("/films")
+                    .content(objectMapper.writeValueAsString(film))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+        for (String like : List.of("1/like/1", "2/like/1", "1/like/2", "2/like/2", "3/like/2", "1/like/3",
+                "4/like/3")) {
+            mockMvc.perform(put("/films/" + like));
+        }
+
+        mockMvc.perform(get("/users/1/recommendations"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].id").value(3))
+                .andExpect(jsonPath("$[1].id").value(4));
+
+        mockMvc.perform(delete("/films/3/like/2"));
+        mockMvc.perform(get("/users/1/recommendations"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(4));
+        mockMvc.perform(get("/users/1/recommendations?limit=0"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/users/99/recommendations"))
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     void shouldBeAdditionLike() throws Exception {
         User user = User.builder()
@@ -769,6 +1209,191 @@ class FilmorateApplicationTests {
                 .andExpect(jsonPath("$.likes").value(1));
     }
 
+    @Test
+    void shouldCountLikesAndFriends() throws Exception {
+        for (int i = 1; i <= 2; i++) {
+            User user = User.builder()
+                    .login("UserLogin" + i)
+                    .name("User")
+                    .email("User" + i + "@email.ru")
+                    .birthday(LocalDate.of(2000, 01, 16))
+                    .build();
+            mockMvc.perform(post("/users")
+                    .content(objectMapper.writeValueAsString(user))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+        Film film = Film.builder()
+                .name("Film")
+                .description("Film description")
+                .releaseDate(LocalDate.of(2023, 04, 16))
+                .duration(Duration.ofSeconds(120))
+                .mpa(RatingMPA.builder().id(1).name("G").build())
+                .build();
+        mockMvc.perform(post("/films")
+                .content(objectMapper.writeValueAsString(film))
+                .contentType(MediaType.APPLICATION_JSON));
+
+        mockMvc.perform(put("/films/1/like/1").param("countOnly", "true"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.filmId").value(1))
+                .andExpect(jsonPath("$.count").value(1))
+                .andExpect(jsonPath("$.likes").doesNotExist());
+        mockMvc.perform(put("/films/1/like/2"));
+        mockMvc.perform(get("/films/1/likes/count"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(2));
+        mockMvc.perform(delete("/films/1/like/1").param("countOnly", "true"))
+                .andExpect(jsonPath("$.count").value(1));
+        mockMvc.perform(get("/films/9/likes/count"))
+                .andExpect(status().isNotFound());
+
+        mockMvc.perform(put("/users/1/friends/2"));
+        mockMvc.perform(get("/users/1/friends/count"))
+                .andExpect(jsonPath("$.count").value(1));
+        mockMvc.perform(get("/users/2/friends/count"))
+                .andExpect(jsonPath("$.count").value(0));
+        mockMvc.perform(put("/users/2/friends/1"));  //подтверждение заявки
+        mockMvc.perform(get("/users/2/friends/count"))
+                .andExpect(jsonPath("$.count").value(1));
+        mockMvc.perform(delete("/users/2/friends/1"));
+        mockMvc.perform(get("/users/1/friends/count"))
+                .andExpect(jsonPath("$.count").value(0));
+        mockMvc.perform(get("/users/2/friends/count"))
+                .andExpect(jsonPath("$.count").value(0));
+        mockMvc.perform(delete("/users/2/friends/1"))  //повторное удаление счётчики не меняет
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/users/1/friends/count"))
+                .andExpect(jsonPath("$.count").value(0));
+        mockMvc.perform(get("/users/2/friends/count"))
+                .andExpect(jsonPath("$.count").value(0));
+
+        mockMvc.perform(put("/users/1/friends/2"));  //входящая заявка не входит в друзья 2
+        mockMvc.perform(delete("/users/2/friends/1"));
+        mockMvc.perform(delete("/users/2/friends/1"));
+        mockMvc.perform(get("/users/1/friends/count"))
+                .andExpect(jsonPath("$.count").value(0));
+        mockMvc.perform(get("/users/2/friends/count"))
+                .andExpect(jsonPath("$.count").value(0));
+    }
+
+    @Test
+    void shouldRefreshReferenceDataOnDemand() throws Exception {
+        String genresTag = mockMvc.perform(get("/genres"))
+                .andReturn().getResponse().getHeader("ETag");
+        jdbcTemplate.update("insert into genre (genre_id, name) values (7, 'Вестерн')");
+        try {
+            mockMvc.perform(get("/genres/8"))
+                    .andExpect(status().isNotFound());
+            mockMvc.perform(get("/genres/7"))  //жанр, которого нет в памяти, находится в базе
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.name").value("Вестерн"));
+            String refreshedTag = mockMvc.perform(get("/genres").header("If-None-Match", genresTag))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.length()").value(7))
+                    .andReturn().getResponse().getHeader("ETag");
+
+            mockMvc.perform(post("/admin/reference-data/refresh"))
+                    .andExpect(status().isNoContent());
+            mockMvc.perform(get("/genres").header("If-None-Match", refreshedTag))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.length()").value(7));
+        } finally {
+            jdbcTemplate.update("delete from genre where genre_id = 7");
+            mockMvc.perform(post("/admin/reference-data/refresh"));
+        }
+    }
+
+    @Test
+    void shouldReturnNotFoundForUnknownUserWithoutPreCheck() throws Exception {
+        User user = User.builder()
+                .login("UserLogin")
+                .name("User")
+                .email("User@email.ru")
+                .birthday(LocalDate.of(2000, 01, 16))
+                .build();
+        mockMvc.perform(post("/users")
+                .content(objectMapper.writeValueAsString(user))
+                .contentType(MediaType.APPLICATION_JSON));
+        Film film = Film.builder()
+                .name("Film")
+                .description("Film description")
+                .releaseDate(LocalDate.of(2023, 04, 16))
+                .duration(Duration.ofSeconds(120))
+                .mpa(RatingMPA.builder().id(1).name("G").build())
+                .build();
+        mockMvc.perform(post("/films")
+                .content(objectMapper.writeValueAsString(film))
+                .contentType(MediaType.APPLICATION_JSON));
+
+        //несуществующий пользователь распознаётся по нарушению внешнего ключа при вставке
+        mockMvc.perform(put("/users/1/friends/99"))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(put("/films/1/like/99"))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(delete("/films/1/like/99"))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/users/1/friends/count"))
+                .andExpect(jsonPath("$.count").value(0));
+        mockMvc.perform(get("/films/1/likes/count"))
+                .andExpect(jsonPath("$.count").value(0));
+    }
+
+    @Test
+    void shouldAddAndDeleteLikesInBatch() throws Exception {
+        for (int i = 1; i <= 2; i++) {
+            User user = User.builder()
+                    .login("UserLogin" + i)
+                    .name("User")
+                    .email("User" + i + "@email.ru")
+                    .birthday(LocalDate.of(2000, 01, 16))
+                    .build();
+            mockMvc.perform(post("/users")
+                    .content(objectMapper.writeValueAsString(user))
+                    .contentType(MediaType.APPLICATION_JSON));
+        }
+        Film film = Film.builder()
+                .name("Film")
+                .description("Film description")
+                .releaseDate(LocalDate.of(2023, 04, 16))
+                .duration(Duration.ofSeconds(120))
+                .mpa(RatingMPA.builder().id(1).name("G").build())
+                .build();
+        mockMvc.perform(post("/films")
+                .content(objectMapper.writeValueAsString(film))
+                .contentType(MediaType.APPLICATION_JSON));
+
+        String batch = "[{\"filmId\":1,\"userId\":1},{\"filmId\":1,\"userId\":2},{\"filmId\":1,\"userId\":1},"
+                + "{\"filmId\":2,\"userId\":1},{\"filmId\":1,\"userId\":3}]";
+        mockMvc.perform(post("/films/likes/batch")
+                        .content(batch)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.summary.added").value(2))
+                .andExpect(jsonPath("$.items[0].status").value("added"))
+                .andExpect(jsonPath("$.items[2].status").value("duplicate"))
+                .andExpect(jsonPath("$.items[3].status").value("film_not_found"))
+                .andExpect(jsonPath("$.items[4].status").value("user_not_found"));
+        mockMvc.perform(get("/films/popular?count=1"))
+                .andExpect(jsonPath("$[0].likes.length()").value(2));
+
+        mockMvc.perform(delete("/films/likes/batch")
+                        .content("[{\"filmId\":1,\"userId\":1}]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.items[0].status").value("removed"));
+        mockMvc.perform(delete("/films/likes/batch")
+                        .content("[{\"filmId\":1,\"userId\":1}]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.items[0].status").value("not_liked"));
+        mockMvc.perform(get("/films/1"))
+                .andExpect(jsonPath("$.likes.length()").value(1));
+
+        mockMvc.perform(post("/films/likes/batch")
+                        .content("[]")
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     void shouldBeDeleteLike() throws Exception {
         User user = User.builder()